@@ -0,0 +1,209 @@
+package hpi;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures each stage of a copy on generated source trees: listing the
+ * folder, sending the manifest, streaming the files, making them executable,
+ * finding outdated files and deleting them again. The agent end runs on its
+ * own thread behind an in-memory pipe, which stands in for the remoting
+ * channel without a running Jenkins. Run with {@code mvn -P benchmark verify}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CopyDataBenchmark {
+
+	/** Shape of the generated source folder. */
+	public enum Shape {
+		/** 5000 files of 4 KB in 50 directories. */
+		SMALL_FILES,
+		/** 4 files of 32 MB. */
+		HUGE_FILES,
+		/** 10 chains of 40 nested directories with a 1 KB file on each level. */
+		DEEP_NESTING
+	}
+
+	@State(Scope.Benchmark)
+	public static class Tree {
+		@Param
+		public Shape shape;
+
+		@Param({"NONE", "DEFLATE"})
+		public TransferCodec codec;
+
+		File base;
+		File userContent;
+		File source;
+		File workspace;
+		DataManifest manifest;
+		ExecutorService agent;
+
+		@Setup(Level.Trial)
+		public void generate() throws Exception {
+			base = Files.createTempDirectory("copy-data-benchmark").toFile();
+			userContent = new File(base, "userContent");
+			source = new File(userContent, "data");
+			workspace = new File(base, "workspace");
+			Random random = new Random(42);
+			switch (shape) {
+				case SMALL_FILES:
+					for (int i = 0; i < 5000; i++) {
+						write(new File(source, "dir" + i % 50 + "/file" + i + ".txt"), 4 * 1024, random);
+					}
+					break;
+				case HUGE_FILES:
+					for (int i = 0; i < 4; i++) {
+						write(new File(source, "huge" + i + ".bin"), 32 * 1024 * 1024, random);
+					}
+					break;
+				case DEEP_NESTING:
+					for (int chain = 0; chain < 10; chain++) {
+						StringBuilder dir = new StringBuilder("chain" + chain);
+						for (int depth = 0; depth < 40; depth++) {
+							dir.append("/level").append(depth);
+							write(new File(source, dir + "/file.txt"), 1024, random);
+						}
+					}
+					break;
+				default:
+					throw new IllegalStateException(shape.name());
+			}
+			manifest = list(this);
+			agent = Executors.newCachedThreadPool();
+			copy(this);
+		}
+
+		@TearDown(Level.Trial)
+		public void delete() throws IOException {
+			agent.shutdownNow();
+			DeleteCopiedFiles.deleteTree(base.toPath());
+		}
+	}
+
+	/**
+	 * A workspace holding a fresh copy, for the cleanup benchmark.
+	 */
+	@State(Scope.Thread)
+	public static class CopiedTree {
+		@Setup(Level.Invocation)
+		public void fill(Tree tree) throws Exception {
+			copy(tree);
+		}
+	}
+
+	@Benchmark
+	public int scan(Tree tree) throws IOException {
+		return list(tree).size();
+	}
+
+	@Benchmark
+	public String fingerprint(Tree tree) {
+		return tree.manifest.fingerprint();
+	}
+
+	/**
+	 * The manifest is sent to the agent with every callable that needs it.
+	 */
+	@Benchmark
+	public int serializeManifest(Tree tree) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(tree.manifest);
+		}
+		return bytes.size();
+	}
+
+	@Benchmark
+	public long transfer(Tree tree) throws Exception {
+		return copy(tree).wireBytes;
+	}
+
+	@Benchmark
+	public int[] outdatedEntries(Tree tree) {
+		return new DataManifest.OutdatedEntries(tree.manifest).invoke(tree.workspace, null);
+	}
+
+	@Benchmark
+	public Integer makeExecutable(Tree tree) throws IOException {
+		return new MakeExecutable(tree.manifest).invoke(tree.workspace, null);
+	}
+
+	@Benchmark
+	public long delete(Tree tree, CopiedTree copied) throws IOException {
+		return new DeleteCopiedFiles(tree.manifest, null).invoke(tree.workspace, null).files;
+	}
+
+	private static DataManifest list(Tree tree) throws IOException {
+		return new DataManifest.Scanner(tree.userContent.getPath(), false).invoke(tree.source, null);
+	}
+
+	/**
+	 * Streams every file of the tree into the workspace, with the receiving
+	 * end on an agent thread.
+	 */
+	private static DataTransfer.Stats copy(Tree tree) throws Exception {
+		DataManifest manifest = tree.manifest;
+		int[] indices = manifest.all();
+		PipedInputStream in = new PipedInputStream(DataTransfer.CHUNK_SIZE * 4);
+		DataTransfer.CountingOutputStream pipe = new DataTransfer.CountingOutputStream(new PipedOutputStream(in));
+		Future<DataTransfer.Stats> received = tree.agent.submit(
+				() -> new DataTransfer.Receiver(manifest, indices, in).invoke(tree.workspace, null));
+		byte[] buffer = new byte[DataTransfer.CHUNK_SIZE];
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(pipe, DataTransfer.CHUNK_SIZE))) {
+			for (int i : indices) {
+				if (!manifest.isDirectory(i)) {
+					DataTransfer.writeFrame(manifest.getSourceFile(tree.source, i), tree.codec,
+							TransferCodec.DEFAULT_LEVEL, out, buffer);
+				}
+			}
+		}
+		DataTransfer.Stats stats = received.get();
+		stats.wireBytes = pipe.count;
+		return stats;
+	}
+
+	/**
+	 * Writes a file that is half random and half repeated bytes, so
+	 * compression has some, but not all, of its usual effect.
+	 */
+	private static void write(File file, int size, Random random) throws IOException {
+		byte[] data = new byte[size];
+		random.nextBytes(data);
+		for (int i = size / 2; i < size; i++) {
+			data[i] = (byte) (i % 16);
+		}
+		Path path = file.toPath();
+		Files.createDirectories(path.getParent());
+		Files.write(path, data);
+	}
+}
@@ -0,0 +1,287 @@
+package hpi;
+
+import hudson.Util;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+/**
+ * Pre-packed transfer streams kept on the controller, one per source folder
+ * (or combination of folders) and codec. An archive holds the frames
+ * {@link DataTransfer} would send for every file of the folder, followed by
+ * the offset of each frame and the version of the folder it was built from:
+ * its {@link DataManifest#identity identity} plus the exact modification
+ * times, since the identity only keeps whole seconds and a file rewritten
+ * within a second must not be served stale. As long as it matches, builds
+ * stream the stored bytes instead of walking and compressing the folder
+ * again, and any subset of the files can be sent by copying the matching
+ * frame ranges. The mtime of an archive is its last use; the least recently
+ * used archives are removed once the directory exceeds its size limit, which
+ * also drops those of deleted jobs and abandoned settings.
+ */
+final class ArchiveCache {
+	private static final Logger log = Logger.getLogger(ArchiveCache.class.getName());
+
+	static final String SUFFIX = ".bin";
+	/** Temporary files of a pack that did not finish are removed after this long. */
+	private static final long ABANDONED_MILLIS = 24L * 60 * 60 * 1000;
+
+	/**
+	 * Archives being rebuilt or evicted, so concurrent builds of one folder
+	 * pack it once and an archive is never deleted while it is being opened.
+	 */
+	private static final KeyedLocks locks = new KeyedLocks();
+
+	private ArchiveCache() {
+	}
+
+	/**
+	 * Returns an up to date archive of {@code root}, packing it first if
+	 * there is none or if it was built from a different version of the folder.
+	 * After packing, the least recently used archives are evicted until
+	 * {@code dir} fits in {@code sizeLimit} bytes.
+	 */
+	static Archive get(File dir, File root, DataManifest manifest, TransferCodec codec, int level, long sizeLimit)
+			throws IOException {
+		String name = Util.getDigestOf(manifest.describeSources(root)) + "-" + codec.name().toLowerCase(Locale.ROOT)
+				+ (codec == TransferCodec.NONE ? "" : "-" + level) + SUFFIX;
+		File file = new File(dir, name);
+		String version = version(manifest, root);
+		Archive archive;
+		boolean packed = false;
+		try (KeyedLocks.Held lock = locks.lock(name)) {
+			archive = Archive.open(file, version, manifest.size());
+			if (archive == null) {
+				log.fine("Packing " + root + " into " + file);
+				pack(file, root, manifest, version, codec, level);
+				packed = true;
+				archive = Archive.open(file, version, manifest.size());
+				if (archive == null) {
+					throw new IOException("Failed to read archive " + file);
+				}
+			}
+			if (!file.setLastModified(System.currentTimeMillis())) {
+				log.fine("Failed to touch archive " + file);
+			}
+		}
+		if (packed) {
+			evict(dir, sizeLimit, name);
+		}
+		return archive;
+	}
+
+	private static String version(DataManifest manifest, File root) {
+		StringBuilder times = new StringBuilder();
+		for (int i = 0; i < manifest.size(); i++) {
+			times.append(manifest.getLastModified(i)).append(',');
+		}
+		return manifest.identity(root) + "-" + Util.getDigestOf(times.toString());
+	}
+
+	/**
+	 * Deletes the least recently used archives until {@code dir} fits in
+	 * {@code limit} bytes, and the temporary files of packs abandoned for a
+	 * day. The archive that was just packed is kept, and so are archives
+	 * being packed by another build. Builds already sending an archive keep
+	 * their open file. Returns the number of bytes freed.
+	 */
+	static long evict(File dir, long limit, String keep) {
+		File[] archives = dir.listFiles(f -> f.isFile() && f.getName().endsWith(SUFFIX));
+		if (archives == null) {
+			return 0;
+		}
+		Arrays.sort(archives, Comparator.comparingLong(File::lastModified));
+		long total = 0;
+		for (File f : archives) {
+			total += f.length();
+		}
+		long freed = 0;
+		for (File f : archives) {
+			if (total - freed <= limit) {
+				break;
+			}
+			if (f.getName().equals(keep)) {
+				continue;
+			}
+			try (KeyedLocks.Held lock = locks.tryLock(f.getName())) {
+				if (lock == null) {
+					// being packed
+					continue;
+				}
+				long size = f.length();
+				Files.deleteIfExists(f.toPath());
+				freed += size;
+			} catch (IOException e) {
+				log.fine("Failed to evict archive " + f + ": " + e);
+			}
+		}
+		File[] abandoned = dir.listFiles(f -> f.getName().endsWith(".tmp")
+				&& f.lastModified() < System.currentTimeMillis() - ABANDONED_MILLIS);
+		if (abandoned != null) {
+			for (File f : abandoned) {
+				if (!f.delete()) {
+					log.fine("Failed to delete " + f);
+				}
+			}
+		}
+		return freed;
+	}
+
+	/**
+	 * Layout: frames, one long offset per manifest entry plus the end of the
+	 * last frame, the folder version, and finally the position of the offsets.
+	 */
+	private static void pack(File file, File root, DataManifest manifest, String version,
+			TransferCodec codec, int level) throws IOException {
+		Files.createDirectories(file.getParentFile().toPath());
+		Path tmp = Files.createTempFile(file.getParentFile().toPath(), file.getName(), ".tmp");
+		try {
+			long[] offsets = new long[manifest.size() + 1];
+			byte[] buffer = new byte[DataTransfer.CHUNK_SIZE];
+			try (OutputStream fileOut = Files.newOutputStream(tmp)) {
+				DataTransfer.CountingOutputStream counter = new DataTransfer.CountingOutputStream(
+						new BufferedOutputStream(fileOut, DataTransfer.CHUNK_SIZE));
+				DataOutputStream out = new DataOutputStream(counter);
+				try (SourceFiles files = new SourceFiles(manifest, root)) {
+					for (int i = 0; i < manifest.size(); i++) {
+						out.flush();
+						offsets[i] = counter.count;
+						if (!manifest.isDirectory(i)) {
+							DataTransfer.writeFrame(files, i, codec, level, out, buffer, 0, null);
+						}
+					}
+				}
+				out.flush();
+				long index = counter.count;
+				offsets[manifest.size()] = index;
+				for (long offset : offsets) {
+					out.writeLong(offset);
+				}
+				out.writeUTF(version);
+				out.writeLong(index);
+				out.flush();
+			}
+			Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	/**
+	 * An archive opened for one build. The file stays open until the archive
+	 * is closed, so a rebuild that replaces it does not affect a transfer
+	 * already in progress.
+	 */
+	static final class Archive implements Closeable {
+		private final FileChannel channel;
+		private final long[] offsets;
+
+		private Archive(FileChannel channel, long[] offsets) {
+			this.channel = channel;
+			this.offsets = offsets;
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+
+		/**
+		 * Reads the archive index, or returns {@code null} when the file is
+		 * missing, damaged or built from another version of the folder.
+		 */
+		static Archive open(File file, String version, int entries) throws IOException {
+			if (!file.isFile()) {
+				return null;
+			}
+			FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			boolean valid = false;
+			try {
+				long size = channel.size();
+				long indexSize = 8L * (entries + 1);
+				if (size < indexSize + 8) {
+					return null;
+				}
+				ByteBuffer tail = ByteBuffer.allocate(8);
+				channel.read(tail, size - 8);
+				tail.flip();
+				long index = tail.getLong();
+				if (index < 0 || index + indexSize + 2 + 8 > size) {
+					return null;
+				}
+				ByteBuffer rest = ByteBuffer.allocate((int) (size - 8 - index));
+				while (rest.hasRemaining() && channel.read(rest, index + rest.position()) > 0) {
+					// keep reading
+				}
+				rest.flip();
+				long[] offsets = new long[entries + 1];
+				for (int i = 0; i < offsets.length; i++) {
+					offsets[i] = rest.getLong();
+				}
+				int length = rest.getShort() & 0xFFFF;
+				if (rest.remaining() != length) {
+					return null;
+				}
+				byte[] stored = new byte[length];
+				rest.get(stored);
+				if (!version.equals(new String(stored, StandardCharsets.UTF_8)) || offsets[entries] != index) {
+					return null;
+				}
+				valid = true;
+				return new Archive(channel, offsets);
+			} finally {
+				if (!valid) {
+					channel.close();
+				}
+			}
+		}
+
+		/**
+		 * Sends the frames of the given entries, merging adjacent ranges so a
+		 * full copy is a single transfer of the whole frame section.
+		 */
+		void send(int[] indices, OutputStream out) throws IOException {
+			WritableByteChannel target = Channels.newChannel(out);
+			long from = -1;
+			long to = -1;
+			for (int i : indices) {
+				if (offsets[i] == to) {
+					to = offsets[i + 1];
+					continue;
+				}
+				transfer(channel, from, to, target);
+				from = offsets[i];
+				to = offsets[i + 1];
+			}
+			transfer(channel, from, to, target);
+		}
+
+		private static void transfer(FileChannel channel, long from, long to, WritableByteChannel target)
+				throws IOException {
+			while (from < to) {
+				long n = channel.transferTo(from, to - from, target);
+				if (n <= 0) {
+					throw new IOException("Archive ended unexpectedly");
+				}
+				from += n;
+			}
+		}
+	}
+}
@@ -0,0 +1,376 @@
+package hpi;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Block-level deltas of large files against the copy a node already has, in
+ * the manner of rsync. The node splits its copy into blocks of
+ * {@link #BLOCK_SIZE} bytes and returns a weak rolling checksum and an MD5 of
+ * each. The controller rolls the weak checksum over the new version of the
+ * file, byte by byte, and sends a reference for every block it finds there
+ * and the bytes in between as literals, followed by the CRC32C of the whole
+ * file. The node rebuilds the file from its old copy and the literals.
+ */
+final class BlockDelta {
+	static final int BLOCK_SIZE = 64 * 1024;
+	/** Smaller files are always sent whole. */
+	static final long MIN_SIZE = 1024L * 1024;
+	/** Pending literal bytes are sent once there are this many. */
+	private static final int MAX_LITERAL = 4 * BLOCK_SIZE;
+
+	private static final int END = 0;
+	private static final int COPY = 1;
+	private static final int LITERAL = 2;
+
+	private static final int STRONG_SIZE = 16;
+
+	private BlockDelta() {
+	}
+
+	/**
+	 * Checksums of the whole blocks of a file; a short last block is left
+	 * out and always sent as a literal.
+	 */
+	static final class Signature implements Serializable {
+		private static final long serialVersionUID = 1L;
+		private final int[] weak;
+		private final byte[] strong;
+
+		Signature(int[] weak, byte[] strong) {
+			this.weak = weak;
+			this.strong = strong;
+		}
+
+		int blocks() {
+			return weak.length;
+		}
+
+		boolean matches(int block, byte[] digest) {
+			return Arrays.equals(strong, block * STRONG_SIZE, (block + 1) * STRONG_SIZE, digest, 0, STRONG_SIZE);
+		}
+	}
+
+	static Signature signature(Path file) throws IOException {
+		MessageDigest md5 = md5();
+		int blocks = (int) (Files.size(file) / BLOCK_SIZE);
+		int[] weak = new int[blocks];
+		byte[] strong = new byte[blocks * STRONG_SIZE];
+		byte[] block = new byte[BLOCK_SIZE];
+		try (InputStream in = Files.newInputStream(file, StandardOpenOption.READ, LinkOption.NOFOLLOW_LINKS)) {
+			for (int b = 0; b < blocks; b++) {
+				if (in.readNBytes(block, 0, BLOCK_SIZE) < BLOCK_SIZE) {
+					// the file shrank while it was read; the blocks seen so far are still valid
+					return new Signature(Arrays.copyOf(weak, b), Arrays.copyOf(strong, b * STRONG_SIZE));
+				}
+				weak[b] = new Rolling(block, 0).value();
+				md5.update(block);
+				System.arraycopy(md5.digest(), 0, strong, b * STRONG_SIZE, STRONG_SIZE);
+			}
+		}
+		return new Signature(weak, strong);
+	}
+
+	private static MessageDigest md5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * The rsync weak checksum of a window of {@link #BLOCK_SIZE} bytes, which
+	 * can be moved forward by one byte in constant time.
+	 */
+	private static final class Rolling {
+		private int a;
+		private int b;
+
+		Rolling(byte[] data, int off) {
+			for (int i = 0; i < BLOCK_SIZE; i++) {
+				int x = data[off + i] & 0xFF;
+				a += x;
+				b += (BLOCK_SIZE - i) * x;
+			}
+		}
+
+		void roll(byte out, byte in) {
+			a += (in & 0xFF) - (out & 0xFF);
+			b += a - BLOCK_SIZE * (out & 0xFF);
+		}
+
+		int value() {
+			return (a & 0xFFFF) | (b << 16);
+		}
+	}
+
+	/**
+	 * Writes the delta of {@code in} against {@code signature} to
+	 * {@code out}, consuming all of {@code in}.
+	 */
+	static void encode(InputStream in, Signature signature, DataOutputStream out) throws IOException {
+		Map<Integer, List<Integer>> blocks = new HashMap<>();
+		for (int b = 0; b < signature.blocks(); b++) {
+			blocks.computeIfAbsent(signature.weak[b], k -> new ArrayList<>(1)).add(b);
+		}
+		MessageDigest md5 = md5();
+		CRC32C crc = new CRC32C();
+		byte[] buf = new byte[MAX_LITERAL + 2 * BLOCK_SIZE];
+		int len = 0;
+		// start of the pending literal and of the current window
+		int lit = 0;
+		int pos = 0;
+		boolean eof = false;
+		Rolling rolling = null;
+		// run of consecutive blocks not yet written
+		int runStart = -1;
+		int runCount = 0;
+		while (true) {
+			if (pos + BLOCK_SIZE + 1 > len && !eof) {
+				if (pos - lit >= MAX_LITERAL) {
+					copy(out, runStart, runCount);
+					runStart = -1;
+					literal(out, buf, lit, pos - lit);
+					lit = pos;
+				}
+				if (lit > 0) {
+					System.arraycopy(buf, lit, buf, 0, len - lit);
+					len -= lit;
+					pos -= lit;
+					lit = 0;
+				}
+				while (len < buf.length) {
+					int n = in.read(buf, len, buf.length - len);
+					if (n < 0) {
+						eof = true;
+						break;
+					}
+					crc.update(buf, len, n);
+					len += n;
+				}
+			}
+			if (pos + BLOCK_SIZE > len) {
+				break;
+			}
+			if (rolling == null) {
+				rolling = new Rolling(buf, pos);
+			}
+			int match = find(blocks, signature, rolling.value(), buf, pos, md5,
+					runStart < 0 ? -1 : runStart + runCount);
+			if (match >= 0) {
+				if (pos > lit || (runStart >= 0 && match != runStart + runCount)) {
+					copy(out, runStart, runCount);
+					runStart = -1;
+					literal(out, buf, lit, pos - lit);
+				}
+				if (runStart < 0) {
+					runStart = match;
+					runCount = 0;
+				}
+				runCount++;
+				pos += BLOCK_SIZE;
+				lit = pos;
+				rolling = null;
+			} else if (pos + BLOCK_SIZE < len) {
+				rolling.roll(buf[pos], buf[pos + BLOCK_SIZE]);
+				pos++;
+			} else {
+				break;
+			}
+		}
+		if (len > lit) {
+			copy(out, runStart, runCount);
+			runStart = -1;
+			literal(out, buf, lit, len - lit);
+		}
+		copy(out, runStart, runCount);
+		out.writeByte(END);
+		out.writeInt((int) crc.getValue());
+	}
+
+	/**
+	 * The block matching the window at {@code pos}, or -1. The block
+	 * following the previous match is tried first, so runs stay together.
+	 */
+	private static int find(Map<Integer, List<Integer>> blocks, Signature signature, int weak, byte[] buf, int pos,
+			MessageDigest md5, int next) {
+		List<Integer> candidates = blocks.get(weak);
+		if (candidates == null) {
+			return -1;
+		}
+		md5.update(buf, pos, BLOCK_SIZE);
+		byte[] digest = md5.digest();
+		if (next >= 0 && next < signature.blocks() && signature.weak[next] == weak && signature.matches(next, digest)) {
+			return next;
+		}
+		for (int b : candidates) {
+			if (signature.matches(b, digest)) {
+				return b;
+			}
+		}
+		return -1;
+	}
+
+	private static void copy(DataOutputStream out, int first, int count) throws IOException {
+		if (first >= 0) {
+			out.writeByte(COPY);
+			out.writeInt(first);
+			out.writeInt(count);
+		}
+	}
+
+	private static void literal(DataOutputStream out, byte[] buf, int off, int len) throws IOException {
+		if (len > 0) {
+			out.writeByte(LITERAL);
+			out.writeInt(len);
+			out.write(buf, off, len);
+		}
+	}
+
+	/**
+	 * The new version of a file, read from a delta and the old copy it was
+	 * computed against. Once the end is reached, {@link #verified()} tells
+	 * whether the result has the checksum of the source.
+	 */
+	static final class Patch extends InputStream {
+		private final DataInputStream ops;
+		private final FileChannel basis;
+		private final CRC32C crc = new CRC32C();
+		private int literal;
+		private long copyPosition;
+		private long copyRemaining;
+		private boolean end;
+		private int expected;
+		/** Bytes taken from the old copy. */
+		long reused;
+
+		Patch(InputStream delta, Path basis) throws IOException {
+			this.ops = new DataInputStream(delta);
+			this.basis = FileChannel.open(basis, StandardOpenOption.READ, LinkOption.NOFOLLOW_LINKS);
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			while (true) {
+				if (literal > 0) {
+					int n = ops.read(b, off, Math.min(len, literal));
+					if (n < 0) {
+						throw new EOFException("Delta ended inside a literal");
+					}
+					literal -= n;
+					crc.update(b, off, n);
+					return n;
+				}
+				if (copyRemaining > 0) {
+					int n = basis.read(ByteBuffer.wrap(b, off, (int) Math.min(len, copyRemaining)), copyPosition);
+					if (n < 0) {
+						throw new EOFException("The previous copy is shorter than its signature");
+					}
+					copyPosition += n;
+					copyRemaining -= n;
+					reused += n;
+					crc.update(b, off, n);
+					return n;
+				}
+				if (end) {
+					return -1;
+				}
+				int op = ops.readUnsignedByte();
+				switch (op) {
+					case COPY:
+						copyPosition = (long) ops.readInt() * BLOCK_SIZE;
+						copyRemaining = (long) ops.readInt() * BLOCK_SIZE;
+						break;
+					case LITERAL:
+						literal = ops.readInt();
+						break;
+					case END:
+						expected = ops.readInt();
+						end = true;
+						break;
+					default:
+						throw new IOException("Unknown delta operation " + op);
+				}
+			}
+		}
+
+		boolean verified() {
+			return end && (int) crc.getValue() == expected;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				basis.close();
+			} finally {
+				ops.close();
+			}
+		}
+	}
+
+	/**
+	 * Runs on the node and returns the signature of the existing copy of
+	 * each selected file that is large enough for a delta, aligned with the
+	 * indices, or {@code null} when there is none.
+	 */
+	static final class Signatures extends MasterToSlaveFileCallable<Signature[]> {
+		private static final long serialVersionUID = 1L;
+		/** Only the selected entries. */
+		private final DataManifest selected;
+
+		Signatures(DataManifest manifest, int[] indices) {
+			this.selected = manifest.select(indices);
+		}
+
+		@Override
+		public Signature[] invoke(File dir, VirtualChannel channel) throws IOException {
+			Signature[] signatures = null;
+			for (int k = 0; k < selected.size(); k++) {
+				if (selected.isDirectory(k) || selected.getSize(k) < MIN_SIZE) {
+					continue;
+				}
+				Path copy = new File(dir, selected.getPath(k)).toPath();
+				if (!Files.isRegularFile(copy, LinkOption.NOFOLLOW_LINKS) || Files.size(copy) < BLOCK_SIZE) {
+					continue;
+				}
+				if (signatures == null) {
+					signatures = new Signature[selected.size()];
+				}
+				signatures[k] = signature(copy);
+			}
+			return signatures;
+		}
+	}
+}
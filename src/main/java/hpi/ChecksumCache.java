@@ -0,0 +1,172 @@
+package hpi;
+
+import hudson.Util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+/**
+ * CRC32C checksums of the source files, kept on the controller between
+ * builds, one file per source folder keyed by the path below it. Jobs that
+ * copy different parts of one folder thus share its checksums instead of
+ * replacing each other's. A source file is read to compute its checksum only
+ * when it is new or its size or modification time changed, so verifying
+ * copies of an unchanged folder reads each file once, for sending it. Files
+ * are read through {@link SourceFiles}, which never follows a symlink out of
+ * the folder, like the transfer itself.
+ */
+final class ChecksumCache {
+	private static final Logger log = Logger.getLogger(ChecksumCache.class.getName());
+	private static final int VERSION = 1;
+
+	/** Checksum files being updated, so concurrent builds of one folder read each file once. */
+	private static final KeyedLocks locks = new KeyedLocks();
+
+	private ChecksumCache() {
+	}
+
+	/**
+	 * Returns the manifest of {@code root} with the checksum of every file,
+	 * updating the stored checksums first if some files changed.
+	 */
+	static DataManifest apply(File dir, File root, DataManifest manifest) throws IOException {
+		Map<File, List<Integer>> byFolder = new LinkedHashMap<>();
+		for (int i = 0; i < manifest.size(); i++) {
+			if (!manifest.isDirectory(i)) {
+				byFolder.computeIfAbsent(manifest.getSourceFolder(root, i), f -> new ArrayList<>()).add(i);
+			}
+		}
+		int[] checksums = new int[manifest.size()];
+		try (SourceFiles files = new SourceFiles(manifest, root)) {
+			for (Map.Entry<File, List<Integer>> folder : byFolder.entrySet()) {
+				update(dir, folder.getKey(), manifest, folder.getValue(), files, checksums);
+			}
+		}
+		return manifest.withChecksums(checksums);
+	}
+
+	/**
+	 * Fills in the checksums of the given entries of one source folder,
+	 * reading the files that changed and storing their new checksums.
+	 */
+	private static void update(File dir, File folder, DataManifest manifest, List<Integer> entries,
+			SourceFiles files, int[] checksums) throws IOException {
+		String name = Util.getDigestOf(folder.getAbsolutePath()) + ".bin";
+		File file = new File(dir, name);
+		try (KeyedLocks.Held lock = locks.lock(name)) {
+			Map<String, long[]> known = read(file);
+			Set<String> listed = new HashSet<>();
+			byte[] buffer = new byte[DataTransfer.CHUNK_SIZE];
+			int computed = 0;
+			for (int i : entries) {
+				String path = manifest.getSourcePath(i);
+				listed.add(path);
+				long[] stored = known.get(path);
+				if (stored != null && stored[0] == manifest.getSize(i) && stored[1] == manifest.getLastModified(i)) {
+					checksums[i] = (int) stored[2];
+					continue;
+				}
+				try (SourceFiles.Opened opened = files.open(i)) {
+					CRC32C crc = new CRC32C();
+					int n;
+					while ((n = opened.in.read(buffer)) > 0) {
+						crc.update(buffer, 0, n);
+					}
+					checksums[i] = (int) crc.getValue();
+					// recorded for the version that was read, should the file have changed since the scan
+					known.put(path, new long[] {opened.size, opened.lastModified, checksums[i]});
+				}
+				computed++;
+			}
+			if (computed > 0) {
+				log.fine("Computed " + computed + " checksums for " + folder);
+				prune(known, listed, folder);
+				write(file, known);
+			}
+		}
+	}
+
+	/**
+	 * Drops the checksums of files that were deleted or changed since they
+	 * were stored; those of other parts of the folder are kept for the jobs
+	 * that copy them.
+	 */
+	private static void prune(Map<String, long[]> known, Set<String> listed, File folder) {
+		known.entrySet().removeIf(e -> {
+			if (listed.contains(e.getKey())) {
+				return false;
+			}
+			try {
+				BasicFileAttributes attrs = Files.readAttributes(new File(folder, e.getKey()).toPath(),
+						BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+				return !attrs.isRegularFile() || attrs.size() != e.getValue()[0]
+						|| attrs.lastModifiedTime().toMillis() != e.getValue()[1];
+			} catch (IOException x) {
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Reads size, modification time and checksum by path. A missing or
+	 * unreadable file counts as empty, everything is computed again.
+	 */
+	private static Map<String, long[]> read(File file) {
+		Map<String, long[]> known = new HashMap<>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+			if (in.readInt() != VERSION) {
+				return known;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String path = in.readUTF();
+				known.put(path, new long[] {in.readLong(), in.readLong(), in.readInt()});
+			}
+		} catch (NoSuchFileException e) {
+			// first verified copy of this folder
+		} catch (IOException e) {
+			log.warning("Ignoring unreadable checksum file " + file + ": " + e);
+			known.clear();
+		}
+		return known;
+	}
+
+	private static void write(File file, Map<String, long[]> known) throws IOException {
+		Files.createDirectories(file.getParentFile().toPath());
+		Path tmp = Files.createTempFile(file.getParentFile().toPath(), file.getName(), ".tmp");
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+				out.writeInt(VERSION);
+				out.writeInt(known.size());
+				for (Map.Entry<String, long[]> e : known.entrySet()) {
+					out.writeUTF(e.getKey());
+					out.writeLong(e.getValue()[0]);
+					out.writeLong(e.getValue()[1]);
+					out.writeInt((int) e.getValue()[2]);
+				}
+			}
+			Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package hpi;
+
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sizes and timings of one copy, shown on the build page. The phases of a
+ * copy run on different threads (the transfer may finish in the background),
+ * so each one is recorded separately as it completes.
+ */
+public class CopyDataAction implements RunAction2 {
+	private final String folder;
+	private final String node;
+	private int entries;
+	private long files;
+	private long bytes;
+	private long wireBytes;
+	private long scanMillis;
+	private long transferMillis;
+	private long chmodMillis;
+	private long deleteMillis = -1;
+
+	private transient Run<?, ?> run;
+
+	CopyDataAction(String folder, String node) {
+		this.folder = folder;
+		this.node = node;
+	}
+
+	/** Milliseconds elapsed since {@code start}, a {@link System#nanoTime()} value. */
+	static long millisSince(long start) {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+	}
+
+	synchronized void recordScan(DataManifest manifest, long millis) {
+		entries = manifest.size();
+		scanMillis += millis;
+	}
+
+	synchronized void recordTransfer(DataTransfer.Stats stats, long millis) {
+		files += stats.files;
+		bytes += stats.bytes;
+		wireBytes += stats.wireBytes;
+		transferMillis += millis;
+	}
+
+	synchronized void recordChmod(long millis) {
+		chmodMillis += millis;
+	}
+
+	synchronized void recordDelete(long millis) {
+		deleteMillis = Math.max(0, deleteMillis) + millis;
+	}
+
+	public String getFolder() {
+		return folder;
+	}
+
+	/** Name of the node the data was copied to, empty for the built-in node. */
+	public String getNode() {
+		return node;
+	}
+
+	public synchronized int getEntries() {
+		return entries;
+	}
+
+	public synchronized long getFiles() {
+		return files;
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized long getWireBytes() {
+		return wireBytes;
+	}
+
+	public synchronized long getScanMillis() {
+		return scanMillis;
+	}
+
+	public synchronized long getTransferMillis() {
+		return transferMillis;
+	}
+
+	public synchronized long getChmodMillis() {
+		return chmodMillis;
+	}
+
+	/** Time spent deleting the copied files, or -1 if they were kept. */
+	public synchronized long getDeleteMillis() {
+		return deleteMillis;
+	}
+
+	/** Transfer throughput, for display. */
+	public synchronized String getThroughput() {
+		double mb = transferMillis == 0 ? 0 : bytes * 1000.0 / transferMillis / (1024 * 1024);
+		return String.format(Locale.ROOT, "%.1f MB/s", mb);
+	}
+
+	public Run<?, ?> getRun() {
+		return run;
+	}
+
+	@Override
+	public void onAttached(Run<?, ?> r) {
+		run = r;
+	}
+
+	@Override
+	public void onLoad(Run<?, ?> r) {
+		run = r;
+	}
+
+	@Override
+	public String getIconFileName() {
+		return null;
+	}
+
+	@Override
+	public String getDisplayName() {
+		return "Copied data";
+	}
+
+	@Override
+	public String getUrlName() {
+		return null;
+	}
+}
@@ -0,0 +1,49 @@
+package hpi;
+
+import com.codahale.metrics.MetricRegistry;
+import jenkins.metrics.api.Metrics;
+import jenkins.model.Jenkins;
+
+/**
+ * Publishes the sizes and timings of each copy as histograms of the Metrics
+ * plugin, once per job and once per node, so slow agents and oversized
+ * folders stand out. Nothing is published when the plugin is not installed.
+ */
+final class CopyDataMetrics {
+	private static final String PREFIX = "copy-data";
+
+	private CopyDataMetrics() {
+	}
+
+	static void publish(String job, CopyDataAction stats) {
+		Jenkins jenkins = Jenkins.get();
+		if (jenkins.getPlugin("metrics") != null) {
+			Registry.update(job, stats);
+		}
+	}
+
+	/**
+	 * Kept apart so the Metrics classes are only loaded when the plugin is present.
+	 */
+	private static final class Registry {
+		static void update(String job, CopyDataAction stats) {
+			MetricRegistry registry = Metrics.metricRegistry();
+			String node = stats.getNode() == null || stats.getNode().isEmpty() ? "built-in" : stats.getNode();
+			for (String[] scope : new String[][] {{"job", job}, {"node", node}}) {
+				update(registry, scope, "files", stats.getFiles());
+				update(registry, scope, "bytes", stats.getBytes());
+				update(registry, scope, "wire-bytes", stats.getWireBytes());
+				update(registry, scope, "scan-millis", stats.getScanMillis());
+				update(registry, scope, "transfer-millis", stats.getTransferMillis());
+				update(registry, scope, "chmod-millis", stats.getChmodMillis());
+				if (stats.getDeleteMillis() >= 0) {
+					update(registry, scope, "delete-millis", stats.getDeleteMillis());
+				}
+			}
+		}
+
+		private static void update(MetricRegistry registry, String[] scope, String metric, long value) {
+			registry.histogram(MetricRegistry.name(PREFIX, scope[0], scope[1], metric)).update(value);
+		}
+	}
+}
@@ -29,10 +29,17 @@ package hpi;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Util;
+import hudson.init.Terminator;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
+import hudson.model.Computer;
+import hudson.model.InvisibleAction;
+import hudson.model.listeners.RunListener;
 import hudson.model.Item;
+import hudson.model.TaskListener;
+import hudson.slaves.WorkspaceList;
 import hudson.tasks.BuildWrapper;
 import hudson.tasks.BuildWrapperDescriptor;
 import hudson.util.FormValidation;
@@ -40,14 +47,25 @@ import static hudson.Functions.isWindows;
 import jenkins.model.Jenkins;
 
 // Java standard imports
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Function;
 import java.util.logging.Logger;
 
 // JSON/Stapler imports
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest2;
 import org.kohsuke.stapler.interceptor.RequirePOST;
@@ -56,9 +74,41 @@ public class CopyDataToWorkspacePlugin extends BuildWrapper {
 	private String folderPath;
 	private boolean makeFilesExecutable;
 	private boolean deleteFilesAfterBuild;
-	private String[] copiedFiles = new String[0];
+	private String targetSubdir;
+	private List<FolderMapping> additionalFolders = new ArrayList<>();
+	private String includes;
+	private String excludes;
+	private Boolean defaultExcludes;
+	private boolean incremental;
+	private boolean lazy;
+	private boolean prefetch;
+	private boolean useNodeCache;
+	private boolean hardLinkCachedFiles;
+	private boolean asyncCleanup;
+	private TransferCodec compression = TransferCodec.NONE;
+	private int compressionLevel = TransferCodec.DEFAULT_LEVEL;
+	private boolean prepackArchive;
+	private int parallelStreams = 1;
+	private boolean verifyChecksums;
+	private boolean deltaTransfer;
+	private boolean keepModifiedFiles;
+	private boolean retainData;
+	private LocalCopyMode localCopyMode = LocalCopyMode.STREAM;
+	/** Saved by older versions, which tracked the copied top-level names here; read and dropped. */
+	@Deprecated
+	private transient String[] copiedFiles;
 	
 	private static final Logger log = Logger.getLogger(CopyDataToWorkspacePlugin.class.getName()); 
+	private static final long MB = 1024L * 1024L;
+	static final String ARCHIVE_DIR = "copy-data-archives";
+	static final String CHECKSUM_DIR = "copy-data-checksums";
+	static final int MAX_STREAMS = 16;
+	/** Written into the workspace when copying in the background: size and path of every file. */
+	static final String INDEX_FILE = ".copy-data-index";
+	/** Created in the workspace once a background copy is complete. */
+	static final String READY_FILE = ".copy-data-ready";
+	/** Next to the workspace, receives the files copied during checkout. */
+	static final String STAGING_DIR = "copy-data-staging";
 	
 	@DataBoundConstructor
     public CopyDataToWorkspacePlugin(String folderPath, boolean makeFilesExecutable, boolean deleteFilesAfterBuild) {
@@ -79,71 +129,802 @@ public class CopyDataToWorkspacePlugin extends BuildWrapper {
 		return deleteFilesAfterBuild;
 	}
 
+	public String getTargetSubdir() {
+		return targetSubdir;
+	}
+
+	/**
+	 * Directory of the workspace the folder is copied into; the workspace
+	 * itself when empty.
+	 */
+	@DataBoundSetter
+	public void setTargetSubdir(String targetSubdir) {
+		this.targetSubdir = Util.fixEmptyAndTrim(targetSubdir);
+	}
+
+	public List<FolderMapping> getAdditionalFolders() {
+		return additionalFolders == null ? Collections.emptyList() : additionalFolders;
+	}
+
+	/**
+	 * More folders copied in the same transfer, each into its own directory.
+	 */
+	@DataBoundSetter
+	public void setAdditionalFolders(List<FolderMapping> additionalFolders) {
+		this.additionalFolders = additionalFolders == null ? new ArrayList<>() : new ArrayList<>(additionalFolders);
+	}
+
+	/**
+	 * All folders to copy, starting with the main one.
+	 */
+	List<FolderMapping> getMappings() {
+		List<FolderMapping> mappings = new ArrayList<>();
+		mappings.add(new FolderMapping(folderPath, targetSubdir));
+		mappings.addAll(getAdditionalFolders());
+		return mappings;
+	}
+
+	public String getIncludes() {
+		return includes;
+	}
+
+	/**
+	 * Comma-separated Ant-style patterns of the files to copy; all files when empty.
+	 */
+	@DataBoundSetter
+	public void setIncludes(String includes) {
+		this.includes = Util.fixEmptyAndTrim(includes);
+	}
+
+	public String getExcludes() {
+		return excludes;
+	}
+
+	/**
+	 * Comma-separated Ant-style patterns of the files not to copy.
+	 */
+	@DataBoundSetter
+	public void setExcludes(String excludes) {
+		this.excludes = Util.fixEmptyAndTrim(excludes);
+	}
+
+	public boolean getDefaultExcludes() {
+		return defaultExcludes == null || defaultExcludes;
+	}
+
+	/**
+	 * Whether Ant's default excludes ({@code .git/}, {@code .svn/}, editor
+	 * backups, ...) are left out of the copy, as they always were; on unless
+	 * turned off.
+	 */
+	@DataBoundSetter
+	public void setDefaultExcludes(boolean defaultExcludes) {
+		this.defaultExcludes = defaultExcludes;
+	}
+
+	public boolean getIncremental() {
+		return incremental;
+	}
+
+	/**
+	 * When set, only files that are missing in the workspace or differ from
+	 * the source in size or modification time are transferred.
+	 */
+	@DataBoundSetter
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
+
+	public boolean getLazy() {
+		return lazy;
+	}
+
+	/**
+	 * When set, the build starts right after the source is listed, and the
+	 * files are copied in the background while it runs.
+	 */
+	@DataBoundSetter
+	public void setLazy(boolean lazy) {
+		this.lazy = lazy;
+	}
+
+	public boolean getPrefetch() {
+		return prefetch;
+	}
+
+	/**
+	 * When set, the transfer to the node starts before the SCM checkout and
+	 * runs alongside it, into a staging directory next to the workspace. A
+	 * staging directory left by a failed copy is kept, so the next build
+	 * continues where it stopped.
+	 */
+	@DataBoundSetter
+	public void setPrefetch(boolean prefetch) {
+		this.prefetch = prefetch;
+	}
+
+	public boolean getUseNodeCache() {
+		return useNodeCache;
+	}
+
+	/**
+	 * When set, the data is transferred once per node into a shared cache and
+	 * each workspace is populated from that cache.
+	 */
+	@DataBoundSetter
+	public void setUseNodeCache(boolean useNodeCache) {
+		this.useNodeCache = useNodeCache;
+	}
+
+	public boolean getHardLinkCachedFiles() {
+		return hardLinkCachedFiles;
+	}
+
+	@DataBoundSetter
+	public void setHardLinkCachedFiles(boolean hardLinkCachedFiles) {
+		this.hardLinkCachedFiles = hardLinkCachedFiles;
+	}
+
+	public boolean getAsyncCleanup() {
+		return asyncCleanup;
+	}
+
+	/**
+	 * When set, copied files are moved out of the workspace at the end of the
+	 * build and deleted in the background on the node.
+	 */
+	@DataBoundSetter
+	public void setAsyncCleanup(boolean asyncCleanup) {
+		this.asyncCleanup = asyncCleanup;
+	}
+
+	public TransferCodec getCompression() {
+		return compression == null ? TransferCodec.NONE : compression;
+	}
+
+	/**
+	 * Compression used when the data is sent to an agent, none by default.
+	 * Files that are already compressed (archives, images, ...) are always
+	 * sent as they are.
+	 */
+	@DataBoundSetter
+	public void setCompression(TransferCodec compression) {
+		this.compression = compression;
+	}
+
+	public int getCompressionLevel() {
+		return compressionLevel == 0 ? TransferCodec.DEFAULT_LEVEL : compressionLevel;
+	}
+
+	@DataBoundSetter
+	public void setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = TransferCodec.clamp(compressionLevel);
+	}
+
+	public boolean getPrepackArchive() {
+		return prepackArchive;
+	}
+
+	/**
+	 * When set, the controller keeps the packed and compressed data of the
+	 * folder between builds and sends it to agents as long as the folder is
+	 * unchanged.
+	 */
+	@DataBoundSetter
+	public void setPrepackArchive(boolean prepackArchive) {
+		this.prepackArchive = prepackArchive;
+	}
+
+	public int getParallelStreams() {
+		return Math.max(1, parallelStreams);
+	}
+
+	/**
+	 * Number of concurrent transfers the data is split into, balanced by size.
+	 */
+	@DataBoundSetter
+	public void setParallelStreams(int parallelStreams) {
+		this.parallelStreams = Math.max(1, Math.min(MAX_STREAMS, parallelStreams));
+	}
+
+	public LocalCopyMode getLocalCopyMode() {
+		return localCopyMode == null ? LocalCopyMode.STREAM : localCopyMode;
+	}
+
+	/**
+	 * How files are copied when the node can read the source folder at its
+	 * path on the controller; anything else is streamed as usual.
+	 */
+	@DataBoundSetter
+	public void setLocalCopyMode(LocalCopyMode localCopyMode) {
+		this.localCopyMode = localCopyMode;
+	}
+
+	public boolean getVerifyChecksums() {
+		return verifyChecksums;
+	}
+
+	/**
+	 * When set, every copied file is checked against the CRC32C checksum of
+	 * its source while it is written, and copied again if it differs.
+	 */
+	@DataBoundSetter
+	public void setVerifyChecksums(boolean verifyChecksums) {
+		this.verifyChecksums = verifyChecksums;
+	}
+
+	public boolean getDeltaTransfer() {
+		return deltaTransfer;
+	}
+
+	/**
+	 * When set, large files an agent already has an older copy of are sent
+	 * as the blocks that changed; see {@link BlockDelta}.
+	 */
+	@DataBoundSetter
+	public void setDeltaTransfer(boolean deltaTransfer) {
+		this.deltaTransfer = deltaTransfer;
+	}
+
+	public boolean getKeepModifiedFiles() {
+		return keepModifiedFiles;
+	}
+
+	/**
+	 * When set, cleanup only deletes copied files that still match the
+	 * manifest; files the build modified stay in the workspace.
+	 */
+	@DataBoundSetter
+	public void setKeepModifiedFiles(boolean keepModifiedFiles) {
+		this.keepModifiedFiles = keepModifiedFiles;
+	}
+
+	public boolean getRetainData() {
+		return retainData;
+	}
+
+	/**
+	 * When set and the files are not deleted after the build, the workspace
+	 * records the version of the data it holds and the copy is skipped while
+	 * the source is unchanged; see {@link GenerationMarker}.
+	 */
+	@DataBoundSetter
+	public void setRetainData(boolean retainData) {
+		this.retainData = retainData;
+	}
+
+	@Override
+	public void preCheckout(AbstractBuild build, Launcher launcher, BuildListener listener)
+			throws IOException, InterruptedException {
+		if (!prefetch || lazy) {
+			return;
+		}
+		FilePath projectWorkspace = build.getWorkspace();
+		FilePath tempDir = WorkspaceList.tempDir(projectWorkspace);
+		if (tempDir == null) {
+			return;
+		}
+		final FilePath copyFrom = getSource();
+		final String job = build.getParent().getFullName();
+		final CopyDataAction stats = newAction(build);
+		long start = System.nanoTime();
+		final DataManifest manifest = scan();
+		stats.recordScan(manifest, CopyDataAction.millisSince(start));
+		GenerationMarker.State generation = checkGeneration(manifest, projectWorkspace);
+		if (generation != null && generation.current) {
+			// setUp finds the same data and skips the copy
+			return;
+		}
+		final int[] indices = selectEntries(manifest, projectWorkspace, listener);
+		final FilePath staging = tempDir.child(STAGING_DIR);
+		final NodeDataCache cache = useNodeCache ? NodeDataCache.of(build.getBuiltOn()) : null;
+		listener.getLogger().println("Copying data to the node during checkout");
+		Future<?> copy = Computer.threadPoolForRemoting.submit(() -> {
+			long copyStart = System.nanoTime();
+			// whatever an earlier build left there is not part of this copy
+			staging.deleteRecursive();
+			staging.mkdirs();
+			// already staged next to the workspace, so not shared with concurrent copies; the
+			// workspace holds the older copies deltas are computed against
+			DataTransfer.Stats transferred = transferEntries(copyFrom, manifest, indices, staging,
+					projectWorkspace, cache, job, build.getBuiltOnStr(), listener);
+			stats.recordTransfer(transferred, CopyDataAction.millisSince(copyStart));
+			return null;
+		});
+		build.addAction(new PrefetchAction(manifest, indices, staging, copy, stats, generation));
+	}
+
 	@Override
 	public Environment setUp(AbstractBuild build, final Launcher launcher,
 			BuildListener listener) throws IOException, InterruptedException 
 	{
 		log.finest("Recognize project workspace and folder");
 		FilePath projectWorkspace = build.getWorkspace();
+		FilePath copyFrom = getSource();
+		final String job = build.getParent().getFullName();
 		
-        Jenkins jenkins = Jenkins.get();
-        FilePath jenkinsRoot = jenkins.getRootPath();
-		
-		// Restrict access to userContent directory only
-		FilePath userContentDir = new FilePath(jenkinsRoot, "userContent");
-		FilePath copyFrom = new FilePath(userContentDir, folderPath);
-		
-		// Verify if the final path is within allowed directory
-		if (!copyFrom.getRemote().startsWith(userContentDir.getRemote() + java.io.File.separator) && 
-			!copyFrom.getRemote().equals(userContentDir.getRemote())) {
-		    throw new IOException("The source path must be within the JENKINS_HOME/userContent directory");
+		PrefetchAction prefetched = (PrefetchAction) build.getAction(PrefetchAction.class);
+		if (prefetched != null) {
+			build.removeAction(prefetched);
+			build.addAction(prefetched.stats);
+			completePrefetch(prefetched, projectWorkspace, job, listener);
+			markGeneration(projectWorkspace, prefetched.manifest, prefetched.generation, listener);
+			return environment(prefetched.manifest, null, prefetched.stats);
 		}
-		
-		if (!copyFrom.exists()) {
-		    throw new IOException("The specified source path does not exist: " + copyFrom.getRemote());
-		}
-		
-		// Check for symlinks that could allow directory traversal
-		if (copyFrom.containsSymlink(userContentDir, java.nio.file.LinkOption.NOFOLLOW_LINKS)) {
-		    throw new IOException("The specified path contains symlinks which are not allowed for security reasons");
+
+		log.finest("Recording manifest");
+		final CopyDataAction stats = newAction(build);
+		build.addAction(stats);
+		long start = System.nanoTime();
+		final DataManifest manifest = scan();
+		stats.recordScan(manifest, CopyDataAction.millisSince(start));
+		final GenerationMarker.State generation = checkGeneration(manifest, projectWorkspace);
+		if (generation != null && generation.current) {
+			listener.getLogger().println("The workspace already holds this data (generation "
+					+ generation.generation + "), skipping the copy");
+			stats.recordTransfer(new DataTransfer.Stats(), 0);
+			if (lazy) {
+				// the build may be waiting for the files to arrive
+				writeIndex(projectWorkspace, manifest);
+				projectWorkspace.child(READY_FILE).touch(System.currentTimeMillis());
+				return environment(manifest, CompletableFuture.completedFuture(null), stats);
+			}
+			return environment(manifest, null, stats);
 		}
-		
+
 		log.finest("Copying data from " + copyFrom.toURI() + " to " + projectWorkspace.toURI());
-        copyFrom.copyRecursiveTo(projectWorkspace);
-        
-		log.finest("Saving names");
-		saveNames(copyFrom);
-		
+		final NodeDataCache cache = useNodeCache ? NodeDataCache.of(build.getBuiltOn()) : null;
+		final Future<?> background;
+		if (lazy) {
+			writeIndex(projectWorkspace, manifest);
+			listener.getLogger().println("Copying data in the background, the file list is in " + INDEX_FILE);
+			background = Computer.threadPoolForRemoting.submit(() -> {
+				copyAndChmod(copyFrom, manifest, projectWorkspace, cache, stats, job, listener);
+				markGeneration(projectWorkspace, manifest, generation, listener);
+				projectWorkspace.child(READY_FILE).touch(System.currentTimeMillis());
+				return null;
+			});
+		} else {
+			background = null;
+			copyAndChmod(copyFrom, manifest, projectWorkspace, cache, stats, job, listener);
+			markGeneration(projectWorkspace, manifest, generation, listener);
+		}
+		return environment(manifest, background, stats);
+	}
+
+	/**
+	 * When the data is retained in the workspace, compares the folders and
+	 * version it holds with the manifest; {@code null} when it is not retained.
+	 */
+	private GenerationMarker.State checkGeneration(DataManifest manifest, FilePath projectWorkspace)
+			throws IOException, InterruptedException {
+		if (!retainData || deleteFilesAfterBuild) {
+			return null;
+		}
+		return projectWorkspace.act(new GenerationMarker.Check(
+				GenerationMarker.fingerprint(manifest, new File(getSource().getRemote()), makeFilesExecutable)));
+	}
+
+	/**
+	 * Records the completely copied data in the workspace, if it is retained,
+	 * and removes the files of the previous data that left the source.
+	 */
+	private static void markGeneration(FilePath projectWorkspace, DataManifest manifest,
+			GenerationMarker.State generation, TaskListener listener) throws IOException, InterruptedException {
+		if (generation == null) {
+			return;
+		}
+		int removed = projectWorkspace.act(new GenerationMarker.Write(generation, manifest));
+		if (removed > 0) {
+			listener.getLogger().println("Removed " + removed
+					+ " files of the previous data that are no longer in the source");
+		}
+	}
+
+	private CopyDataAction newAction(AbstractBuild<?, ?> build) {
+		return new CopyDataAction(describeFolders(), build.getBuiltOnStr());
+	}
+
+	/**
+	 * The source folders, as shown with the copy statistics.
+	 */
+	String describeFolders() {
+		StringBuilder folders = new StringBuilder();
+		for (FolderMapping mapping : getMappings()) {
+			if (folders.length() > 0) {
+				folders.append(", ");
+			}
+			folders.append(mapping.getFolderPath());
+		}
+		return folders.toString();
+	}
+
+	/**
+	 * Copies the data and makes it executable, recording the time of each step.
+	 */
+	void copyAndChmod(FilePath copyFrom, DataManifest manifest, FilePath projectWorkspace, NodeDataCache cache,
+			CopyDataAction stats, String job, TaskListener listener) throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		stats.recordTransfer(copyData(copyFrom, manifest, projectWorkspace, cache, job, listener),
+				CopyDataAction.millisSince(start));
+
 		log.finest("Making executable");
 		if (makeFilesExecutable) {
-			seeFolder(projectWorkspace);
+			start = System.nanoTime();
+			makeExecutable(projectWorkspace, manifest);
+			stats.recordChmod(CopyDataAction.millisSince(start));
 		}
-		
+	}
+
+	/**
+	 * Waits for the copy started before checkout and moves the staged files
+	 * into the workspace. The staging directory is removed even if the copy
+	 * or the move fails.
+	 */
+	private void completePrefetch(PrefetchAction prefetched, FilePath projectWorkspace, String job,
+			BuildListener listener)
+			throws IOException, InterruptedException {
+		try {
+			prefetched.copy.get();
+			int moved = projectWorkspace.act(new MoveStagedFiles(prefetched.manifest, prefetched.indices,
+					prefetched.staging.getRemote()));
+			log.finest("Moved " + moved + " prefetched files into the workspace");
+		} catch (ExecutionException e) {
+			throw new IOException("Copying data during checkout failed", e.getCause());
+		} finally {
+			prefetched.staging.deleteRecursive();
+		}
+		if (incremental) {
+			// the checkout may have removed files that were up to date when the copy started
+			long start = System.nanoTime();
+			prefetched.stats.recordTransfer(copyData(getSource(), prefetched.manifest, projectWorkspace, null,
+					job, listener), CopyDataAction.millisSince(start));
+		}
+		if (makeFilesExecutable) {
+			long start = System.nanoTime();
+			makeExecutable(projectWorkspace, prefetched.manifest);
+			prefetched.stats.recordChmod(CopyDataAction.millisSince(start));
+		}
+	}
+
+	private Environment environment(final DataManifest manifest, final Future<?> background,
+			final CopyDataAction stats) {
 		return new Environment() {
 			@Override
 			public boolean tearDown(AbstractBuild build, BuildListener listener)
 					throws IOException, InterruptedException {
+				boolean copied = true;
+				if (background != null) {
+					copied = awaitBackgroundCopy(background, listener);
+					build.getWorkspace().child(INDEX_FILE).delete();
+					build.getWorkspace().child(READY_FILE).delete();
+				}
 				if (deleteFilesAfterBuild) {
-					FilePath projectWorkspace = build.getWorkspace();
-
-					for (String str : copiedFiles) {
-						log.finest("Deleting file = " + str);
-						FilePath child = new FilePath(projectWorkspace, str);
-						if (child.isDirectory()) {
-							child.deleteRecursive();
-						} else {
-							child.delete();
-						}
-					}
+					long start = System.nanoTime();
+					deleteCopiedFiles(build.getWorkspace(), manifest, listener);
+					stats.recordDelete(CopyDataAction.millisSince(start));
 				}
-				return true;
+				CopyDataMetrics.publish(build.getParent().getFullName(), stats);
+				return copied;
 			}
 		};
 	}
+
+	/**
+	 * Carries a copy started in {@link #preCheckout} over to {@link #setUp}
+	 * of the same build; the wrapper itself is shared by all builds.
+	 */
+	private static final class PrefetchAction extends InvisibleAction {
+		private final transient DataManifest manifest;
+		private final transient int[] indices;
+		private final transient FilePath staging;
+		private final transient Future<?> copy;
+		private final transient CopyDataAction stats;
+		private final transient GenerationMarker.State generation;
+
+		PrefetchAction(DataManifest manifest, int[] indices, FilePath staging, Future<?> copy,
+				CopyDataAction stats, GenerationMarker.State generation) {
+			this.manifest = manifest;
+			this.indices = indices;
+			this.staging = staging;
+			this.copy = copy;
+			this.stats = stats;
+			this.generation = generation;
+		}
+	}
+
+	/**
+	 * Waits for a copy started during checkout when the build ended before
+	 * {@link #setUp}, for instance because the checkout failed, and removes
+	 * the staged files so they cannot end up in the workspace of a later
+	 * build.
+	 */
+	@Extension
+	public static final class PrefetchCleanup extends RunListener<AbstractBuild<?, ?>> {
+		@Override
+		public void onCompleted(AbstractBuild<?, ?> build, TaskListener listener) {
+			PrefetchAction prefetched = build.getAction(PrefetchAction.class);
+			if (prefetched == null) {
+				return;
+			}
+			build.removeAction(prefetched);
+			try {
+				prefetched.copy.get();
+			} catch (ExecutionException e) {
+				log.finest("Unused copy during checkout failed: " + e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			try {
+				prefetched.staging.deleteRecursive();
+			} catch (IOException e) {
+				log.warning("Failed to remove " + prefetched.staging + ": " + e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Writes the list of files being copied, one size and path per line, so
+	 * the build knows what to expect before the files arrive.
+	 */
+	private static void writeIndex(FilePath projectWorkspace, DataManifest manifest)
+			throws IOException, InterruptedException {
+		StringBuilder index = new StringBuilder();
+		for (int i = 0; i < manifest.size(); i++) {
+			if (!manifest.isDirectory(i)) {
+				index.append(manifest.getSize(i)).append('\t').append(manifest.getPath(i)).append('\n');
+			}
+		}
+		projectWorkspace.child(INDEX_FILE).write(index.toString(), "UTF-8");
+	}
+
+	/**
+	 * Waits for a background copy that is still running when the build ends,
+	 * so cleanup never races with files still arriving.
+	 */
+	private static boolean awaitBackgroundCopy(Future<?> background, BuildListener listener)
+			throws InterruptedException {
+		if (!background.isDone()) {
+			listener.getLogger().println("Waiting for the background copy to finish");
+		}
+		try {
+			background.get();
+			return true;
+		} catch (ExecutionException e) {
+			listener.error("Background copy failed: " + e.getCause());
+			return false;
+		}
+	}
+
+	/**
+	 * JENKINS_HOME/userContent, the only directory data may be copied from.
+	 */
+	private static FilePath getUserContentDir() {
+		return new FilePath(Jenkins.get().getRootPath(), "userContent");
+	}
+
+	private boolean isCombined() {
+		return targetSubdir != null || !getAdditionalFolders().isEmpty();
+	}
+
+	/**
+	 * The configured folder, resolved below JENKINS_HOME/userContent. When
+	 * several folders are copied or a target directory is set, this is
+	 * userContent itself and the manifest knows the folder of each entry.
+	 */
+	FilePath getSource() {
+		return isCombined() ? getUserContentDir() : new FilePath(getUserContentDir(), folderPath);
+	}
+
+	/**
+	 * Lists the source folders, limited to the include and exclude patterns.
+	 * The same walk validates each folder: it fails if the path leaves
+	 * userContent, does not exist, or contains symlinks anywhere. Several
+	 * folders are combined into one manifest of workspace paths. With
+	 * verification, the manifest carries the stored checksum of every file.
+	 * Unless disabled globally, the manifest comes from the {@link ManifestIndex}
+	 * while the folders are unchanged.
+	 */
+	DataManifest scan() throws IOException, InterruptedException {
+		DescriptorImpl descriptor = (DescriptorImpl) getDescriptor();
+		if (!descriptor.getIndexSourceFolders()) {
+			return scanFolders();
+		}
+		String userContentDir = getUserContentDir().getRemote();
+		StringBuilder key = new StringBuilder();
+		List<Path> folders = new ArrayList<>();
+		for (FolderMapping mapping : getMappings()) {
+			Path folder = Paths.get(userContentDir, mapping.getFolderPath()).normalize();
+			// a path outside userContent is rejected before anything is watched
+			DataManifest.Scanner.verify(folder, userContentDir);
+			folders.add(folder);
+			key.append(folder).append('\0').append(normalizeTarget(mapping.getTargetSubdir())).append('\0');
+		}
+		key.append(includes).append('\0').append(excludes).append('\0').append(getDefaultExcludes()).append('\0')
+				.append(verifyChecksums);
+		return descriptor.getIndex().get(key.toString(), folders, this::scanFolders);
+	}
+
+	private DataManifest scanFolders() throws IOException, InterruptedException {
+		FilePath userContentDir = getUserContentDir();
+		PathFilter filter = PathFilter.compile(includes, excludes, getDefaultExcludes());
+		DataManifest manifest;
+		if (!isCombined()) {
+			manifest = getSource().act(new DataManifest.Scanner(userContentDir.getRemote(), false, filter));
+		} else {
+			List<DataManifest> parts = new ArrayList<>();
+			List<String> sources = new ArrayList<>();
+			List<String> targets = new ArrayList<>();
+			for (FolderMapping mapping : getMappings()) {
+				FilePath source = new FilePath(userContentDir, mapping.getFolderPath());
+				parts.add(source.act(new DataManifest.Scanner(userContentDir.getRemote(), false, filter)));
+				sources.add(source.getRemote());
+				targets.add(normalizeTarget(mapping.getTargetSubdir()));
+			}
+			manifest = DataManifest.combine(parts, sources, targets);
+		}
+		if (verifyChecksums) {
+			manifest = ChecksumCache.apply(new File(Jenkins.get().getRootDir(), CHECKSUM_DIR),
+					new File(getSource().getRemote()), manifest);
+		}
+		return manifest;
+	}
+
+	/**
+	 * Turns a target directory into a relative '/' separated path, rejecting
+	 * anything that would leave the workspace.
+	 */
+	static String normalizeTarget(String targetSubdir) throws IOException {
+		if (targetSubdir == null) {
+			return "";
+		}
+		String path = targetSubdir.replace('\\', '/');
+		if (path.startsWith("/")) {
+			throw new IOException("The target subdirectory must be within the workspace: " + targetSubdir);
+		}
+		StringBuilder target = new StringBuilder();
+		for (String segment : path.split("/")) {
+			if (segment.isEmpty() || segment.equals(".")) {
+				continue;
+			}
+			if (segment.equals("..") || segment.contains(":")) {
+				throw new IOException("The target subdirectory must be within the workspace: " + targetSubdir);
+			}
+			if (target.length() > 0) {
+				target.append('/');
+			}
+			target.append(segment);
+		}
+		return target.toString();
+	}
+
     @Extension
     public static class DescriptorImpl extends BuildWrapperDescriptor {
+        private long nodeCacheSizeLimit = 10240;
+        private long archiveCacheSizeLimit = 10240;
+        private int maxConcurrentCopies;
+        private long bandwidthLimit;
+        private long nodeBandwidthLimit;
+        private boolean indexSourceFolders;
+        private final transient CopyScheduler scheduler = new CopyScheduler();
+        private final transient ManifestIndex index = new ManifestIndex();
+
         public DescriptorImpl() {
             super(CopyDataToWorkspacePlugin.class);
+            load();
+            configureScheduler();
+        }
+
+        /**
+         * Maximum size of the data cache on each node, in megabytes.
+         */
+        public long getNodeCacheSizeLimit() {
+            return nodeCacheSizeLimit;
+        }
+
+        @DataBoundSetter
+        public void setNodeCacheSizeLimit(long nodeCacheSizeLimit) {
+            this.nodeCacheSizeLimit = Math.max(0, nodeCacheSizeLimit);
+        }
+
+        /**
+         * Maximum size of the pre-packed archives kept on the controller, in
+         * megabytes.
+         */
+        public long getArchiveCacheSizeLimit() {
+            return archiveCacheSizeLimit;
+        }
+
+        @DataBoundSetter
+        public void setArchiveCacheSizeLimit(long archiveCacheSizeLimit) {
+            this.archiveCacheSizeLimit = Math.max(0, archiveCacheSizeLimit);
+        }
+
+        /**
+         * Maximum number of copies reading from the controller at the same
+         * time, 0 for no limit.
+         */
+        public int getMaxConcurrentCopies() {
+            return maxConcurrentCopies;
+        }
+
+        @DataBoundSetter
+        public void setMaxConcurrentCopies(int maxConcurrentCopies) {
+            this.maxConcurrentCopies = Math.max(0, maxConcurrentCopies);
+            configureScheduler();
+        }
+
+        /**
+         * Bandwidth shared by all copies, in MB/s, 0 for no limit.
+         */
+        public long getBandwidthLimit() {
+            return bandwidthLimit;
+        }
+
+        @DataBoundSetter
+        public void setBandwidthLimit(long bandwidthLimit) {
+            this.bandwidthLimit = Math.max(0, bandwidthLimit);
+            configureScheduler();
+        }
+
+        /**
+         * Bandwidth of the copies to each node, in MB/s, 0 for no limit.
+         */
+        public long getNodeBandwidthLimit() {
+            return nodeBandwidthLimit;
+        }
+
+        @DataBoundSetter
+        public void setNodeBandwidthLimit(long nodeBandwidthLimit) {
+            this.nodeBandwidthLimit = Math.max(0, nodeBandwidthLimit);
+            configureScheduler();
+        }
+
+        /**
+         * Whether the manifests of unchanged source folders are kept between
+         * builds instead of listing the folders every time. Off by default.
+         */
+        public boolean getIndexSourceFolders() {
+            return indexSourceFolders;
+        }
+
+        @DataBoundSetter
+        public void setIndexSourceFolders(boolean indexSourceFolders) {
+            this.indexSourceFolders = indexSourceFolders;
+            if (!indexSourceFolders) {
+                index.clear();
+            }
+        }
+
+        CopyScheduler getScheduler() {
+            return scheduler;
+        }
+
+        ManifestIndex getIndex() {
+            return index;
+        }
+
+        @Terminator
+        public static void closeIndex() {
+            Jenkins jenkins = Jenkins.getInstanceOrNull();
+            DescriptorImpl descriptor = jenkins == null ? null : jenkins.getDescriptorByType(DescriptorImpl.class);
+            if (descriptor != null) {
+                descriptor.getIndex().clear();
+            }
+        }
+
+        private void configureScheduler() {
+            scheduler.configure(maxConcurrentCopies, bandwidthLimit, nodeBandwidthLimit);
+        }
+
+        @Override
+        public boolean configure(StaplerRequest2 req, JSONObject json) throws FormException {
+            req.bindJSON(this, json);
+            save();
+            return true;
         }
         
 		@RequirePOST
@@ -154,6 +935,24 @@ public class CopyDataToWorkspacePlugin extends BuildWrapper {
             return validateFolderPath(value);
         }
 
+		@RequirePOST
+        public FormValidation doCheckTargetSubdir(@AncestorInPath AbstractProject project, @QueryParameter String value) {
+            if (project != null) {
+                project.checkPermission(Item.CONFIGURE);
+            }
+            return validateTargetSubdir(value);
+        }
+
+		/**
+		 * Target directories follow the folder path rules, but may be empty.
+		 */
+		public static FormValidation validateTargetSubdir(String value) {
+			if (value == null || value.trim().isEmpty()) {
+				return FormValidation.ok();
+			}
+			return validateFolderPath(value);
+		}
+
 		public static FormValidation validateFolderPath(String value) {
 			if (value == null || value.trim().isEmpty()) {
 				return FormValidation.error("Path cannot be empty");
@@ -207,28 +1006,179 @@ public class CopyDataToWorkspacePlugin extends BuildWrapper {
             if (validation.kind == FormValidation.Kind.ERROR) {
                 throw new FormException(validation.getMessage(), "folderPath");
             }
+            validation = validateTargetSubdir(formData.optString("targetSubdir"));
+            if (validation.kind == FormValidation.Kind.ERROR) {
+                throw new FormException(validation.getMessage(), "targetSubdir");
+            }
             return super.newInstance(req, formData);
         }
     }
-    void seeFolder(FilePath path) throws IOException, InterruptedException {
-    	List<FilePath> children = path.list();
-		for (FilePath child : children) {
-			if (child.isDirectory()) {
-				seeFolder(child);
-			} else {
-				child.chmod(0755);
-			}
-		}
+    /**
+     * Transfers the entries of the manifest, or only the outdated ones in
+     * incremental mode, either through the node cache or directly.
+     */
+    DataTransfer.Stats copyData(FilePath copyFrom, DataManifest manifest, FilePath projectWorkspace,
+    		NodeDataCache cache, String job, TaskListener listener) throws IOException, InterruptedException {
+    	int[] indices = selectEntries(manifest, projectWorkspace, listener);
+    	return copyEntries(copyFrom, manifest, indices, projectWorkspace, cache, job, listener);
     }
-    
-    void saveNames(FilePath path) throws IOException, InterruptedException {
-    	List<FilePath> children = path.list();
-    	this.copiedFiles = new String[children.size()];
-    	int i = 0;
-		for (FilePath child : children) {
-			copiedFiles[i] = child.getName(); 
-			i++;
-			log.finest("Saving name = " + child.getName());
-		}
+
+    /**
+     * Indices of the entries to copy: all of them, or in incremental mode
+     * those that are missing or outdated in the workspace.
+     */
+    int[] selectEntries(DataManifest manifest, FilePath projectWorkspace, TaskListener listener)
+    		throws IOException, InterruptedException {
+    	if (!incremental) {
+    		return manifest.all();
+    	}
+    	int[] indices = projectWorkspace.act(new DataManifest.OutdatedEntries(manifest));
+    	listener.getLogger().println("Incremental copy: " + indices.length + " of "
+    			+ manifest.size() + " entries changed since the last copy");
+    	return indices;
+    }
+
+    /**
+     * Copies the selected entries into {@code target}. Files the node can
+     * read from the source folder directly are linked or copied there when
+     * the local copy mode allows it; the rest is sent, through the node cache
+     * when one is given.
+     */
+    DataTransfer.Stats copyEntries(final FilePath copyFrom, final DataManifest manifest, final int[] indices,
+    		FilePath target, NodeDataCache cache, final String job, final TaskListener listener)
+    		throws IOException, InterruptedException {
+    	if (indices.length == 0) {
+    		return new DataTransfer.Stats();
+    	}
+    	if (getLocalCopyMode() == LocalCopyMode.STREAM) {
+    		return streamEntries(copyFrom, manifest, indices, target, cache, job, listener);
+    	}
+    	long start = System.nanoTime();
+    	// with hard links, making the files executable would change the source files too
+    	boolean hardLinks = getLocalCopyMode() == LocalCopyMode.HARD_LINK && !makeFilesExecutable;
+    	int[] remaining = target.act(new LinkLocalFiles(copyFrom.getRemote(), manifest, indices, hardLinks));
+    	DataTransfer.Stats stats = DataTransfer.Stats.count(manifest, indices);
+    	DataTransfer.Stats streamed = DataTransfer.Stats.count(manifest, remaining);
+    	stats.files -= streamed.files;
+    	stats.bytes -= streamed.bytes;
+    	if (stats.files > 0) {
+    		listener.getLogger().println((hardLinks ? "Linked " : "Copied ") + stats.files
+    				+ " files from the source folder on the node");
+    	}
+    	if (remaining.length > 0) {
+    		stats.add(streamEntries(copyFrom, manifest, remaining, target, cache, job, listener));
+    	}
+    	stats.nanos = System.nanoTime() - start;
+    	return stats;
+    }
+
+    /**
+     * Sends the selected entries to {@code target}, through the node cache
+     * when one is given.
+     */
+    private DataTransfer.Stats streamEntries(final FilePath copyFrom, final DataManifest manifest,
+    		final int[] indices, FilePath target, NodeDataCache cache, final String job,
+    		final TaskListener listener) throws IOException, InterruptedException {
+    	Computer computer = target.toComputer();
+    	final String node = computer == null ? "" : computer.getName();
+    	// a background copy delivers files one by one and does not wait for another build
+    	if (cache != null || lazy) {
+    		return transferEntries(copyFrom, manifest, indices, target, target, cache, job, node, listener);
+    	}
+    	// builds copying the same data to this node at the same time share one transfer
+    	return InFlightCopies.copy(node, new File(copyFrom.getRemote()), makeFilesExecutable, manifest, indices,
+    			target, listener,
+    			(dir, selected) -> transferEntries(copyFrom, manifest, selected, dir, dir, null, job, node, listener));
+    }
+
+    /**
+     * Sends the selected entries over the channel once a copy slot is free,
+     * or populates the target from the node cache, which only waits for a
+     * slot when it has to be filled. Without the node cache, deltas are
+     * computed against the files in {@code basis}, a directory on the same
+     * node as {@code target}.
+     */
+    DataTransfer.Stats transferEntries(FilePath copyFrom, DataManifest manifest, int[] indices,
+    		FilePath target, FilePath basis, NodeDataCache cache, String job, String node, TaskListener listener)
+    		throws IOException, InterruptedException {
+    	if (indices.length == 0) {
+    		return new DataTransfer.Stats();
+    	}
+    	final DescriptorImpl descriptor = (DescriptorImpl) getDescriptor();
+    	if (cache != null) {
+    		// only filling the cache takes a copy slot, a hit copies on the node; no hard links
+    		// when the files are made executable, which would change the cached files too
+    		return cache.copy(new File(copyFrom.getRemote()), manifest, indices, target,
+    				hardLinkCachedFiles && !makeFilesExecutable,
+    				descriptor.getNodeCacheSizeLimit() * MB, listener, (staging, older) -> {
+    					try (CopyScheduler.Permit permit = descriptor.getScheduler().acquire(job, node, listener)) {
+    						return newTransfer(permit).copy(copyFrom, manifest, manifest.all(), staging, older,
+    								listener.getLogger());
+    					}
+    				});
+    	}
+    	try (CopyScheduler.Permit permit = descriptor.getScheduler().acquire(job, node, listener)) {
+    		DataTransfer.Stats stats = newTransfer(permit).copy(copyFrom, manifest, indices, target, basis,
+    				listener.getLogger());
+    		listener.getLogger().println(stats);
+    		return stats;
+    	}
+    }
+
+    private DataTransfer newTransfer(CopyScheduler.Permit permit) {
+    	File archiveDir = prepackArchive ? new File(Jenkins.get().getRootDir(), ARCHIVE_DIR) : null;
+    	long archiveSizeLimit = ((DescriptorImpl) getDescriptor()).getArchiveCacheSizeLimit() * MB;
+    	return new DataTransfer(getCompression(), getCompressionLevel(), archiveDir, archiveSizeLimit,
+    			getParallelStreams(), permit, deltaTransfer);
+    }
+
+    /**
+     * Makes the copied files executable with a single call to the node that
+     * holds the workspace.
+     */
+    void makeExecutable(FilePath projectWorkspace, DataManifest manifest) throws IOException, InterruptedException {
+    	int count = projectWorkspace.act(new MakeExecutable(manifest));
+    	log.finest("Made " + count + " files executable");
+    }
+
+    /**
+     * Removes the copied entries from the workspace, or moves them aside for
+     * background deletion when asynchronous cleanup is enabled.
+     */
+    void deleteCopiedFiles(FilePath projectWorkspace, DataManifest manifest, TaskListener listener)
+    		throws IOException, InterruptedException {
+    	log.finest("Deleting " + manifest.size() + " copied entries");
+    	deleteCopiedFiles(projectWorkspace, trash -> new DeleteCopiedFiles(manifest, trash, keepModifiedFiles),
+    			listener);
+    }
+
+    /**
+     * Removes the entries of the manifest stored in {@code manifestFile} on
+     * the node of the workspace, deleting that file as well.
+     */
+    void deleteCopiedFiles(FilePath projectWorkspace, String manifestFile, TaskListener listener)
+    		throws IOException, InterruptedException {
+    	deleteCopiedFiles(projectWorkspace, trash -> new DeleteCopiedFiles(manifestFile, trash, keepModifiedFiles),
+    			listener);
+    }
+
+    private void deleteCopiedFiles(FilePath projectWorkspace, Function<String, DeleteCopiedFiles> deletion,
+    		TaskListener listener) throws IOException, InterruptedException {
+    	String trash = null;
+    	if (asyncCleanup) {
+    		FilePath tempDir = WorkspaceList.tempDir(projectWorkspace);
+    		if (tempDir != null) {
+    			trash = tempDir.child("copy-data-trash-" + UUID.randomUUID()).getRemote();
+    		}
+    	}
+
+    	DeleteCopiedFiles.Result result = projectWorkspace.act(deletion.apply(trash));
+    	if (trash == null) {
+    		listener.getLogger().println("Deleted copied data: " + result);
+    	} else {
+    		listener.getLogger().println("Moved " + result.files
+    				+ " copied files aside, deleting them in the background"
+    				+ (result.kept > 0 ? "; kept " + result.kept + " modified files" : ""));
+    	}
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,342 @@
+package hpi;
+
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.slaves.WorkspaceList;
+import hudson.util.FormValidation;
+import org.jenkinsci.Symbol;
+import org.jenkinsci.plugins.workflow.steps.BodyExecutionCallback;
+import org.jenkinsci.plugins.workflow.steps.GeneralNonBlockingStepExecution;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Pipeline counterpart of {@link CopyDataToWorkspacePlugin}. The data is
+ * copied into the current workspace before the body runs and, if requested,
+ * deleted again once it has finished. Copying and deleting happen on a
+ * background thread, so the Pipeline is not blocked during large transfers.
+ * The step returns the copy statistics:
+ *
+ * <pre>
+ * def stats = copyDataToWorkspace(folderPath: 'datasets/large', deleteFilesAfterBuild: true) {
+ *     sh './run-tests.sh'
+ * }
+ * echo "Copied ${stats.files} files"
+ * </pre>
+ */
+public class CopyDataToWorkspaceStep extends Step {
+	private final String folderPath;
+	private boolean makeFilesExecutable;
+	private boolean deleteFilesAfterBuild;
+	private String targetSubdir;
+	private List<FolderMapping> additionalFolders = new ArrayList<>();
+	private String includes;
+	private String excludes;
+	private boolean defaultExcludes = true;
+	private boolean verifyChecksums;
+	private boolean keepModifiedFiles;
+
+	@DataBoundConstructor
+	public CopyDataToWorkspaceStep(String folderPath) {
+		this.folderPath = folderPath;
+	}
+
+	public String getFolderPath() {
+		return folderPath;
+	}
+
+	public boolean getMakeFilesExecutable() {
+		return makeFilesExecutable;
+	}
+
+	@DataBoundSetter
+	public void setMakeFilesExecutable(boolean makeFilesExecutable) {
+		this.makeFilesExecutable = makeFilesExecutable;
+	}
+
+	public boolean getDeleteFilesAfterBuild() {
+		return deleteFilesAfterBuild;
+	}
+
+	/**
+	 * When set, the copied files are deleted once the body has finished.
+	 */
+	@DataBoundSetter
+	public void setDeleteFilesAfterBuild(boolean deleteFilesAfterBuild) {
+		this.deleteFilesAfterBuild = deleteFilesAfterBuild;
+	}
+
+	public String getTargetSubdir() {
+		return targetSubdir;
+	}
+
+	@DataBoundSetter
+	public void setTargetSubdir(String targetSubdir) {
+		this.targetSubdir = Util.fixEmptyAndTrim(targetSubdir);
+	}
+
+	public List<FolderMapping> getAdditionalFolders() {
+		return additionalFolders;
+	}
+
+	@DataBoundSetter
+	public void setAdditionalFolders(List<FolderMapping> additionalFolders) {
+		this.additionalFolders = additionalFolders == null ? new ArrayList<>() : new ArrayList<>(additionalFolders);
+	}
+
+	public String getIncludes() {
+		return includes;
+	}
+
+	@DataBoundSetter
+	public void setIncludes(String includes) {
+		this.includes = Util.fixEmptyAndTrim(includes);
+	}
+
+	public String getExcludes() {
+		return excludes;
+	}
+
+	@DataBoundSetter
+	public void setExcludes(String excludes) {
+		this.excludes = Util.fixEmptyAndTrim(excludes);
+	}
+
+	public boolean getDefaultExcludes() {
+		return defaultExcludes;
+	}
+
+	@DataBoundSetter
+	public void setDefaultExcludes(boolean defaultExcludes) {
+		this.defaultExcludes = defaultExcludes;
+	}
+
+	public boolean getVerifyChecksums() {
+		return verifyChecksums;
+	}
+
+	@DataBoundSetter
+	public void setVerifyChecksums(boolean verifyChecksums) {
+		this.verifyChecksums = verifyChecksums;
+	}
+
+	public boolean getKeepModifiedFiles() {
+		return keepModifiedFiles;
+	}
+
+	@DataBoundSetter
+	public void setKeepModifiedFiles(boolean keepModifiedFiles) {
+		this.keepModifiedFiles = keepModifiedFiles;
+	}
+
+	@Override
+	public StepExecution start(StepContext context) throws Exception {
+		return new Execution(context, this);
+	}
+
+	static final class Execution extends GeneralNonBlockingStepExecution {
+		private static final long serialVersionUID = 1L;
+
+		private final String folderPath;
+		private final boolean makeFilesExecutable;
+		private final boolean deleteFilesAfterBuild;
+		private final String targetSubdir;
+		private final ArrayList<FolderMapping> additionalFolders;
+		private final String includes;
+		private final String excludes;
+		private final boolean defaultExcludes;
+		private final boolean verifyChecksums;
+		private final boolean keepModifiedFiles;
+		/** Not kept across a controller restart; see {@link #manifestFile}. */
+		private transient DataManifest manifest;
+		/** Copy of the manifest on the node, for the cleanup, so it stays out of the Pipeline state. */
+		private String manifestFile;
+		private transient CopyDataAction stats;
+		private Map<String, Object> result;
+
+		Execution(StepContext context, CopyDataToWorkspaceStep step) {
+			super(context);
+			this.folderPath = step.folderPath;
+			this.makeFilesExecutable = step.makeFilesExecutable;
+			this.deleteFilesAfterBuild = step.deleteFilesAfterBuild;
+			this.targetSubdir = step.targetSubdir;
+			this.additionalFolders = new ArrayList<>(step.additionalFolders);
+			this.includes = step.includes;
+			this.excludes = step.excludes;
+			this.defaultExcludes = step.defaultExcludes;
+			this.verifyChecksums = step.verifyChecksums;
+			this.keepModifiedFiles = step.keepModifiedFiles;
+		}
+
+		@Override
+		public boolean start() throws Exception {
+			FormValidation validation = CopyDataToWorkspacePlugin.DescriptorImpl.validateFolderPath(folderPath);
+			if (validation.kind == FormValidation.Kind.ERROR) {
+				throw new AbortException("folderPath: " + validation.getMessage());
+			}
+			validation = CopyDataToWorkspacePlugin.DescriptorImpl.validateTargetSubdir(targetSubdir);
+			if (validation.kind == FormValidation.Kind.ERROR) {
+				throw new AbortException("targetSubdir: " + validation.getMessage());
+			}
+			run(this::copy);
+			return false;
+		}
+
+		/**
+		 * The wrapper holds the copy logic; the step only supplies its options.
+		 */
+		private CopyDataToWorkspacePlugin copier() {
+			CopyDataToWorkspacePlugin copier = new CopyDataToWorkspacePlugin(folderPath, makeFilesExecutable,
+					deleteFilesAfterBuild);
+			copier.setTargetSubdir(targetSubdir);
+			copier.setAdditionalFolders(additionalFolders);
+			copier.setIncludes(includes);
+			copier.setExcludes(excludes);
+			copier.setDefaultExcludes(defaultExcludes);
+			copier.setVerifyChecksums(verifyChecksums);
+			copier.setKeepModifiedFiles(keepModifiedFiles);
+			return copier;
+		}
+
+		private void copy() throws Exception {
+			FilePath workspace = getContext().get(FilePath.class);
+			TaskListener listener = getContext().get(TaskListener.class);
+			CopyDataToWorkspacePlugin copier = copier();
+			FilePath copyFrom = copier.getSource();
+			Computer computer = getContext().get(Computer.class);
+			stats = new CopyDataAction(copier.describeFolders(), computer == null ? "" : computer.getName());
+			Run<?, ?> run = getContext().get(Run.class);
+			run.addAction(stats);
+			long start = System.nanoTime();
+			manifest = copier.scan();
+			stats.recordScan(manifest, CopyDataAction.millisSince(start));
+			start = System.nanoTime();
+			DataTransfer.Stats transferred = copier.copyData(copyFrom, manifest, workspace, null, run.getParent().getFullName(),
+					listener);
+			stats.recordTransfer(transferred, CopyDataAction.millisSince(start));
+			if (makeFilesExecutable) {
+				start = System.nanoTime();
+				copier.makeExecutable(workspace, manifest);
+				stats.recordChmod(CopyDataAction.millisSince(start));
+			}
+			result = toMap(transferred);
+			if (deleteFilesAfterBuild) {
+				storeManifest(workspace);
+			}
+			getContext().newBodyInvoker().withCallback(new Cleanup()).start();
+		}
+
+		/**
+		 * Keeps the manifest next to the workspace until the cleanup, as a
+		 * large one would bloat the Pipeline state saved on the controller.
+		 */
+		private void storeManifest(FilePath workspace) throws Exception {
+			FilePath tempDir = WorkspaceList.tempDir(workspace);
+			if (tempDir == null) {
+				return;
+			}
+			FilePath file = tempDir.child("copy-data-manifest-" + UUID.randomUUID());
+			file.act(new DataManifest.Store(manifest));
+			manifestFile = file.getRemote();
+		}
+
+		private void cleanup() throws Exception {
+			long start = System.nanoTime();
+			if (deleteFilesAfterBuild) {
+				FilePath workspace = getContext().get(FilePath.class);
+				TaskListener listener = getContext().get(TaskListener.class);
+				if (manifestFile != null) {
+					copier().deleteCopiedFiles(workspace, manifestFile, listener);
+				} else {
+					// nowhere to keep it on the node, so it is listed again after a restart
+					copier().deleteCopiedFiles(workspace, manifest != null ? manifest : copier().scan(), listener);
+				}
+			}
+			// the statistics are not kept across a controller restart
+			if (stats != null) {
+				if (deleteFilesAfterBuild) {
+					stats.recordDelete(CopyDataAction.millisSince(start));
+				}
+				CopyDataMetrics.publish(getContext().get(Run.class).getParent().getFullName(), stats);
+			}
+		}
+
+		private Map<String, Object> toMap(DataTransfer.Stats stats) {
+			Map<String, Object> map = new LinkedHashMap<>();
+			map.put("entries", manifest.size());
+			map.put("files", stats.files);
+			map.put("bytes", stats.bytes);
+			map.put("wireBytes", stats.wireBytes);
+			map.put("durationMillis", stats.nanos / 1000000);
+			return map;
+		}
+
+		/**
+		 * Deletes the copied files after the body, off the Pipeline thread, and
+		 * completes the step with the copy statistics or the body's failure.
+		 */
+		private final class Cleanup extends BodyExecutionCallback {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public void onSuccess(final StepContext context, Object bodyResult) {
+				run(() -> {
+					cleanup();
+					context.onSuccess(result);
+				});
+			}
+
+			@Override
+			public void onFailure(final StepContext context, final Throwable t) {
+				run(() -> {
+					try {
+						cleanup();
+					} catch (Exception e) {
+						t.addSuppressed(e);
+					}
+					context.onFailure(t);
+				});
+			}
+		}
+	}
+
+	@Extension
+	@Symbol("copyDataToWorkspace")
+	public static class DescriptorImpl extends StepDescriptor {
+		@Override
+		public Set<? extends Class<?>> getRequiredContext() {
+			return Set.of(FilePath.class, Run.class, TaskListener.class);
+		}
+
+		@Override
+		public String getFunctionName() {
+			return "copyDataToWorkspace";
+		}
+
+		@Override
+		public String getDisplayName() {
+			return "Copy data to workspace";
+		}
+
+		@Override
+		public boolean takesImplicitBlockArgument() {
+			return true;
+		}
+	}
+}
@@ -0,0 +1,221 @@
+package hpi;
+
+import hudson.model.TaskListener;
+
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how many copies read from the controller at the same time and how
+ * fast they send. Copies beyond the limit wait in one queue per job; a free
+ * slot goes to the job that has waited longest since it was last served, so
+ * a job that starts many builds at once does not hold back the others. The
+ * bandwidth limits apply to all copies together and to each node.
+ */
+final class CopyScheduler {
+	private static final long MB = 1024L * 1024L;
+
+	private int maxConcurrentCopies;
+	private int running;
+	/** Waiting copies by job, in the order the jobs are served. */
+	private final Map<String, Deque<Ticket>> waiting = new LinkedHashMap<>();
+	private final TokenBucket total = new TokenBucket();
+	private final Map<String, TokenBucket> nodes = new HashMap<>();
+	private long nodeRate;
+
+	/**
+	 * Applies new limits; 0 means unlimited. Bandwidths are in MB/s.
+	 */
+	synchronized void configure(int maxConcurrentCopies, long bandwidth, long nodeBandwidth) {
+		this.maxConcurrentCopies = Math.max(0, maxConcurrentCopies);
+		total.setRate(Math.max(0, bandwidth) * MB);
+		nodeRate = Math.max(0, nodeBandwidth) * MB;
+		for (TokenBucket bucket : nodes.values()) {
+			bucket.setRate(nodeRate);
+		}
+		grant();
+	}
+
+	/**
+	 * Waits for a copy slot. The returned permit must be closed once the
+	 * copy has finished.
+	 */
+	Permit acquire(String job, String node, TaskListener listener) throws InterruptedException {
+		long start = System.nanoTime();
+		synchronized (this) {
+			if (waiting.isEmpty() && hasFreeSlot()) {
+				running++;
+				return new Permit(buckets(node));
+			}
+			Ticket ticket = new Ticket();
+			waiting.computeIfAbsent(job, k -> new ArrayDeque<>()).add(ticket);
+			listener.getLogger().println("Waiting for a copy slot, " + running + " copies running");
+			try {
+				while (!ticket.granted) {
+					wait();
+				}
+			} catch (InterruptedException e) {
+				if (ticket.granted) {
+					release();
+				} else {
+					Deque<Ticket> queue = waiting.get(job);
+					queue.remove(ticket);
+					if (queue.isEmpty()) {
+						waiting.remove(job);
+					}
+				}
+				throw e;
+			}
+		}
+		listener.getLogger().println("Waited " + CopyDataAction.millisSince(start) + " ms for a copy slot");
+		return new Permit(buckets(node));
+	}
+
+	private boolean hasFreeSlot() {
+		return maxConcurrentCopies == 0 || running < maxConcurrentCopies;
+	}
+
+	private synchronized List<TokenBucket> buckets(String node) {
+		List<TokenBucket> buckets = new ArrayList<>();
+		buckets.add(total);
+		buckets.add(nodes.computeIfAbsent(node == null ? "" : node, k -> {
+			TokenBucket bucket = new TokenBucket();
+			bucket.setRate(nodeRate);
+			return bucket;
+		}));
+		return buckets;
+	}
+
+	private synchronized void release() {
+		running--;
+		grant();
+	}
+
+	/**
+	 * Hands free slots to the waiting jobs in turn: each job gets one slot
+	 * and then goes to the back of the line.
+	 */
+	private void grant() {
+		while (hasFreeSlot() && !waiting.isEmpty()) {
+			Iterator<Map.Entry<String, Deque<Ticket>>> jobs = waiting.entrySet().iterator();
+			Map.Entry<String, Deque<Ticket>> next = jobs.next();
+			jobs.remove();
+			next.getValue().poll().granted = true;
+			running++;
+			if (!next.getValue().isEmpty()) {
+				waiting.put(next.getKey(), next.getValue());
+			}
+		}
+		notifyAll();
+	}
+
+	synchronized int getRunning() {
+		return running;
+	}
+
+	private static final class Ticket {
+		boolean granted;
+	}
+
+	/**
+	 * A copy slot, with the bandwidth limits that apply to the copy.
+	 */
+	final class Permit implements Closeable {
+		private final List<TokenBucket> buckets;
+		private boolean released;
+
+		Permit(List<TokenBucket> buckets) {
+			this.buckets = buckets;
+		}
+
+		/**
+		 * Wraps the stream the copy sends through, so it is slowed down to
+		 * the bandwidth limits.
+		 */
+		OutputStream throttle(OutputStream out) {
+			return new ThrottledOutputStream(out, buckets);
+		}
+
+		@Override
+		public void close() {
+			synchronized (CopyScheduler.this) {
+				if (!released) {
+					released = true;
+					release();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Bytes per second, with up to one second of unused allowance saved up.
+	 * A sender may overdraw the bucket and then sleeps off the debt, so
+	 * concurrent senders share the rate.
+	 */
+	static final class TokenBucket {
+		private long rate;
+		private double tokens;
+		private long last = System.nanoTime();
+
+		synchronized void setRate(long rate) {
+			this.rate = rate;
+			tokens = Math.min(tokens, rate);
+		}
+
+		void take(long bytes) throws InterruptedIOException {
+			long sleep;
+			synchronized (this) {
+				if (rate <= 0) {
+					return;
+				}
+				long now = System.nanoTime();
+				tokens = Math.min(rate, tokens + (now - last) * (double) rate / TimeUnit.SECONDS.toNanos(1));
+				last = now;
+				tokens -= bytes;
+				sleep = tokens >= 0 ? 0 : (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / rate);
+			}
+			if (sleep > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleep);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while limiting the copy bandwidth");
+				}
+			}
+		}
+	}
+
+	static final class ThrottledOutputStream extends FilterOutputStream {
+		private final List<TokenBucket> buckets;
+
+		ThrottledOutputStream(OutputStream out, List<TokenBucket> buckets) {
+			super(out);
+			this.buckets = buckets;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			for (TokenBucket bucket : buckets) {
+				bucket.take(len);
+			}
+			out.write(b, off, len);
+		}
+	}
+}
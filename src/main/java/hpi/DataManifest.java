@@ -0,0 +1,664 @@
+package hpi;
+
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Listing of everything below a source folder: the relative path, size,
+ * modification time and optionally the CRC32C checksum of each entry. Paths
+ * use '/' as separator and are kept sorted, so two manifests of the same tree
+ * compare entry by entry.
+ * <p>
+ * Paths are stored front-coded in a single byte array: each entry only keeps
+ * the bytes that differ from the previous path, with a full path every
+ * {@value #RESTART_INTERVAL} entries so that any entry can be decoded without
+ * reading the whole table. Deep trees with long shared directory names thus
+ * cost little more than their file names.
+ * <p>
+ * A manifest combined from several source folders lists every entry under
+ * its path in the workspace and remembers, for each entry, the folder it
+ * comes from, so all folders travel in one transfer.
+ */
+final class DataManifest implements Serializable {
+	private static final long serialVersionUID = 3L;
+
+	/** Size recorded for directory entries. */
+	static final long DIRECTORY = -1;
+	static final int RESTART_INTERVAL = 16;
+
+	private final int count;
+	private final byte[] names;
+	private final int[] restarts;
+	private final long[] sizes;
+	private final long[] lastModified;
+	/** CRC32C of each file, or {@code null} when checksums were not computed. */
+	private final int[] checksums;
+	/** Source folder and workspace prefix of each part of a combined manifest, otherwise {@code null}. */
+	private final String[] sources;
+	private final String[] targets;
+	private final int[] sourceOf;
+
+	private DataManifest(int count, byte[] names, int[] restarts, long[] sizes, long[] lastModified,
+			int[] checksums, String[] sources, String[] targets, int[] sourceOf) {
+		this.count = count;
+		this.names = names;
+		this.restarts = restarts;
+		this.sizes = sizes;
+		this.lastModified = lastModified;
+		this.checksums = checksums;
+		this.sources = sources;
+		this.targets = targets;
+		this.sourceOf = sourceOf;
+	}
+
+	/**
+	 * Combines the manifests of several folders; the entries of each part are
+	 * placed below its target directory, which is created along with its
+	 * parents. Directories shared by several parts are merged, but two parts
+	 * may not provide the same file.
+	 *
+	 * @param sources absolute path of the folder each part was scanned from
+	 * @param targets directory of each part relative to the workspace, or ""
+	 */
+	static DataManifest combine(List<DataManifest> parts, List<String> sources, List<String> targets)
+			throws IOException {
+		Builder builder = new Builder();
+		builder.sources = sources.toArray(new String[0]);
+		builder.targets = new String[targets.size()];
+		for (int k = 0; k < parts.size(); k++) {
+			String target = targets.get(k);
+			builder.targets[k] = target.isEmpty() ? "" : target + "/";
+			for (int slash = target.indexOf('/'); !target.isEmpty(); slash = target.indexOf('/', slash + 1)) {
+				builder.add(new Builder.Entry(slash < 0 ? target : target.substring(0, slash), DIRECTORY, 0, 0, k));
+				if (slash < 0) {
+					break;
+				}
+			}
+			DataManifest part = parts.get(k);
+			for (int i = 0; i < part.size(); i++) {
+				builder.add(new Builder.Entry(builder.targets[k] + part.getPath(i), part.sizes[i],
+						part.lastModified[i], part.hasChecksums() ? part.checksums[i] : 0, k));
+			}
+			if (!part.hasChecksums() && part.size() > 0) {
+				builder.withChecksums = false;
+			}
+		}
+		try {
+			return builder.build();
+		} catch (IllegalArgumentException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	int size() {
+		return count;
+	}
+
+	String getPath(int i) {
+		if (i < 0 || i >= count) {
+			throw new IndexOutOfBoundsException("Entry " + i + " of " + count);
+		}
+		byte[] path = new byte[64];
+		int length = 0;
+		int[] pos = {restarts[i / RESTART_INTERVAL]};
+		for (int e = i - i % RESTART_INTERVAL; e <= i; e++) {
+			int shared = readVarInt(names, pos);
+			int suffix = readVarInt(names, pos);
+			if (shared + suffix > path.length) {
+				path = Arrays.copyOf(path, Math.max(path.length * 2, shared + suffix));
+			}
+			System.arraycopy(names, pos[0], path, shared, suffix);
+			pos[0] += suffix;
+			length = shared + suffix;
+		}
+		return new String(path, 0, length, StandardCharsets.UTF_8);
+	}
+
+	long getSize(int i) {
+		return sizes[i];
+	}
+
+	long getLastModified(int i) {
+		return lastModified[i];
+	}
+
+	boolean isDirectory(int i) {
+		return sizes[i] == DIRECTORY;
+	}
+
+	/**
+	 * The file entry {@code i} is read from: below {@code root} for a single
+	 * folder, below the folder of its part for a combined manifest.
+	 */
+	File getSourceFile(File root, int i) {
+		return new File(getSourceFolder(root, i), getSourcePath(i));
+	}
+
+	/**
+	 * The source folder entry {@code i} comes from: {@code root} for a single
+	 * folder, the folder of its part for a combined manifest.
+	 */
+	File getSourceFolder(File root, int i) {
+		return sources == null ? root : new File(sources[sourceOf[i]]);
+	}
+
+	/**
+	 * The path of entry {@code i} relative to its source folder.
+	 */
+	String getSourcePath(int i) {
+		return sources == null ? getPath(i) : getPath(i).substring(targets[sourceOf[i]].length());
+	}
+
+	/**
+	 * Identifies where the entries are read from, for keys of data derived
+	 * from the sources.
+	 */
+	String describeSources(File root) {
+		if (sources == null) {
+			return root.getAbsolutePath();
+		}
+		StringBuilder description = new StringBuilder();
+		for (int k = 0; k < sources.length; k++) {
+			description.append(sources[k]).append(" -> ").append(targets[k]).append('\n');
+		}
+		return description.toString();
+	}
+
+	/**
+	 * Returns this manifest with the given CRC32C checksum for each entry.
+	 */
+	DataManifest withChecksums(int[] checksums) {
+		if (checksums.length != count) {
+			throw new IllegalArgumentException(checksums.length + " checksums for " + count + " entries");
+		}
+		return new DataManifest(count, names, restarts, sizes, lastModified, checksums.clone(), sources, targets,
+				sourceOf);
+	}
+
+	boolean hasChecksums() {
+		return checksums != null;
+	}
+
+	int getChecksum(int i) {
+		if (checksums == null) {
+			throw new IllegalStateException("Manifest was built without checksums");
+		}
+		return checksums[i];
+	}
+
+	/**
+	 * Sum of the sizes of all files in the manifest.
+	 */
+	long totalSize() {
+		long total = 0;
+		for (long size : sizes) {
+			if (size != DIRECTORY) {
+				total += size;
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Number of files, not counting directories.
+	 */
+	int fileCount() {
+		int files = 0;
+		for (long size : sizes) {
+			if (size != DIRECTORY) {
+				files++;
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Indices of all entries, in manifest order.
+	 */
+	int[] all() {
+		int[] indices = new int[count];
+		for (int i = 0; i < count; i++) {
+			indices[i] = i;
+		}
+		return indices;
+	}
+
+	/**
+	 * The entries listed in {@code indices}, which have to be in manifest
+	 * order, as a manifest of their own: entry {@code k} of the result is
+	 * entry {@code indices[k]} of this one. Callables that work on a share of
+	 * the entries carry only that share to the node.
+	 */
+	DataManifest select(int[] indices) {
+		boolean everything = indices.length == count;
+		for (int k = 0; k < indices.length; k++) {
+			if (k > 0 && indices[k] <= indices[k - 1]) {
+				throw new IllegalArgumentException("Entries are not in manifest order at " + indices[k]);
+			}
+			everything &= indices[k] == k;
+		}
+		if (everything) {
+			return this;
+		}
+		Builder builder = new Builder();
+		builder.withChecksums = checksums != null;
+		builder.sources = sources;
+		builder.targets = targets;
+		for (int i : indices) {
+			builder.add(new Builder.Entry(getPath(i), sizes[i], lastModified[i],
+					checksums != null ? checksums[i] : 0, sourceOf != null ? sourceOf[i] : 0));
+		}
+		return builder.build();
+	}
+
+	/**
+	 * SHA-256 over every path, size and modification time. Two scans of an
+	 * unchanged tree produce the same fingerprint, so it identifies a version
+	 * of the source folder without reading file contents.
+	 */
+	String fingerprint() {
+		MessageDigest digest = sha256();
+		byte[] buffer = new byte[16];
+		for (int i = 0; i < count; i++) {
+			digest.update(getPath(i).getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			putLong(buffer, 0, sizes[i]);
+			putLong(buffer, 8, lastModified[i] / 1000);
+			digest.update(buffer);
+		}
+		return Util.toHexString(digest.digest());
+	}
+
+	/**
+	 * Identifies this version of the data as read from {@code root}: the
+	 * source folders with their targets, the fingerprint and the checksums
+	 * if there are any. Data derived from the sources is keyed by it, so two
+	 * folders that happen to have the same listing never share it.
+	 */
+	String identity(File root) {
+		MessageDigest digest = sha256();
+		digest.update(describeSources(root).getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+		digest.update(fingerprint().getBytes(StandardCharsets.UTF_8));
+		if (checksums != null) {
+			byte[] buffer = new byte[8];
+			for (int checksum : checksums) {
+				putLong(buffer, 0, checksum);
+				digest.update(buffer);
+			}
+		}
+		return Util.toHexString(digest.digest());
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void putLong(byte[] b, int off, long v) {
+		for (int i = 7; i >= 0; i--) {
+			b[off + i] = (byte) v;
+			v >>>= 8;
+		}
+	}
+
+	/**
+	 * Tells whether the file found at {@code f} still matches entry {@code i}.
+	 * Modification times are compared with one second granularity because the
+	 * node cache is filled through a tar stream that does not keep milliseconds.
+	 */
+	boolean matches(int i, File f) {
+		if (isDirectory(i)) {
+			return f.isDirectory();
+		}
+		return f.isFile() && f.length() == sizes[i]
+				&& f.lastModified() / 1000 == lastModified[i] / 1000;
+	}
+
+	static int checksum(File f) throws IOException {
+		CRC32C crc = new CRC32C();
+		byte[] buffer = new byte[64 * 1024];
+		try (InputStream in = Files.newInputStream(f.toPath())) {
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				crc.update(buffer, 0, n);
+			}
+		}
+		return (int) crc.getValue();
+	}
+
+	private static void writeVarInt(ByteArrayOutputStream out, int v) {
+		while ((v & ~0x7F) != 0) {
+			out.write((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		out.write(v);
+	}
+
+	private static int readVarInt(byte[] b, int[] pos) {
+		int v = 0;
+		int shift = 0;
+		int x;
+		do {
+			x = b[pos[0]++];
+			v |= (x & 0x7F) << shift;
+			shift += 7;
+		} while ((x & 0x80) != 0);
+		return v;
+	}
+
+	/**
+	 * Collects entries in any order and encodes them into a sorted manifest.
+	 */
+	static final class Builder {
+		private final List<Entry> entries = new ArrayList<>();
+		private boolean withChecksums = true;
+		private String[] sources;
+		private String[] targets;
+
+		Builder add(String path, long size, long lastModified) {
+			withChecksums = false;
+			entries.add(new Entry(path, size, lastModified, 0, 0));
+			return this;
+		}
+
+		Builder add(String path, long size, long lastModified, int checksum) {
+			entries.add(new Entry(path, size, lastModified, checksum, 0));
+			return this;
+		}
+
+		private void add(Entry entry) {
+			entries.add(entry);
+		}
+
+		/**
+		 * Sorts and encodes the entries. Directories listed more than once are
+		 * kept once; a file listed more than once is rejected.
+		 */
+		DataManifest build() {
+			entries.sort(Comparator.comparing(e -> e.path));
+			for (int i = entries.size() - 1; i > 0; i--) {
+				Entry e = entries.get(i);
+				Entry previous = entries.get(i - 1);
+				if (e.path.equals(previous.path)) {
+					if (e.size != DIRECTORY || previous.size != DIRECTORY) {
+						throw new IllegalArgumentException("Several source folders contain " + e.path);
+					}
+					entries.remove(i);
+				}
+			}
+			int n = entries.size();
+			ByteArrayOutputStream names = new ByteArrayOutputStream();
+			int[] restarts = new int[(n + RESTART_INTERVAL - 1) / RESTART_INTERVAL];
+			long[] sizes = new long[n];
+			long[] lastModified = new long[n];
+			int[] checksums = withChecksums && n > 0 ? new int[n] : null;
+			int[] sourceOf = sources != null ? new int[n] : null;
+			byte[] previous = new byte[0];
+			for (int i = 0; i < n; i++) {
+				Entry e = entries.get(i);
+				byte[] path = e.path.getBytes(StandardCharsets.UTF_8);
+				int shared = 0;
+				if (i % RESTART_INTERVAL == 0) {
+					restarts[i / RESTART_INTERVAL] = names.size();
+				} else {
+					int max = Math.min(previous.length, path.length);
+					while (shared < max && previous[shared] == path[shared]) {
+						shared++;
+					}
+				}
+				writeVarInt(names, shared);
+				writeVarInt(names, path.length - shared);
+				names.write(path, shared, path.length - shared);
+				previous = path;
+				sizes[i] = e.size;
+				lastModified[i] = e.lastModified;
+				if (checksums != null) {
+					checksums[i] = e.checksum;
+				}
+				if (sourceOf != null) {
+					sourceOf[i] = e.source;
+				}
+			}
+			return new DataManifest(n, names.toByteArray(), restarts, sizes, lastModified, checksums,
+					sources, targets, sourceOf);
+		}
+
+		private static final class Entry {
+			final String path;
+			final long size;
+			final long lastModified;
+			final int checksum;
+			final int source;
+
+			Entry(String path, long size, long lastModified, int checksum, int source) {
+				this.path = path;
+				this.size = size;
+				this.lastModified = lastModified;
+				this.checksum = checksum;
+				this.source = source;
+			}
+		}
+	}
+
+	/**
+	 * Walks {@code root} without following symlinks and records every file and
+	 * directory below it, optionally with the CRC32C of each file.
+	 * <p>
+	 * When a verification root is given, the same walk also validates the
+	 * source: {@code root} has to exist and lie below the verification root,
+	 * and neither it, the directories leading to it nor anything inside it may
+	 * be a symlink. An optional {@link PathFilter} limits the manifest to the
+	 * matching files; directories it rules out are not entered at all.
+	 */
+	static final class Scanner extends MasterToSlaveFileCallable<DataManifest> {
+		private static final long serialVersionUID = 3L;
+		static final String OUTSIDE_ROOT = "The source path must be within the JENKINS_HOME/userContent directory";
+		static final String SYMLINKS = "The specified path contains symlinks which are not allowed for security reasons";
+
+		private final String verificationRoot;
+		private final boolean checksums;
+		private final PathFilter filter;
+
+		Scanner() {
+			this(null, false);
+		}
+
+		Scanner(boolean checksums) {
+			this(null, checksums);
+		}
+
+		Scanner(String verificationRoot, boolean checksums) {
+			this(verificationRoot, checksums, null);
+		}
+
+		Scanner(String verificationRoot, boolean checksums, PathFilter filter) {
+			this.verificationRoot = verificationRoot;
+			this.checksums = checksums;
+			this.filter = filter;
+		}
+
+		@Override
+		public DataManifest invoke(File root, VirtualChannel channel) throws IOException {
+			final Path base = root.toPath().normalize();
+			if (verificationRoot != null) {
+				verify(base, verificationRoot);
+			}
+			final Builder builder = new Builder();
+			// with include patterns, directories are only recorded once a file below them matches
+			final Map<String, Long> pendingDirectories = new HashMap<>();
+			final boolean lazyDirectories = filter != null && filter.hasIncludes();
+			Files.walkFileTree(base, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+					if (dir.equals(base)) {
+						return FileVisitResult.CONTINUE;
+					}
+					String path = relative(dir);
+					if (filter != null && !filter.entersDirectory(path)) {
+						return FileVisitResult.SKIP_SUBTREE;
+					}
+					if (lazyDirectories) {
+						pendingDirectories.put(path, attrs.lastModifiedTime().toMillis());
+					} else {
+						add(path, DIRECTORY, attrs.lastModifiedTime().toMillis(), 0);
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					String path = relative(file);
+					if (filter != null && !filter.includesFile(path)) {
+						return FileVisitResult.CONTINUE;
+					}
+					if (verificationRoot != null && attrs.isSymbolicLink()) {
+						throw new IOException(SYMLINKS);
+					}
+					if (lazyDirectories) {
+						addParents(path);
+					}
+					add(path, attrs.size(), attrs.lastModifiedTime().toMillis(),
+							checksums ? checksum(file.toFile()) : 0);
+					return FileVisitResult.CONTINUE;
+				}
+
+				private String relative(Path p) {
+					return base.relativize(p).toString().replace(File.separatorChar, '/');
+				}
+
+				private void addParents(String path) {
+					for (int slash = path.lastIndexOf('/'); slash > 0; slash = path.lastIndexOf('/', slash - 1)) {
+						String parent = path.substring(0, slash);
+						Long mtime = pendingDirectories.remove(parent);
+						if (mtime == null) {
+							// already recorded, and so are its parents
+							return;
+						}
+						add(parent, DIRECTORY, mtime, 0);
+					}
+				}
+
+				private void add(String path, long size, long mtime, int checksum) {
+					if (checksums) {
+						builder.add(path, size, mtime, checksum);
+					} else {
+						builder.add(path, size, mtime);
+					}
+				}
+			});
+			return builder.build();
+		}
+
+		/**
+		 * Checks the source itself and every directory between it and the
+		 * verification root; the walk then covers everything below it.
+		 */
+		static void verify(Path base, String verificationRoot) throws IOException {
+			Path top = Paths.get(verificationRoot).normalize();
+			if (!base.startsWith(top)) {
+				throw new IOException(OUTSIDE_ROOT);
+			}
+			try {
+				Files.readAttributes(base, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			} catch (NoSuchFileException e) {
+				throw new IOException("The specified source path does not exist: " + base);
+			}
+			for (Path p = base; !p.equals(top); p = p.getParent()) {
+				if (Files.isSymbolicLink(p)) {
+					throw new IOException(SYMLINKS);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs on the workspace and returns the indices of the entries that are
+	 * missing there or differ in size or modification time.
+	 */
+	static final class OutdatedEntries extends MasterToSlaveFileCallable<int[]> {
+		private static final long serialVersionUID = 1L;
+		private final DataManifest manifest;
+
+		OutdatedEntries(DataManifest manifest) {
+			this.manifest = manifest;
+		}
+
+		@Override
+		public int[] invoke(File workspace, VirtualChannel channel) {
+			int[] outdated = new int[manifest.size()];
+			int n = 0;
+			for (int i = 0; i < manifest.size(); i++) {
+				if (!manifest.matches(i, new File(workspace, manifest.getPath(i)))) {
+					outdated[n++] = i;
+				}
+			}
+			return Arrays.copyOf(outdated, n);
+		}
+	}
+
+	/**
+	 * Reads a manifest written on this node by {@link Store}.
+	 */
+	static DataManifest load(File file) throws IOException {
+		try (ObjectInputStream in = new ObjectInputStream(Files.newInputStream(file.toPath()))) {
+			return (DataManifest) in.readObject();
+		} catch (ClassNotFoundException | ClassCastException e) {
+			throw new IOException("Not a stored manifest: " + file, e);
+		}
+	}
+
+	/**
+	 * Runs on a file of the node and writes the manifest into it, so it can
+	 * be kept there instead of on the controller.
+	 */
+	static final class Store extends MasterToSlaveFileCallable<Void> {
+		private static final long serialVersionUID = 1L;
+		private final DataManifest manifest;
+
+		Store(DataManifest manifest) {
+			this.manifest = manifest;
+		}
+
+		@Override
+		public Void invoke(File file, VirtualChannel channel) throws IOException {
+			Files.createDirectories(file.toPath().getParent());
+			try (OutputStream out = Files.newOutputStream(file.toPath());
+					ObjectOutputStream objects = new ObjectOutputStream(out)) {
+				objects.writeObject(manifest);
+			}
+			return null;
+		}
+	}
+}
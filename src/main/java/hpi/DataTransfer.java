@@ -0,0 +1,695 @@
+package hpi;
+
+import hudson.FilePath;
+import hudson.remoting.Pipe;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.Serializable;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32C;
+
+/**
+ * Streams the selected entries of a manifest from a folder on the controller
+ * into a directory on a node. Both ends know the manifest, so the stream only
+ * carries file contents: for each selected file a codec byte, the file mode
+ * and the (possibly compressed) content split into length-prefixed chunks.
+ * Files are written next to their final name and moved into place once
+ * complete, so a reader never sees a partially written file. Large files
+ * keep {@link TransferCheckpoint checkpoints}, and a transfer of files that
+ * an earlier one left incomplete only sends their missing tail. In delta
+ * mode, large files the node already has an older copy of are sent as a
+ * {@link BlockDelta} against that copy, marked by a leading {@link #DELTA} byte.
+ * The older copies are taken from the target directory or from another
+ * directory on the node laid out the same way.
+ */
+final class DataTransfer {
+	/** Codec byte sent for a file that disappeared after the manifest was taken. */
+	static final int MISSING = 0xFF;
+	/** Byte preceding the codec of a file sent as a delta against the copy on the node. */
+	static final int DELTA = 0xFE;
+
+	static final int CHUNK_SIZE = 64 * 1024;
+
+	private final TransferCodec codec;
+	private final int level;
+	private final File archiveDir;
+	private final long archiveSizeLimit;
+	private final int streams;
+	private final CopyScheduler.Permit permit;
+	private final boolean delta;
+
+	DataTransfer(TransferCodec codec, int level) {
+		this(codec, level, null, 0, 1, null, false);
+	}
+
+	/**
+	 * @param archiveDir when not {@code null}, copies to agents are served
+	 *                   from pre-packed archives kept in this directory
+	 * @param archiveSizeLimit size in bytes beyond which the least recently
+	 *                   used archives are removed
+	 * @param streams    number of concurrent transfers to split the data into
+	 * @param permit     when not {@code null}, the sent data is limited to
+	 *                   the bandwidth of this copy slot
+	 * @param delta      whether large files are sent as deltas against the
+	 *                   copy an agent already has
+	 */
+	DataTransfer(TransferCodec codec, int level, File archiveDir, long archiveSizeLimit, int streams,
+			CopyScheduler.Permit permit, boolean delta) {
+		this.codec = codec;
+		this.level = level;
+		this.archiveDir = archiveDir;
+		this.archiveSizeLimit = archiveSizeLimit;
+		this.streams = Math.max(1, streams);
+		this.permit = permit;
+		this.delta = delta;
+	}
+
+	/**
+	 * Copies the entries of {@code manifest} listed in {@code indices} from
+	 * {@code source} to {@code target}. With several streams each transfer
+	 * carries a share of the files balanced by size; completion of each stream
+	 * is reported to {@code logger} and the returned totals cover all streams.
+	 */
+	Stats copy(FilePath source, DataManifest manifest, int[] indices, FilePath target, PrintStream logger)
+			throws IOException, InterruptedException {
+		return copy(source, manifest, indices, target, target, logger);
+	}
+
+	/**
+	 * Copies like {@link #copy(FilePath, DataManifest, int[], FilePath, PrintStream)},
+	 * taking the older copies deltas are computed against from {@code basis},
+	 * a directory on the same node as {@code target}.
+	 */
+	Stats copy(FilePath source, DataManifest manifest, int[] indices, FilePath target, FilePath basis,
+			PrintStream logger) throws IOException, InterruptedException {
+		Stats stats = copyShards(source, manifest, indices, target, delta ? basis.getRemote() : null, logger);
+		if (stats.mismatched.isEmpty()) {
+			return stats;
+		}
+		// a file that arrived damaged was not installed; send those files once more, whole
+		logger.println("Checksum mismatch for " + stats.mismatched.size() + " files, copying them again");
+		int[] retry = stats.mismatched.stream().mapToInt(Integer::intValue).sorted().toArray();
+		Stats again = copyStream(source, manifest, retry, target, null);
+		if (!again.mismatched.isEmpty()) {
+			throw new IOException("Checksum mismatch for " + again.mismatched.size()
+					+ " files after copying them again, first: " + manifest.getPath(again.mismatched.get(0)));
+		}
+		stats.mismatched.clear();
+		stats.add(again);
+		return stats;
+	}
+
+	private Stats copyShards(final FilePath source, final DataManifest manifest, int[] indices,
+			final FilePath target, final String basis, PrintStream logger) throws IOException, InterruptedException {
+		final int[][] shards = shard(manifest, indices, streams);
+		if (shards.length <= 1) {
+			return copyStream(source, manifest, indices, target, basis);
+		}
+		long start = System.nanoTime();
+		ExecutorService executor = Executors.newFixedThreadPool(shards.length,
+				new NamingThreadFactory(new DaemonThreadFactory(), "Copy data to workspace stream"));
+		try {
+			List<Future<Stats>> futures = new ArrayList<>();
+			for (final int[] shard : shards) {
+				futures.add(executor.submit(() -> copyStream(source, manifest, shard, target, basis)));
+			}
+			Stats total = new Stats();
+			for (int s = 0; s < futures.size(); s++) {
+				Stats stats;
+				try {
+					stats = futures.get(s).get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof IOException) {
+						throw (IOException) cause;
+					}
+					throw new IOException("Stream " + (s + 1) + " failed", cause);
+				}
+				logger.println("Stream " + (s + 1) + "/" + shards.length + ": " + stats);
+				total.add(stats);
+			}
+			total.nanos = System.nanoTime() - start;
+			return total;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Splits the selected entries into at most {@code n} shards of similar
+	 * byte size: files are handed out largest first, each to the currently
+	 * smallest shard. Directories all go to the first shard. Each shard keeps
+	 * manifest order.
+	 */
+	static int[][] shard(DataManifest manifest, int[] indices, int n) {
+		List<Integer> files = new ArrayList<>();
+		List<Integer> directories = new ArrayList<>();
+		for (int i : indices) {
+			(manifest.isDirectory(i) ? directories : files).add(i);
+		}
+		n = Math.max(1, Math.min(n, files.size()));
+		if (n == 1) {
+			return new int[][] {indices.clone()};
+		}
+		files.sort((a, b) -> Long.compare(manifest.getSize(b), manifest.getSize(a)));
+		List<List<Integer>> shards = new ArrayList<>();
+		long[] load = new long[n];
+		for (int s = 0; s < n; s++) {
+			shards.add(new ArrayList<>());
+		}
+		shards.get(0).addAll(directories);
+		for (int i : files) {
+			int smallest = 0;
+			for (int s = 1; s < n; s++) {
+				if (load[s] < load[smallest]) {
+					smallest = s;
+				}
+			}
+			shards.get(smallest).add(i);
+			load[smallest] += manifest.getSize(i);
+		}
+		int[][] result = new int[n][];
+		for (int s = 0; s < n; s++) {
+			result[s] = shards.get(s).stream().mapToInt(Integer::intValue).sorted().toArray();
+		}
+		return result;
+	}
+
+	/**
+	 * Sends one share of the files; {@code basis} is the directory on the
+	 * node deltas are computed against, or {@code null} to send files whole.
+	 */
+	private Stats copyStream(FilePath source, DataManifest manifest, int[] indices, FilePath target,
+			String basis) throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		// compressing only pays off when the data actually crosses a channel, and so do deltas
+		TransferCodec effective = target.isRemote() ? codec : TransferCodec.NONE;
+		long[] resume = target.act(new TransferCheckpoint.Find(manifest, indices));
+		BlockDelta.Signature[] signatures = basis != null && target.isRemote()
+				? new FilePath(target.getChannel(), basis).act(new BlockDelta.Signatures(manifest, indices)) : null;
+		Future<Stats> received;
+		OutputStream pipeOut;
+		if (target.isRemote()) {
+			Pipe pipe = Pipe.createLocalToRemote();
+			received = target.actAsync(new Receiver(manifest, indices, resume, pipe, basis));
+			pipeOut = pipe.getOut();
+		} else {
+			PipedInputStream in = new PipedInputStream(CHUNK_SIZE * 4);
+			pipeOut = new PipedOutputStream(in);
+			received = target.actAsync(new Receiver(manifest, indices, resume, in));
+		}
+
+		CountingOutputStream wire = new CountingOutputStream(permit == null ? pipeOut : permit.throttle(pipeOut));
+		File root = new File(source.getRemote());
+		try (OutputStream out = new BufferedOutputStream(wire, CHUNK_SIZE)) {
+			// archived frames always hold whole files
+			if (archiveDir != null && target.isRemote() && resume == null && signatures == null) {
+				try (ArchiveCache.Archive archive = ArchiveCache.get(archiveDir, root, manifest, codec, level,
+						archiveSizeLimit)) {
+					archive.send(indices, out);
+				}
+			} else {
+				send(root, manifest, indices, resume, signatures, effective, new DataOutputStream(out));
+			}
+		}
+
+		Stats stats;
+		try {
+			stats = received.get();
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to receive data in " + target.getRemote(), e.getCause());
+		}
+		stats.wireBytes = wire.count;
+		stats.codec = effective;
+		stats.nanos = System.nanoTime() - start;
+		return stats;
+	}
+
+	private void send(File root, DataManifest manifest, int[] indices, long[] resume,
+			BlockDelta.Signature[] signatures, TransferCodec effective, DataOutputStream out) throws IOException {
+		byte[] buffer = new byte[CHUNK_SIZE];
+		try (SourceFiles files = new SourceFiles(manifest, root)) {
+			for (int k = 0; k < indices.length; k++) {
+				int i = indices[k];
+				if (!manifest.isDirectory(i)) {
+					long offset = resume == null ? 0 : resume[k];
+					// a file being resumed is partly received already, which beats any delta
+					BlockDelta.Signature signature = signatures == null || offset > 0 ? null : signatures[k];
+					writeFrame(files, i, effective, level, out, buffer, offset, signature);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the frame of one file: codec byte, mode and chunked content.
+	 */
+	static void writeFrame(File f, TransferCodec codec, int level, DataOutputStream out, byte[] buffer)
+			throws IOException {
+		writeFrame(f, codec, level, out, buffer, 0, null);
+	}
+
+	/**
+	 * Writes the frame of one file, with the content from {@code offset} on,
+	 * or as a delta against {@code signature} when one is given.
+	 */
+	static void writeFrame(File f, TransferCodec codec, int level, DataOutputStream out, byte[] buffer,
+			long offset, BlockDelta.Signature signature) throws IOException {
+		SourceFiles.Opened file;
+		try {
+			file = SourceFiles.open(f);
+		} catch (NoSuchFileException e) {
+			out.writeByte(MISSING);
+			return;
+		}
+		writeFrame(file, codec, level, out, buffer, offset, signature);
+	}
+
+	/**
+	 * Writes the frame of entry {@code i}, opened from {@code files} so that
+	 * no symlink swapped in after the source was scanned is followed.
+	 */
+	static void writeFrame(SourceFiles files, int i, TransferCodec codec, int level, DataOutputStream out,
+			byte[] buffer, long offset, BlockDelta.Signature signature) throws IOException {
+		SourceFiles.Opened file;
+		try {
+			file = files.open(i);
+		} catch (NoSuchFileException e) {
+			out.writeByte(MISSING);
+			return;
+		}
+		writeFrame(file, codec, level, out, buffer, offset, signature);
+	}
+
+	private static void writeFrame(SourceFiles.Opened file, TransferCodec codec, int level, DataOutputStream out,
+			byte[] buffer, long offset, BlockDelta.Signature signature) throws IOException {
+		InputStream in = file.in;
+		try {
+			in.skipNBytes(offset);
+			TransferCodec fileCodec = TransferCodec.isCompressed(file.name) ? TransferCodec.NONE : codec;
+			if (signature != null) {
+				out.writeByte(DELTA);
+			}
+			out.writeByte(fileCodec.ordinal());
+			out.writeInt(file.mode);
+			ChunkedOutputStream chunks = new ChunkedOutputStream(out);
+			try (OutputStream body = fileCodec.compress(chunks, level)) {
+				if (signature != null) {
+					DataOutputStream ops = new DataOutputStream(body);
+					BlockDelta.encode(in, signature, ops);
+					ops.flush();
+				} else {
+					int n;
+					while ((n = in.read(buffer)) > 0) {
+						body.write(buffer, 0, n);
+					}
+				}
+			}
+			chunks.finish();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Permission bits of a file, or -1 when the file system has none.
+	 */
+	static int mode(Path p) {
+		try {
+			return (Integer) Files.getAttribute(p, "unix:mode", LinkOption.NOFOLLOW_LINKS) & 0777;
+		} catch (UnsupportedOperationException | IllegalArgumentException | IOException e) {
+			return -1;
+		}
+	}
+
+	static void setMode(Path p, int mode) throws IOException {
+		if (mode < 0 || !FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+			return;
+		}
+		Set<PosixFilePermission> permissions = EnumSet.noneOf(PosixFilePermission.class);
+		PosixFilePermission[] all = PosixFilePermission.values();
+		for (int bit = 0; bit < all.length; bit++) {
+			// values() is ordered OWNER_READ ... OTHERS_EXECUTE, i.e. from 0400 down to 0001
+			if ((mode & (1 << (all.length - 1 - bit))) != 0) {
+				permissions.add(all[bit]);
+			}
+		}
+		Files.setPosixFilePermissions(p, permissions);
+	}
+
+	/**
+	 * Totals of one transfer. Bytes are the logical file sizes, wire bytes
+	 * what was written to the channel after compression.
+	 */
+	static final class Stats implements Serializable {
+		private static final long serialVersionUID = 4L;
+		long files;
+		long bytes;
+		/** Bytes an earlier, interrupted transfer had already written and that were not sent again. */
+		long resumedBytes;
+		/** Bytes of delta transfers taken from the copy already on the node. */
+		long reusedBytes;
+		long wireBytes;
+		long nanos;
+		TransferCodec codec;
+		/** Entries whose received content did not match the manifest checksum. */
+		final List<Integer> mismatched = new ArrayList<>();
+
+		/**
+		 * Files and bytes of the selected entries, for copies that send
+		 * nothing through the channel.
+		 */
+		static Stats count(DataManifest manifest, int[] indices) {
+			Stats stats = new Stats();
+			for (int i : indices) {
+				if (!manifest.isDirectory(i)) {
+					stats.files++;
+					stats.bytes += manifest.getSize(i);
+				}
+			}
+			return stats;
+		}
+
+		void add(Stats other) {
+			files += other.files;
+			bytes += other.bytes;
+			resumedBytes += other.resumedBytes;
+			reusedBytes += other.reusedBytes;
+			wireBytes += other.wireBytes;
+			codec = other.codec;
+			mismatched.addAll(other.mismatched);
+		}
+
+		@Override
+		public String toString() {
+			return "Transferred " + files + " files, " + bytes + " bytes (" + wireBytes + " bytes on the wire, "
+					+ (codec == null ? TransferCodec.NONE : codec).getDisplayName().toLowerCase(Locale.ROOT)
+					+ ") in " + nanos / 1000000 + " ms"
+					+ (resumedBytes > 0 ? ", resumed after " + resumedBytes + " bytes already on the node" : "")
+					+ (reusedBytes > 0 ? ", " + reusedBytes + " bytes reused from the previous copy" : "");
+		}
+	}
+
+	/**
+	 * Runs on the node and writes the received files below the directory it
+	 * is invoked on. When the manifest has checksums, each file is checked
+	 * while it is written, and a file that does not match is not installed.
+	 * Files large enough to be checkpointed are written to their partial file
+	 * and continue it where the controller resumed them. A delta is applied to
+	 * the older copy in the basis directory, by default the target itself, and
+	 * the file is only installed once the result has the checksum of the
+	 * source. A delta whose older copy has gone in the meantime is skipped and
+	 * reported as a mismatch, so the file is sent again whole.
+	 */
+	static final class Receiver extends MasterToSlaveFileCallable<Stats> {
+		private static final long serialVersionUID = 1L;
+		/** Only the selected entries, entry {@code k} being entry {@code indices[k]} of the manifest. */
+		private final DataManifest selected;
+		private final int[] indices;
+		/** Offset each file is sent from, aligned with the indices, or {@code null} when all are sent whole. */
+		private final long[] resume;
+		private final Pipe pipe;
+		/** Used instead of the pipe when both ends are in this JVM. */
+		private final transient InputStream local;
+		/** Directory holding the copies deltas apply to, or {@code null} for the target. */
+		private final String basis;
+
+		Receiver(DataManifest manifest, int[] indices, InputStream local) {
+			this(manifest, indices, null, local);
+		}
+
+		Receiver(DataManifest manifest, int[] indices, long[] resume, Pipe pipe, String basis) {
+			this(manifest, indices, resume, pipe, null, basis);
+		}
+
+		Receiver(DataManifest manifest, int[] indices, long[] resume, InputStream local) {
+			this(manifest, indices, resume, null, local, null);
+		}
+
+		private Receiver(DataManifest manifest, int[] indices, long[] resume, Pipe pipe, InputStream local,
+				String basis) {
+			this.selected = manifest.select(indices);
+			this.indices = indices.clone();
+			this.resume = resume == null ? null : resume.clone();
+			this.pipe = pipe;
+			this.local = local;
+			this.basis = basis;
+		}
+
+		@Override
+		public Stats invoke(File dir, VirtualChannel channel) throws IOException {
+			Stats stats = new Stats();
+			InputStream raw = local != null ? local : pipe.getIn();
+			File older = basis == null ? dir : new File(basis);
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(raw, CHUNK_SIZE))) {
+				byte[] buffer = new byte[CHUNK_SIZE];
+				for (int k = 0; k < indices.length; k++) {
+					int i = indices[k];
+					File f = new File(dir, selected.getPath(k));
+					if (selected.isDirectory(k)) {
+						Files.createDirectories(f.toPath());
+						continue;
+					}
+					int codec = in.readUnsignedByte();
+					if (codec == MISSING) {
+						continue;
+					}
+					boolean delta = codec == DELTA;
+					if (delta) {
+						codec = in.readUnsignedByte();
+					}
+					int mode = in.readInt();
+					Files.createDirectories(f.getParentFile().toPath());
+					boolean checkpointed = selected.getSize(k) >= TransferCheckpoint.INTERVAL;
+					long offset = resume == null ? 0 : resume[k];
+					Path tmp = checkpointed ? TransferCheckpoint.partial(f.toPath())
+							: Files.createTempFile(f.getParentFile().toPath(), ".copy-data", ".tmp");
+					// an interrupted stream leaves the partial file for the next transfer
+					boolean keep = false;
+					try {
+						ChunkedInputStream chunks = new ChunkedInputStream(in);
+						CRC32C crc = selected.hasChecksums() ? new CRC32C() : null;
+						InputStream decoded = TransferCodec.values()[codec].decompress(chunks);
+						BlockDelta.Patch patch = null;
+						if (delta) {
+							try {
+								patch = new BlockDelta.Patch(decoded, new File(older, selected.getPath(k)).toPath());
+							} catch (NoSuchFileException e) {
+								decoded.close();
+								chunks.skipToEnd();
+								stats.mismatched.add(i);
+								continue;
+							}
+						}
+						try (InputStream body = patch != null ? patch : decoded;
+								OutputStream out = checkpointed
+										? TransferCheckpoint.open(f.toPath(), selected.getSize(k),
+												selected.getLastModified(k), offset, crc)
+										: Files.newOutputStream(tmp)) {
+							int n;
+							while ((n = body.read(buffer)) > 0) {
+								out.write(buffer, 0, n);
+								if (crc != null) {
+									crc.update(buffer, 0, n);
+								}
+								stats.bytes += n;
+							}
+						}
+						chunks.skipToEnd();
+						if (patch != null) {
+							stats.reusedBytes += patch.reused;
+						}
+						if ((patch != null && !patch.verified())
+								|| (crc != null && (int) crc.getValue() != selected.getChecksum(k))) {
+							stats.mismatched.add(i);
+							continue;
+						}
+						Files.setLastModifiedTime(tmp,
+								FileTime.fromMillis(selected.getLastModified(k)));
+						// temporary files are private, give the file the usual mode if the source had none
+						setMode(tmp, mode < 0 ? 0644 : mode);
+						Files.move(tmp, f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+					} catch (IOException e) {
+						keep = checkpointed;
+						throw e;
+					} finally {
+						if (!keep) {
+							Files.deleteIfExists(tmp);
+							if (checkpointed) {
+								TransferCheckpoint.clear(f.toPath());
+							}
+						}
+					}
+					stats.files++;
+					stats.resumedBytes += offset;
+				}
+			}
+			return stats;
+		}
+	}
+
+	/**
+	 * Splits what is written into chunks of at most {@link #CHUNK_SIZE} bytes,
+	 * each preceded by its length. {@link #finish()} writes the empty chunk
+	 * that ends the entry. Closing does not close the underlying stream.
+	 */
+	static final class ChunkedOutputStream extends OutputStream {
+		private final DataOutputStream out;
+		private final byte[] buffer = new byte[CHUNK_SIZE];
+		private int count;
+
+		ChunkedOutputStream(DataOutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (count == buffer.length) {
+				flushChunk();
+			}
+			buffer[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (count == buffer.length) {
+					flushChunk();
+				}
+				int n = Math.min(len, buffer.length - count);
+				System.arraycopy(b, off, buffer, count, n);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		private void flushChunk() throws IOException {
+			if (count > 0) {
+				out.writeInt(count);
+				out.write(buffer, 0, count);
+				count = 0;
+			}
+		}
+
+		void finish() throws IOException {
+			flushChunk();
+			out.writeInt(0);
+		}
+
+		@Override
+		public void close() {
+			// the underlying stream carries the following entries
+		}
+	}
+
+	/**
+	 * Reads one entry written by {@link ChunkedOutputStream} and reports end of
+	 * stream at the empty chunk.
+	 */
+	static final class ChunkedInputStream extends InputStream {
+		private final DataInputStream in;
+		private int remaining;
+		private boolean end;
+
+		ChunkedInputStream(DataInputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (remaining == 0) {
+				if (end) {
+					return -1;
+				}
+				remaining = in.readInt();
+				if (remaining == 0) {
+					end = true;
+					return -1;
+				}
+			}
+			int n = in.read(b, off, Math.min(len, remaining));
+			if (n < 0) {
+				throw new EOFException("Transfer stream ended inside an entry");
+			}
+			remaining -= n;
+			return n;
+		}
+
+		/**
+		 * Consumes what a decompressor left unread, up to the end of the entry.
+		 */
+		void skipToEnd() throws IOException {
+			byte[] skip = new byte[CHUNK_SIZE];
+			while (read(skip, 0, skip.length) >= 0) {
+				// discard
+			}
+		}
+
+		@Override
+		public void close() {
+			// the underlying stream carries the following entries
+		}
+	}
+
+	static final class CountingOutputStream extends FilterOutputStream {
+		long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
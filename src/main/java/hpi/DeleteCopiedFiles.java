@@ -0,0 +1,197 @@
+package hpi;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Removes the copied files from a workspace in one call on the node that holds
+ * it. Only the files listed in the manifest are deleted, in parallel; copied
+ * directories are removed afterwards if they are empty, so files the build
+ * wrote into them are kept. Optionally only pristine copies are removed: a
+ * file whose size or modification time no longer matches the manifest was
+ * changed by the build and stays, along with its directory. When a trash
+ * directory is given, the files are only moved there and deleted by a
+ * background thread on the node, so the build does not wait for the space to
+ * be freed. The partial and checkpoint files an interrupted transfer left
+ * next to large files are always deleted, as they are useless once the
+ * copied data is gone. A {@link GenerationMarker} is removed first, as the workspace no
+ * longer holds the data it describes. The manifest may also be read from a
+ * file on the node written by {@link DataManifest.Store}, which is deleted
+ * along with the files.
+ */
+final class DeleteCopiedFiles extends MasterToSlaveFileCallable<DeleteCopiedFiles.Result> {
+	private static final long serialVersionUID = 1L;
+	private static final Logger log = Logger.getLogger(DeleteCopiedFiles.class.getName());
+
+	private final DataManifest manifest;
+	/** File on the node holding the manifest when {@link #manifest} is {@code null}. */
+	private final String manifestFile;
+	private final String trash;
+	private final boolean keepModified;
+
+	DeleteCopiedFiles(DataManifest manifest, String trash) {
+		this(manifest, trash, false);
+	}
+
+	DeleteCopiedFiles(DataManifest manifest, String trash, boolean keepModified) {
+		this(manifest, null, trash, keepModified);
+	}
+
+	DeleteCopiedFiles(String manifestFile, String trash, boolean keepModified) {
+		this(null, manifestFile, trash, keepModified);
+	}
+
+	private DeleteCopiedFiles(DataManifest manifest, String manifestFile, String trash, boolean keepModified) {
+		this.manifest = manifest;
+		this.manifestFile = manifestFile;
+		this.trash = trash;
+		this.keepModified = keepModified;
+	}
+
+	@Override
+	public Result invoke(File workspace, VirtualChannel channel) throws IOException {
+		Files.deleteIfExists(new File(workspace, GenerationMarker.FILE).toPath());
+		DataManifest manifest = this.manifest != null ? this.manifest : DataManifest.load(new File(manifestFile));
+		final Result result;
+		if (trash == null) {
+			result = removeFiles(manifest, workspace, null);
+		} else {
+			final File trashDir = new File(trash);
+			result = removeFiles(manifest, workspace, trashDir);
+			Thread deleter = new Thread(() -> {
+				try {
+					deleteTree(trashDir.toPath());
+				} catch (IOException e) {
+					log.log(Level.WARNING, "Failed to delete " + trashDir, e);
+				}
+			}, "Deleting copied data in " + trashDir);
+			deleter.setDaemon(true);
+			deleter.start();
+		}
+		removeEmptyDirectories(manifest, workspace);
+		if (manifestFile != null) {
+			Files.deleteIfExists(new File(manifestFile).toPath());
+		}
+		return result;
+	}
+
+	/**
+	 * Deletes, or moves into {@code trashDir}, every file of the manifest that
+	 * is present in the workspace, except modified ones if they are kept.
+	 */
+	private Result removeFiles(final DataManifest manifest, final File workspace, final File trashDir) throws IOException {
+		final AtomicLong files = new AtomicLong();
+		final AtomicLong bytes = new AtomicLong();
+		final AtomicLong kept = new AtomicLong();
+		try {
+			IntStream.range(0, manifest.size()).parallel().filter(i -> !manifest.isDirectory(i)).forEach(i -> {
+				String path = manifest.getPath(i);
+				File f = new File(workspace, path);
+				Path p = f.toPath();
+				if (manifest.getSize(i) >= TransferCheckpoint.INTERVAL) {
+					try {
+						TransferCheckpoint.clear(p);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+				if (keepModified && !manifest.matches(i, f)) {
+					if (Files.exists(p, LinkOption.NOFOLLOW_LINKS)) {
+						kept.incrementAndGet();
+					}
+					return;
+				}
+				try {
+					long size = Files.size(p);
+					if (trashDir == null) {
+						Files.delete(p);
+					} else {
+						Path target = new File(trashDir, path).toPath();
+						Files.createDirectories(target.getParent());
+						Files.move(p, target, StandardCopyOption.ATOMIC_MOVE);
+					}
+					files.incrementAndGet();
+					bytes.addAndGet(size);
+				} catch (NoSuchFileException e) {
+					// removed by the build
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		Result result = new Result();
+		result.files = files.get();
+		result.bytes = bytes.get();
+		result.kept = kept.get();
+		return result;
+	}
+
+	/**
+	 * Manifest paths are sorted, so walking them backwards visits every
+	 * directory after its content.
+	 */
+	private static void removeEmptyDirectories(DataManifest manifest, File workspace) throws IOException {
+		for (int i = manifest.size() - 1; i >= 0; i--) {
+			if (!manifest.isDirectory(i)) {
+				continue;
+			}
+			try {
+				Files.delete(new File(workspace, manifest.getPath(i)).toPath());
+			} catch (NoSuchFileException | DirectoryNotEmptyException e) {
+				// removed by the build, or holds files the build created
+			}
+		}
+	}
+
+	static void deleteTree(Path root) throws IOException {
+		if (!Files.exists(root)) {
+			return;
+		}
+		try (Stream<Path> paths = Files.walk(root)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(p -> {
+				try {
+					Files.deleteIfExists(p);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Totals reported back to the build log.
+	 */
+	static final class Result implements Serializable {
+		private static final long serialVersionUID = 2L;
+		long files;
+		long bytes;
+		/** Copied files left in place because the build modified them. */
+		long kept;
+
+		@Override
+		public String toString() {
+			return files + " files (" + bytes + " bytes)" + (kept > 0 ? ", kept " + kept + " modified files" : "");
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package hpi;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.AbstractProject;
+import hudson.model.Descriptor;
+import hudson.model.Item;
+import hudson.util.FormValidation;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import java.io.Serializable;
+
+/**
+ * One more folder below JENKINS_HOME/userContent to copy, and the directory
+ * of the workspace to copy it into.
+ */
+public class FolderMapping extends AbstractDescribableImpl<FolderMapping> implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final String folderPath;
+	private final String targetSubdir;
+
+	@DataBoundConstructor
+	public FolderMapping(String folderPath, String targetSubdir) {
+		this.folderPath = folderPath;
+		this.targetSubdir = Util.fixEmptyAndTrim(targetSubdir);
+	}
+
+	public String getFolderPath() {
+		return folderPath;
+	}
+
+	public String getTargetSubdir() {
+		return targetSubdir;
+	}
+
+	@Extension
+	public static class DescriptorImpl extends Descriptor<FolderMapping> {
+		@RequirePOST
+		public FormValidation doCheckFolderPath(@AncestorInPath AbstractProject project, @QueryParameter String value) {
+			if (project != null) {
+				project.checkPermission(Item.CONFIGURE);
+			}
+			return CopyDataToWorkspacePlugin.DescriptorImpl.validateFolderPath(value);
+		}
+
+		@RequirePOST
+		public FormValidation doCheckTargetSubdir(@AncestorInPath AbstractProject project, @QueryParameter String value) {
+			if (project != null) {
+				project.checkPermission(Item.CONFIGURE);
+			}
+			return CopyDataToWorkspacePlugin.DescriptorImpl.validateTargetSubdir(value);
+		}
+
+		@Override
+		public String getDisplayName() {
+			return "Folder";
+		}
+	}
+}
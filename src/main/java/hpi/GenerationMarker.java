@@ -0,0 +1,268 @@
+package hpi;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Record of the data a workspace holds, so builds that keep the data between
+ * them can skip the copy. After a complete copy, a marker file is written
+ * into the workspace with a generation number, a fingerprint of the copied
+ * source folders and their version, and the manifest of what was copied.
+ * The next build compares the fingerprint with the one of the current source
+ * and copies nothing when they are equal and the listed files are still in
+ * the workspace as copied. Otherwise the marker is set aside before the
+ * copy starts, so an interrupted copy never leaves a marker behind. Once the
+ * new data is complete, the files of the old generation that are no longer
+ * in the source are deleted if the build did not modify them, so only the
+ * fingerprint is sent for the check and the manifest once, with the new
+ * marker.
+ * <p>
+ * The marker is plain text: the generation, the fingerprint, then the size,
+ * modification time and path of every entry, one per line.
+ */
+final class GenerationMarker {
+	static final String FILE = ".copy-data-generation";
+	/** The marker of the data being replaced, until the new marker is written. */
+	static final String PREVIOUS = FILE + ".previous";
+
+	private GenerationMarker() {
+	}
+
+	/**
+	 * Identifies the data as it ends up in the workspace: the source folders
+	 * below {@code root}, their version and whether the files were made
+	 * executable.
+	 */
+	static String fingerprint(DataManifest manifest, File root, boolean executable) {
+		return manifest.identity(root) + (executable ? "+x" : "");
+	}
+
+	/**
+	 * What the workspace holds, as found by {@link Check}.
+	 */
+	static final class State implements Serializable {
+		private static final long serialVersionUID = 1L;
+		final String fingerprint;
+		/** Generation of the data in the workspace when current, otherwise the one the copy will be. */
+		final long generation;
+		final boolean current;
+
+		State(String fingerprint, long generation, boolean current) {
+			this.fingerprint = fingerprint;
+			this.generation = generation;
+			this.current = current;
+		}
+	}
+
+	/**
+	 * Runs on the workspace and tells whether its marker has the given
+	 * fingerprint and every listed entry is still there with the size and
+	 * modification time it was copied with. If not, the marker is kept aside
+	 * as {@link #PREVIOUS} for
+	 * {@link Write} to remove the files that left the source. A marker set
+	 * aside by a copy that did not complete still tells the generation.
+	 */
+	static final class Check extends MasterToSlaveFileCallable<State> {
+		private static final long serialVersionUID = 1L;
+		private final String fingerprint;
+
+		Check(String fingerprint) {
+			this.fingerprint = fingerprint;
+		}
+
+		@Override
+		public State invoke(File workspace, VirtualChannel channel) throws IOException {
+			Path marker = new File(workspace, FILE).toPath();
+			Path previous = new File(workspace, PREVIOUS).toPath();
+			long generation;
+			try (BufferedReader in = Files.newBufferedReader(marker, StandardCharsets.UTF_8)) {
+				generation = Long.parseLong(in.readLine());
+				if (fingerprint.equals(in.readLine()) && retained(workspace.toPath(), in)) {
+					return new State(fingerprint, generation, true);
+				}
+			} catch (NoSuchFileException e) {
+				return new State(fingerprint, generation(previous) + 1, false);
+			} catch (IOException | RuntimeException e) {
+				// unreadable, so nothing is known about the data in the workspace
+				Files.deleteIfExists(marker);
+				return new State(fingerprint, 1, false);
+			}
+			// a marker next to one set aside was written after it, so it lists the newer data
+			Files.move(marker, previous, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return new State(fingerprint, generation + 1, false);
+		}
+
+		/**
+		 * Checks the entries listed in the rest of the marker against the
+		 * workspace; a file the build changed or deleted has to be copied again.
+		 */
+		private static boolean retained(Path workspace, BufferedReader in) throws IOException {
+			for (String line = in.readLine(); line != null; line = in.readLine()) {
+				String[] entry = line.split("\t", 3);
+				if (entry.length != 3 || !Write.isRelative(entry[2])) {
+					return false;
+				}
+				Path p = workspace.resolve(entry[2]);
+				long size = Long.parseLong(entry[0]);
+				if (size == DataManifest.DIRECTORY ? !Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)
+						: !Write.unchanged(p, size, Long.parseLong(entry[1]))) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static long generation(Path previous) {
+			try (BufferedReader in = Files.newBufferedReader(previous, StandardCharsets.UTF_8)) {
+				return Long.parseLong(in.readLine());
+			} catch (IOException | RuntimeException e) {
+				return 0;
+			}
+		}
+	}
+
+	/**
+	 * Runs on the workspace once the copy is complete, removes the files of
+	 * the generation set aside by {@link Check} that the source no longer
+	 * has, and writes the marker of the data the workspace now holds.
+	 * Returns the number of files removed.
+	 */
+	static final class Write extends MasterToSlaveFileCallable<Integer> {
+		private static final long serialVersionUID = 1L;
+		private final State state;
+		private final DataManifest manifest;
+
+		Write(State state, DataManifest manifest) {
+			this.state = state;
+			this.manifest = manifest;
+		}
+
+		@Override
+		public Integer invoke(File workspace, VirtualChannel channel) throws IOException {
+			Path previous = new File(workspace, PREVIOUS).toPath();
+			int removed = removeStale(workspace.toPath(), read(previous));
+			Path marker = new File(workspace, FILE).toPath();
+			Path tmp = marker.resolveSibling(FILE + ".tmp");
+			try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+				out.write(state.generation + "\n" + state.fingerprint + "\n");
+				for (int i = 0; i < manifest.size(); i++) {
+					out.write(manifest.getSize(i) + "\t" + manifest.getLastModified(i) + "\t"
+							+ manifest.getPath(i) + "\n");
+				}
+			}
+			Files.move(tmp, marker, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			Files.deleteIfExists(previous);
+			return removed;
+		}
+
+		/**
+		 * The size, modification time and path of every entry of a marker,
+		 * none if there is no readable one.
+		 */
+		private static List<String[]> read(Path marker) {
+			List<String[]> entries = new ArrayList<>();
+			try (BufferedReader in = Files.newBufferedReader(marker, StandardCharsets.UTF_8)) {
+				// generation and fingerprint
+				in.readLine();
+				in.readLine();
+				for (String line = in.readLine(); line != null; line = in.readLine()) {
+					String[] entry = line.split("\t", 3);
+					if (entry.length == 3) {
+						entries.add(entry);
+					}
+				}
+			} catch (IOException | RuntimeException e) {
+				return new ArrayList<>();
+			}
+			return entries;
+		}
+
+		/**
+		 * Deletes the listed files that the new manifest does not have and
+		 * that still match the listing, then the directories left empty.
+		 */
+		private int removeStale(Path workspace, List<String[]> entries) throws IOException {
+			Set<String> paths = new HashSet<>();
+			for (int i = 0; i < manifest.size(); i++) {
+				paths.add(manifest.getPath(i));
+			}
+			int removed = 0;
+			List<Path> directories = new ArrayList<>();
+			for (String[] entry : entries) {
+				String path = entry[2];
+				if (paths.contains(path) || !isRelative(path)) {
+					continue;
+				}
+				Path p = workspace.resolve(path);
+				long size;
+				long lastModified;
+				try {
+					size = Long.parseLong(entry[0]);
+					lastModified = Long.parseLong(entry[1]);
+				} catch (NumberFormatException e) {
+					continue;
+				}
+				if (size == DataManifest.DIRECTORY) {
+					directories.add(p);
+				} else if (unchanged(p, size, lastModified)) {
+					Files.deleteIfExists(p);
+					removed++;
+				}
+			}
+			// the listing is sorted, so children come after their parents
+			for (int k = directories.size() - 1; k >= 0; k--) {
+				try {
+					Files.deleteIfExists(directories.get(k));
+				} catch (DirectoryNotEmptyException e) {
+					// holds files the build created
+				}
+			}
+			return removed;
+		}
+
+		private static boolean unchanged(Path p, long size, long lastModified) throws IOException {
+			BasicFileAttributes attrs;
+			try {
+				attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			} catch (NoSuchFileException e) {
+				return false;
+			}
+			return attrs.isRegularFile() && attrs.size() == size
+					&& attrs.lastModifiedTime().toMillis() / 1000 == lastModified / 1000;
+		}
+
+		/**
+		 * Rejects paths that would leave the workspace; the marker is a file
+		 * anyone with access to the workspace can edit.
+		 */
+		private static boolean isRelative(String path) {
+			if (path.isEmpty() || path.startsWith("/") || path.contains("\\") || path.contains(":")) {
+				return false;
+			}
+			for (String segment : path.split("/")) {
+				if (segment.isEmpty() || segment.equals(".") || segment.equals("..")) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
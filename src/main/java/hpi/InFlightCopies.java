@@ -0,0 +1,208 @@
+package hpi;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Copies in progress, so builds that need the same data on the same node at
+ * the same time share one transfer. The first build transfers into its own
+ * workspace as usual; builds that ask for the same entries while it runs wait
+ * for it and then copy the files from that workspace locally. The first
+ * build may already be changing its files by then, so a file is only taken
+ * if it still matches the manifest; the rest is transferred.
+ */
+final class InFlightCopies {
+	private static final Map<String, Shared> copies = new HashMap<>();
+
+	private InFlightCopies() {
+	}
+
+	/**
+	 * Sends the selected entries over the channel, into the given directory.
+	 */
+	interface Transfer {
+		DataTransfer.Stats copy(FilePath target, int[] indices) throws IOException, InterruptedException;
+	}
+
+	/**
+	 * Copies the entries of {@code manifest}, read from {@code source}, listed
+	 * in {@code indices} to {@code target} on {@code node}, from the workspace
+	 * of a build that is transferring them right now if there is one,
+	 * otherwise with {@code transfer}. Only builds that make the files
+	 * executable share a transfer with each other, as the modes are copied
+	 * along.
+	 */
+	static DataTransfer.Stats copy(String node, File source, boolean executable, DataManifest manifest,
+			int[] indices, FilePath target, TaskListener listener, Transfer transfer)
+			throws IOException, InterruptedException {
+		String key = node + '\0' + manifest.identity(source) + '\0' + executable + '\0' + digest(indices);
+		Shared shared;
+		boolean leader;
+		synchronized (copies) {
+			shared = copies.get(key);
+			leader = shared == null;
+			if (leader) {
+				shared = new Shared(target.getRemote(), indices);
+				copies.put(key, shared);
+			} else if (!Arrays.equals(shared.indices, indices)) {
+				// a different selection that happens to have the same digest
+				shared = null;
+			}
+		}
+		if (shared == null) {
+			return transfer.copy(target, indices);
+		}
+		return leader ? lead(key, shared, target, indices, transfer)
+				: join(shared, manifest, target, listener, transfer);
+	}
+
+	private static String digest(int[] indices) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(4 * indices.length);
+		buffer.asIntBuffer().put(indices);
+		digest.update(buffer);
+		return Util.toHexString(digest.digest());
+	}
+
+	private static DataTransfer.Stats lead(String key, Shared shared, FilePath target, int[] indices,
+			Transfer transfer) throws IOException, InterruptedException {
+		boolean success = false;
+		try {
+			DataTransfer.Stats stats = transfer.copy(target, indices);
+			success = true;
+			return stats;
+		} finally {
+			synchronized (copies) {
+				copies.remove(key);
+			}
+			shared.finish(success);
+		}
+	}
+
+	private static DataTransfer.Stats join(Shared shared, DataManifest manifest, FilePath target,
+			TaskListener listener, Transfer transfer) throws IOException, InterruptedException {
+		listener.getLogger().println("Waiting for a concurrent copy of the same data to this node");
+		long start = System.nanoTime();
+		if (!shared.await()) {
+			listener.getLogger().println("The concurrent copy failed, copying the data again");
+			return transfer.copy(target, shared.indices);
+		}
+		int[] remaining = target.act(new CopyFromWorkspace(shared.workspace, manifest, shared.indices));
+		DataTransfer.Stats stats = DataTransfer.Stats.count(manifest, shared.indices);
+		DataTransfer.Stats missed = DataTransfer.Stats.count(manifest, remaining);
+		stats.files -= missed.files;
+		stats.bytes -= missed.bytes;
+		listener.getLogger().println("Copied " + stats.files + " files from the concurrent copy on this node");
+		if (remaining.length > 0) {
+			stats.add(transfer.copy(target, remaining));
+		}
+		stats.nanos = System.nanoTime() - start;
+		return stats;
+	}
+
+	/**
+	 * A transfer into the workspace of one build, which others may wait for.
+	 */
+	private static final class Shared {
+		final String workspace;
+		final int[] indices;
+		private Boolean succeeded;
+
+		Shared(String workspace, int[] indices) {
+			this.workspace = workspace;
+			this.indices = indices.clone();
+		}
+
+		synchronized void finish(boolean success) {
+			succeeded = success;
+			notifyAll();
+		}
+
+		/** Waits for the transfer, returning whether it succeeded. */
+		synchronized boolean await() throws InterruptedException {
+			while (succeeded == null) {
+				wait();
+			}
+			return succeeded;
+		}
+	}
+
+	/**
+	 * Runs on the node and copies the selected entries from the workspace of
+	 * the build that transferred them. A file is copied next to its final
+	 * name and only moved into place if both copies still match the
+	 * manifest. Returns the indices of the files that were not taken.
+	 */
+	static final class CopyFromWorkspace extends MasterToSlaveFileCallable<int[]> {
+		private static final long serialVersionUID = 1L;
+		private final String source;
+		/** Only the selected entries, entry {@code k} being entry {@code indices[k]} of the manifest. */
+		private final DataManifest selected;
+		private final int[] indices;
+
+		CopyFromWorkspace(String source, DataManifest manifest, int[] indices) {
+			this.source = source;
+			this.selected = manifest.select(indices);
+			this.indices = indices.clone();
+		}
+
+		@Override
+		public int[] invoke(File workspace, VirtualChannel channel) throws IOException {
+			int[] remaining = new int[indices.length];
+			int count = 0;
+			for (int k = 0; k < indices.length; k++) {
+				Path to = new File(workspace, selected.getPath(k)).toPath();
+				if (selected.isDirectory(k)) {
+					Files.createDirectories(to);
+				} else if (!copy(new File(source, selected.getPath(k)), to, k)) {
+					remaining[count++] = indices[k];
+				}
+			}
+			return Arrays.copyOf(remaining, count);
+		}
+
+		private boolean copy(File from, Path to, int k) throws IOException {
+			if (!selected.matches(k, from)) {
+				return false;
+			}
+			Files.createDirectories(to.getParent());
+			Path tmp = Files.createTempFile(to.getParent(), ".copy-data", ".tmp");
+			try {
+				Files.copy(from.toPath(), tmp, StandardCopyOption.COPY_ATTRIBUTES,
+						StandardCopyOption.REPLACE_EXISTING);
+				if (!selected.matches(k, tmp.toFile()) || !selected.matches(k, from)) {
+					// changed while it was copied
+					return false;
+				}
+				Files.move(tmp, to, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				return true;
+			} catch (NoSuchFileException e) {
+				// deleted by the build that copied it
+				return false;
+			} finally {
+				Files.deleteIfExists(tmp);
+			}
+		}
+	}
+}
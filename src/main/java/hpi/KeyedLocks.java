@@ -0,0 +1,133 @@
+package hpi;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Locks by key, such as a cache entry or a source folder. Each key has an
+ * exclusive and a shared mode, so many readers of an entry can keep out the
+ * one thread that would replace or delete it. A lock only exists while a
+ * thread holds it or waits for it, so the map does not grow with every key
+ * ever used.
+ */
+final class KeyedLocks {
+	private final Map<String, Entry> locks = new HashMap<>();
+
+	private static final class Entry {
+		final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		/** Threads holding or waiting for the lock. */
+		int users;
+	}
+
+	/**
+	 * A lock being held; closing it releases the lock.
+	 */
+	final class Held implements AutoCloseable {
+		private final String key;
+		private final Entry entry;
+		private final Lock lock;
+
+		private Held(String key, Entry entry, Lock lock) {
+			this.key = key;
+			this.entry = entry;
+			this.lock = lock;
+		}
+
+		@Override
+		public void close() {
+			lock.unlock();
+			release(key, entry);
+		}
+	}
+
+	/**
+	 * Waits for the exclusive lock of {@code key}.
+	 */
+	Held lock(String key) {
+		Entry entry = use(key);
+		Lock lock = entry.lock.writeLock();
+		lock.lock();
+		return new Held(key, entry, lock);
+	}
+
+	/**
+	 * Waits for the exclusive lock of {@code key} unless the thread is interrupted.
+	 */
+	Held lockInterruptibly(String key) throws InterruptedException {
+		return lockInterruptibly(key, false);
+	}
+
+	/**
+	 * Waits for the shared lock of {@code key} unless the thread is
+	 * interrupted. A thread holding the exclusive lock may also take the
+	 * shared one, and keeps it after releasing the exclusive lock.
+	 */
+	Held lockSharedInterruptibly(String key) throws InterruptedException {
+		return lockInterruptibly(key, true);
+	}
+
+	private Held lockInterruptibly(String key, boolean shared) throws InterruptedException {
+		Entry entry = use(key);
+		Lock lock = shared ? entry.lock.readLock() : entry.lock.writeLock();
+		try {
+			lock.lockInterruptibly();
+		} catch (InterruptedException e) {
+			release(key, entry);
+			throw e;
+		}
+		return new Held(key, entry, lock);
+	}
+
+	/**
+	 * Takes the exclusive lock of {@code key} if it is free, otherwise
+	 * returns {@code null}.
+	 */
+	Held tryLock(String key) {
+		return tryLock(key, false);
+	}
+
+	/**
+	 * Takes the shared lock of {@code key} unless the exclusive one is held,
+	 * otherwise returns {@code null}.
+	 */
+	Held tryLockShared(String key) {
+		return tryLock(key, true);
+	}
+
+	private Held tryLock(String key, boolean shared) {
+		Entry entry = use(key);
+		Lock lock = shared ? entry.lock.readLock() : entry.lock.writeLock();
+		if (lock.tryLock()) {
+			return new Held(key, entry, lock);
+		}
+		release(key, entry);
+		return null;
+	}
+
+	/**
+	 * Number of keys whose lock is held or waited for.
+	 */
+	int size() {
+		synchronized (locks) {
+			return locks.size();
+		}
+	}
+
+	private Entry use(String key) {
+		synchronized (locks) {
+			Entry entry = locks.computeIfAbsent(key, k -> new Entry());
+			entry.users++;
+			return entry;
+		}
+	}
+
+	private void release(String key, Entry entry) {
+		synchronized (locks) {
+			if (--entry.users == 0) {
+				locks.remove(key);
+			}
+		}
+	}
+}
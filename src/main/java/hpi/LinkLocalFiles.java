@@ -0,0 +1,110 @@
+package hpi;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * Runs on the node and copies the files it can see at their path on the
+ * controller, as on the built-in node or when JENKINS_HOME is mounted at the
+ * same path, by hard link or by a file system copy. A file is only taken
+ * from there if it has the size and modification time of the manifest, so a
+ * different folder that happens to exist at that path on an agent is never
+ * used. Files are opened through {@link SourceFiles}, so a directory swapped
+ * for a symlink after the scan is refused as it is by the transfer. Returns
+ * the indices of the files that still have to be sent.
+ */
+final class LinkLocalFiles extends MasterToSlaveFileCallable<int[]> {
+	private static final long serialVersionUID = 1L;
+	private static final Logger log = Logger.getLogger(LinkLocalFiles.class.getName());
+
+	private final String source;
+	/** Only the selected entries, entry {@code k} being entry {@code indices[k]} of the manifest. */
+	private final DataManifest selected;
+	private final int[] indices;
+	private final boolean hardLinks;
+
+	LinkLocalFiles(String source, DataManifest manifest, int[] indices, boolean hardLinks) {
+		this.source = source;
+		this.selected = manifest.select(indices);
+		this.indices = indices.clone();
+		this.hardLinks = hardLinks;
+	}
+
+	@Override
+	public int[] invoke(File workspace, VirtualChannel channel) throws IOException {
+		File root = new File(source);
+		if (!root.isDirectory()) {
+			return indices.clone();
+		}
+		int[] remaining = new int[indices.length];
+		int count = 0;
+		try (SourceFiles files = new SourceFiles(selected, root)) {
+			for (int k = 0; k < indices.length; k++) {
+				Path to = new File(workspace, selected.getPath(k)).toPath();
+				if (selected.isDirectory(k)) {
+					Files.createDirectories(to);
+				} else if (!take(files, root, k, to)) {
+					remaining[count++] = indices[k];
+				}
+			}
+		}
+		log.finest("Linked " + (indices.length - count) + " entries from " + source);
+		return Arrays.copyOf(remaining, count);
+	}
+
+	/**
+	 * Links or copies entry {@code k} if the file opened through
+	 * {@link SourceFiles}, so without following a symlink anywhere below the
+	 * folder, matches the manifest. A hard link is made by path, so it is
+	 * only kept if it leads to that same file; otherwise the opened file is
+	 * copied.
+	 */
+	private boolean take(SourceFiles files, File root, int k, Path to) throws IOException {
+		SourceFiles.Opened opened;
+		try {
+			opened = files.open(k);
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+		try (SourceFiles.Opened from = opened) {
+			if (from.size != selected.getSize(k) || from.lastModified != selected.getLastModified(k)) {
+				return false;
+			}
+			Files.createDirectories(to.getParent());
+			Files.deleteIfExists(to);
+			if (hardLinks && from.fileKey != null && link(selected.getSourceFile(root, k).toPath(), to, from.fileKey)) {
+				return true;
+			}
+			Files.copy(from.in, to);
+			Files.setLastModifiedTime(to, FileTime.fromMillis(from.lastModified));
+			DataTransfer.setMode(to, from.mode);
+			return true;
+		}
+	}
+
+	private static boolean link(Path from, Path to, Object fileKey) throws IOException {
+		try {
+			Files.createLink(to, from);
+		} catch (UnsupportedOperationException | IOException e) {
+			log.finest("Hard link failed, copying " + from + ": " + e);
+			return false;
+		}
+		if (fileKey.equals(Files.readAttributes(to, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).fileKey())) {
+			return true;
+		}
+		// the path led somewhere else since the file was opened
+		Files.delete(to);
+		throw new IOException(DataManifest.Scanner.SYMLINKS + ": " + from);
+	}
+}
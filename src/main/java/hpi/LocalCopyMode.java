@@ -0,0 +1,28 @@
+package hpi;
+
+/**
+ * How files are copied when the node can read the source folder directly,
+ * as on the built-in node or on agents that mount JENKINS_HOME at the same
+ * path. The data then does not have to travel through the channel at all.
+ */
+public enum LocalCopyMode {
+	/** Always stream the data through the channel. */
+	STREAM("Always send the data"),
+	/**
+	 * Let the file system copy the files; copy-on-write file systems clone
+	 * them without writing the data again.
+	 */
+	CLONE("Copy on the node (clone where the file system supports it)"),
+	/** Hard link the files, falling back to a copy on another file system. */
+	HARD_LINK("Hard link (files must not be modified by the build)");
+
+	private final String displayName;
+
+	LocalCopyMode(String displayName) {
+		this.displayName = displayName;
+	}
+
+	public String getDisplayName() {
+		return displayName;
+	}
+}
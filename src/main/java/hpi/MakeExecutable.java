@@ -0,0 +1,49 @@
+package hpi;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+
+/**
+ * Sets mode 0755 on the files of a manifest in a single call on the node that
+ * holds the workspace. Nothing outside the manifest is touched, so the cost
+ * depends on the copied data and not on the size of the workspace. Returns the
+ * number of files updated; on file systems without POSIX permissions this is
+ * a no-op.
+ */
+final class MakeExecutable extends MasterToSlaveFileCallable<Integer> {
+	private static final long serialVersionUID = 1L;
+	private static final Set<PosixFilePermission> MODE_0755 = PosixFilePermissions.fromString("rwxr-xr-x");
+
+	private final DataManifest manifest;
+
+	MakeExecutable(DataManifest manifest) {
+		this.manifest = manifest;
+	}
+
+	@Override
+	public Integer invoke(File workspace, VirtualChannel channel) throws IOException {
+		if (!FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+			return 0;
+		}
+		int count = 0;
+		for (int i = 0; i < manifest.size(); i++) {
+			if (manifest.isDirectory(i)) {
+				continue;
+			}
+			File f = new File(workspace, manifest.getPath(i));
+			if (f.isFile()) {
+				Files.setPosixFilePermissions(f.toPath(), MODE_0755);
+				count++;
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,374 @@
+package hpi;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Manifests of the source folders, shared by all jobs and kept until a
+ * folder changes. Every directory below an indexed folder is registered with
+ * a {@link WatchService}; any event in it moves the folder to a new
+ * generation, and a manifest taken in an older generation is scanned again
+ * when it is next asked for. An unchanged folder is thus listed once rather
+ * than by every build, and the manifest keeps its compact arrays in memory.
+ * <p>
+ * Events arrive asynchronously, so before answering, the index creates a
+ * marker file in a watched directory of its own and waits for its event.
+ * The watch service reports events in order, so every change made before
+ * the build asked has been counted by then.
+ * <p>
+ * The index lives in memory only: changes made while the controller is down
+ * cannot be observed, so the first build after a restart scans the folder.
+ * The checksums, which are the expensive part, are stored on disk by
+ * {@link ChecksumCache}. Where the file system only offers a polling watch
+ * service, or a folder cannot be watched, every build scans as before.
+ */
+final class ManifestIndex {
+	private static final Logger log = Logger.getLogger(ManifestIndex.class.getName());
+	/** Manifests kept at most; the least recently used one is dropped first. */
+	static final int MAX_MANIFESTS = 64;
+
+	/** Scans the folders when the index cannot answer. */
+	interface Scan {
+		DataManifest scan() throws IOException, InterruptedException;
+	}
+
+	private final Map<String, Entry> manifests = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			return size() > MAX_MANIFESTS;
+		}
+	};
+	/** How long to wait for the marker event before scanning anyway. */
+	private static final long SYNC_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+
+	/** Scans in progress, so concurrent builds of one folder list it once. */
+	private final KeyedLocks locks = new KeyedLocks();
+	private Watcher watcher;
+	private boolean unavailable;
+
+	/**
+	 * Returns the manifest stored under {@code key} if none of the folders it
+	 * was taken from changed since, otherwise runs {@code scan} and stores
+	 * its result. The key has to describe everything the scan depends on.
+	 */
+	DataManifest get(String key, List<Path> folders, Scan scan) throws IOException, InterruptedException {
+		Watcher w = watcher();
+		if (w == null) {
+			return scan.scan();
+		}
+		try (KeyedLocks.Held lock = locks.lock(key)) {
+			if (!w.sync()) {
+				log.fine("The folder watcher did not respond, scanning " + folders);
+				return scan.scan();
+			}
+			long[] generations = new long[folders.size()];
+			for (int k = 0; k < generations.length; k++) {
+				generations[k] = w.watch(folders.get(k));
+				if (generations[k] < 0) {
+					return scan.scan();
+				}
+			}
+			Entry entry;
+			synchronized (manifests) {
+				entry = manifests.get(key);
+			}
+			if (entry != null && entry.folders.equals(folders)
+					&& Arrays.equals(entry.generations, generations)) {
+				log.finest("Using the indexed manifest of " + folders);
+				return entry.manifest;
+			}
+			// a change during the scan moves the generation on, so the next build scans again
+			DataManifest manifest = scan.scan();
+			synchronized (manifests) {
+				manifests.put(key, new Entry(folders, generations, manifest));
+			}
+			return manifest;
+		}
+	}
+
+	/**
+	 * Drops all manifests and stops watching.
+	 */
+	synchronized void clear() {
+		synchronized (manifests) {
+			manifests.clear();
+		}
+		if (watcher != null) {
+			watcher.close();
+			watcher = null;
+		}
+	}
+
+	synchronized int size() {
+		synchronized (manifests) {
+			return manifests.size();
+		}
+	}
+
+	private synchronized Watcher watcher() {
+		if (watcher == null && !unavailable) {
+			try {
+				WatchService service = FileSystems.getDefault().newWatchService();
+				if (service.getClass().getName().endsWith("PollingWatchService")) {
+					// changes would only be seen seconds later
+					service.close();
+					unavailable = true;
+					log.fine("No native file watching, source folders are scanned for every build");
+					return null;
+				}
+				try {
+					watcher = new Watcher(service);
+				} catch (IOException e) {
+					service.close();
+					throw e;
+				}
+			} catch (IOException | UnsupportedOperationException e) {
+				unavailable = true;
+				log.fine("Cannot watch source folders, they are scanned for every build: " + e);
+			}
+		}
+		return watcher;
+	}
+
+	private static final class Entry {
+		final List<Path> folders;
+		final long[] generations;
+		final DataManifest manifest;
+
+		Entry(List<Path> folders, long[] generations, DataManifest manifest) {
+			this.folders = new ArrayList<>(folders);
+			this.generations = generations;
+			this.manifest = manifest;
+		}
+	}
+
+	/**
+	 * Watches the directory trees of the indexed folders on a thread of its
+	 * own and counts their generations.
+	 */
+	private static final class Watcher implements Runnable {
+		private final WatchService service;
+		private final Map<Path, Root> roots = new HashMap<>();
+		private final Map<WatchKey, List<Root>> keys = new HashMap<>();
+		/** Source of generations, so a folder watched again never repeats an earlier one. */
+		private long clock;
+		/** Directory of the marker files, and the number of the last marker requested and seen. */
+		private final Path markers;
+		private final WatchKey markerKey;
+		private final Object markerLock = new Object();
+		private long markersRequested;
+		private long markersSeen;
+
+		Watcher(WatchService service) throws IOException {
+			this.service = service;
+			this.markers = Files.createTempDirectory("copy-data-index");
+			this.markerKey = markers.register(service, StandardWatchEventKinds.ENTRY_CREATE);
+			new NamingThreadFactory(new DaemonThreadFactory(), "Copy data to workspace folder watcher")
+					.newThread(this).start();
+		}
+
+		/**
+		 * Current generation of {@code folder}, which is watched from now
+		 * on, or -1 when it cannot be watched.
+		 */
+		synchronized long watch(Path folder) throws IOException {
+			Object fileKey;
+			try {
+				fileKey = Files.readAttributes(folder, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).fileKey();
+			} catch (NoSuchFileException e) {
+				// the scan reports it
+				return -1;
+			}
+			Root root = roots.get(folder);
+			if (root != null && !Objects.equals(root.fileKey, fileKey)) {
+				// replaced by another directory, whose subdirectories are not watched
+				forget(root);
+				root = null;
+			}
+			if (root == null) {
+				root = new Root(folder, fileKey, ++clock);
+				roots.put(folder, root);
+				try {
+					register(folder, root);
+				} catch (IOException e) {
+					log.fine("Cannot watch " + folder + ", it is scanned for every build: " + e);
+					forget(root);
+					roots.put(folder, root);
+					root.failed = true;
+				}
+			}
+			return root.failed ? -1 : root.generation;
+		}
+
+		/**
+		 * Waits until the events of all changes made so far have been
+		 * counted. Returns {@code false} if that takes too long.
+		 */
+		boolean sync() throws IOException, InterruptedException {
+			long marker;
+			synchronized (markerLock) {
+				marker = ++markersRequested;
+			}
+			Path file = markers.resolve(Long.toString(marker));
+			Files.createFile(file);
+			try {
+				synchronized (markerLock) {
+					long deadline = System.currentTimeMillis() + SYNC_TIMEOUT;
+					while (markersSeen < marker) {
+						long remaining = deadline - System.currentTimeMillis();
+						if (remaining <= 0) {
+							return false;
+						}
+						markerLock.wait(remaining);
+					}
+					return true;
+				}
+			} finally {
+				Files.deleteIfExists(file);
+			}
+		}
+
+		private void register(Path dir, Root root) throws IOException {
+			Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+					WatchKey key = d.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+							StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+					List<Root> watchers = keys.computeIfAbsent(key, k -> new ArrayList<>(1));
+					if (!watchers.contains(root)) {
+						watchers.add(root);
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+					if (e instanceof NoSuchFileException) {
+						// deleted while walking, which its parent reports
+						return FileVisitResult.CONTINUE;
+					}
+					throw e;
+				}
+			});
+		}
+
+		private void forget(Root root) {
+			roots.values().remove(root);
+			for (Iterator<Map.Entry<WatchKey, List<Root>>> it = keys.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<WatchKey, List<Root>> entry = it.next();
+				if (entry.getValue().remove(root) && entry.getValue().isEmpty()) {
+					entry.getKey().cancel();
+					it.remove();
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					WatchKey key = service.take();
+					if (key == markerKey) {
+						seen(key);
+						continue;
+					}
+					synchronized (this) {
+						List<Root> watchers = keys.get(key);
+						for (WatchEvent<?> event : key.pollEvents()) {
+							if (watchers == null) {
+								continue;
+							}
+							for (Root root : watchers) {
+								root.generation = ++clock;
+							}
+							if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+								Path created = ((Path) key.watchable()).resolve((Path) event.context());
+								if (Files.isDirectory(created, LinkOption.NOFOLLOW_LINKS)) {
+									for (Root root : new ArrayList<>(watchers)) {
+										try {
+											register(created, root);
+										} catch (IOException e) {
+											log.fine("Cannot watch " + created + ": " + e);
+											forget(root);
+										}
+									}
+								}
+							}
+						}
+						if (!key.reset()) {
+							// the directory is gone; a folder recreated at its path is registered again
+							keys.remove(key);
+							for (Root root : watchers == null ? List.<Root>of() : watchers) {
+								root.generation = ++clock;
+								if (root.path.equals(key.watchable())) {
+									forget(root);
+								}
+							}
+						}
+					}
+				}
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				// closed
+			}
+		}
+
+		private void seen(WatchKey key) {
+			synchronized (markerLock) {
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+						markersSeen = Math.max(markersSeen, Long.parseLong(event.context().toString()));
+					}
+				}
+				markerLock.notifyAll();
+			}
+			key.reset();
+		}
+
+		void close() {
+			try {
+				service.close();
+				DeleteCopiedFiles.deleteTree(markers);
+			} catch (IOException e) {
+				log.fine("Failed to close the folder watcher: " + e);
+			}
+		}
+	}
+
+	private static final class Root {
+		final Path path;
+		final Object fileKey;
+		long generation;
+		boolean failed;
+
+		Root(Path path, Object fileKey, long generation) {
+			this.path = path;
+			this.fileKey = fileKey;
+			this.generation = generation;
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package hpi;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Moves files copied ahead of time into a staging directory next to the
+ * workspace into their final place, then removes the staging directory. The
+ * staging directory is on the same file system, so each file appears in the
+ * workspace atomically and no data is copied again. Files the transfer
+ * skipped because they disappeared from the source are not in the staging
+ * directory and are skipped here too.
+ */
+final class MoveStagedFiles extends MasterToSlaveFileCallable<Integer> {
+	private static final long serialVersionUID = 1L;
+
+	/** Only the entries that were staged. */
+	private final DataManifest selected;
+	private final String staging;
+
+	MoveStagedFiles(DataManifest manifest, int[] indices, String staging) {
+		this.selected = manifest.select(indices);
+		this.staging = staging;
+	}
+
+	@Override
+	public Integer invoke(File workspace, VirtualChannel channel) throws IOException {
+		File stagingDir = new File(staging);
+		int moved = 0;
+		for (int k = 0; k < selected.size(); k++) {
+			Path target = new File(workspace, selected.getPath(k)).toPath();
+			if (selected.isDirectory(k)) {
+				Files.createDirectories(target);
+				continue;
+			}
+			Files.createDirectories(target.getParent());
+			try {
+				Files.move(new File(stagingDir, selected.getPath(k)).toPath(), target,
+						StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (NoSuchFileException e) {
+				continue;
+			}
+			moved++;
+		}
+		DeleteCopiedFiles.deleteTree(stagingDir.toPath());
+		return moved;
+	}
+}
@@ -0,0 +1,394 @@
+package hpi;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Per-node cache of copied data folders. Each cached folder lives in
+ * {@code <node root>/copy-data-cache/<key>} where the key is the
+ * {@link DataManifest#identity identity} of the source folders and their
+ * version, so a folder is transferred to a node once and then
+ * materialized into every workspace with local copies or hard links. Cached
+ * files are made read-only when the entry is published, so a build cannot
+ * change them through a hard link by writing to the file in place.
+ */
+final class NodeDataCache {
+	static final String CACHE_DIR = "copy-data-cache";
+	/** Written into a cache entry once it is complete; its mtime is the last use. */
+	static final String MARKER = ".copy-data-complete";
+	/** Suffix of the directory an entry is filled in; kept after a failed fill so the next one resumes. */
+	static final String FILLING = ".filling";
+	/** Fills abandoned for this long are removed by eviction. */
+	private static final long ABANDONED_MILLIS = 24L * 60 * 60 * 1000;
+
+	private static final Logger log = Logger.getLogger(NodeDataCache.class.getName());
+
+	/**
+	 * Cache entries in use: filled or evicted under the exclusive lock, read
+	 * under the shared one. Concurrent builds on one node thus transfer the
+	 * data once, and an entry is never deleted while it is materialized.
+	 */
+	private static final KeyedLocks locks = new KeyedLocks();
+
+	private final String node;
+	private final FilePath root;
+
+	private NodeDataCache(String node, FilePath root) {
+		this.node = node;
+		this.root = root;
+	}
+
+	/**
+	 * Returns the cache of the given node, or {@code null} when the node is
+	 * offline or unknown.
+	 */
+	static NodeDataCache of(Node node) {
+		if (node == null) {
+			return null;
+		}
+		FilePath nodeRoot = node.getRootPath();
+		return nodeRoot == null ? null : new NodeDataCache(node.getNodeName(), nodeRoot.child(CACHE_DIR));
+	}
+
+	/**
+	 * Transfers all entries of the manifest into a directory on the node.
+	 */
+	interface Fill {
+		/**
+		 * @param basis directory on the node with older copies to compute deltas against
+		 */
+		DataTransfer.Stats copy(FilePath target, FilePath basis) throws IOException, InterruptedException;
+	}
+
+	/**
+	 * Populates {@code workspace} with the entries of {@code manifest}, read
+	 * from {@code source}, listed in {@code indices}, filling the cache with
+	 * {@code fill} first if needed. Returns the statistics of the transfer
+	 * that filled the cache, or empty wire statistics on a cache hit.
+	 */
+	DataTransfer.Stats copy(File source, DataManifest manifest, int[] indices, FilePath workspace,
+			boolean hardLinks, long sizeLimit, TaskListener listener, Fill fill)
+			throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		String key = manifest.identity(source);
+		FilePath entry = root.child(key);
+		DataTransfer.Stats stats = null;
+		// an entry is only filled or evicted under its exclusive lock, so reading it under the shared one is safe
+		KeyedLocks.Held reading = locks.tryLockShared(lockKey(key));
+		if (reading == null) {
+			listener.getLogger().println("Waiting for a concurrent fill of the node cache");
+			reading = locks.lockSharedInterruptibly(lockKey(key));
+		}
+		try {
+			if (!entry.child(MARKER).exists()) {
+				reading.close();
+				reading = null;
+				KeyedLocks.Held filling = locks.tryLock(lockKey(key));
+				if (filling == null) {
+					listener.getLogger().println("Waiting for a concurrent fill of the node cache");
+					filling = locks.lockInterruptibly(lockKey(key));
+				}
+				try (KeyedLocks.Held held = filling) {
+					// the build that held the lock may have filled the entry
+					if (!entry.child(MARKER).exists()) {
+						listener.getLogger().println("Node cache miss for " + key.substring(0, 12)
+								+ ", filling cache");
+						stats = fill(fill, manifest, entry);
+						listener.getLogger().println(stats);
+						long evicted = evict(sizeLimit, key);
+						if (evicted > 0) {
+							listener.getLogger().println("Node cache evicted " + evicted + " bytes");
+						}
+					}
+					// taken before the exclusive lock is released, so the entry cannot be evicted in between
+					reading = locks.lockSharedInterruptibly(lockKey(key));
+				}
+			}
+			if (stats == null) {
+				listener.getLogger().println("Node cache hit for " + key.substring(0, 12));
+				stats = DataTransfer.Stats.count(manifest, indices);
+			}
+			workspace.act(new Materialize(entry.getRemote(), manifest, indices, hardLinks));
+		} finally {
+			if (reading != null) {
+				reading.close();
+			}
+		}
+		stats.nanos = System.nanoTime() - start;
+		return stats;
+	}
+
+	private String lockKey(String key) {
+		return node + '/' + key;
+	}
+
+	private DataTransfer.Stats fill(Fill fill, DataManifest manifest, FilePath entry)
+			throws IOException, InterruptedException {
+		root.mkdirs();
+		if (entry.exists()) {
+			// left over from an interrupted eviction
+			entry.deleteRecursive();
+		}
+		// files and checkpoints of an earlier, failed fill are kept and completed
+		FilePath staging = root.child(entry.getName() + FILLING);
+		staging.mkdirs();
+		staging.touch(System.currentTimeMillis());
+		// deltas are computed against the entry used last, most likely an older version of the same data,
+		// unless it is being evicted
+		String latest = root.act(new Latest(entry.getName()));
+		DataTransfer.Stats stats;
+		try (KeyedLocks.Held basis = latest == null ? null : locks.tryLockShared(lockKey(latest))) {
+			stats = fill.copy(staging, basis == null ? staging : root.child(latest));
+		}
+		staging.act(new Publish(entry.getRemote(), manifest.totalSize()));
+		if (staging.exists()) {
+			staging.deleteRecursive();
+		}
+		return stats;
+	}
+
+	/**
+	 * Deletes the least recently used complete entries until the cache fits
+	 * in {@code limit} bytes, and the fills nobody resumed for a day. The
+	 * entry that was just filled is kept. Each entry is only deleted under
+	 * its exclusive lock, so entries that builds are reading or filling are
+	 * skipped. Returns the number of bytes freed by evicting entries.
+	 */
+	private long evict(long limit, String keep) throws IOException, InterruptedException {
+		List<Cached> cached = root.act(new ListEntries());
+		long total = 0;
+		for (Cached c : cached) {
+			total += c.size;
+		}
+		long freed = 0;
+		for (Cached c : cached) {
+			boolean abandoned = c.name.endsWith(FILLING);
+			if (!abandoned && (total - freed <= limit || c.name.equals(keep))) {
+				continue;
+			}
+			String key = abandoned ? c.name.substring(0, c.name.length() - FILLING.length()) : c.name;
+			try (KeyedLocks.Held lock = locks.tryLock(lockKey(key))) {
+				if (lock == null) {
+					// in use
+					continue;
+				}
+				root.child(c.name).act(new Remove());
+				if (!abandoned) {
+					freed += c.size;
+				}
+			}
+		}
+		return freed;
+	}
+
+	/**
+	 * Links or copies a single file; hard links fall back to a copy when the
+	 * file system does not support them or the files are on different devices.
+	 * Returns whether the file was linked.
+	 */
+	static boolean materialize(Path from, Path to, boolean hardLink) throws IOException {
+		Files.createDirectories(to.getParent());
+		Files.deleteIfExists(to);
+		if (hardLink) {
+			try {
+				Files.createLink(to, from);
+				return true;
+			} catch (UnsupportedOperationException | IOException e) {
+				log.finest("Hard link failed, copying " + from + ": " + e);
+			}
+		}
+		Files.copy(from, to, StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
+		return false;
+	}
+
+	/**
+	 * Makes the files of a freshly filled staging directory read-only, moves
+	 * it into its final place and marks it complete. If another build
+	 * published the same key first, the staging copy is simply dropped by the
+	 * caller.
+	 */
+	private static final class Publish extends MasterToSlaveFileCallable<Void> {
+		private static final long serialVersionUID = 1L;
+		private final String target;
+		private final long size;
+
+		Publish(String target, long size) {
+			this.target = target;
+			this.size = size;
+		}
+
+		@Override
+		public Void invoke(File staging, VirtualChannel channel) throws IOException {
+			try (Stream<Path> files = Files.walk(staging.toPath())) {
+				files.filter(p -> Files.isRegularFile(p, LinkOption.NOFOLLOW_LINKS))
+						.forEach(p -> p.toFile().setWritable(false, false));
+			}
+			Files.write(new File(staging, MARKER).toPath(),
+					Long.toString(size).getBytes(StandardCharsets.UTF_8));
+			try {
+				Files.move(staging.toPath(), new File(target).toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (FileAlreadyExistsException e) {
+				log.finest("Cache entry already published: " + target);
+			} catch (IOException e) {
+				if (!new File(target, MARKER).exists()) {
+					throw e;
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Populates a workspace from a complete cache entry and records the use by
+	 * touching the entry marker. Also copies from other directories laid out
+	 * like an entry. Copies are made writable again; only links share the
+	 * read-only cached file.
+	 */
+	static final class Materialize extends MasterToSlaveFileCallable<Void> {
+		private static final long serialVersionUID = 1L;
+		private final String entry;
+		/** Only the entries to populate. */
+		private final DataManifest selected;
+		private final boolean hardLinks;
+
+		Materialize(String entry, DataManifest manifest, int[] indices, boolean hardLinks) {
+			this.entry = entry;
+			this.selected = manifest.select(indices);
+			this.hardLinks = hardLinks;
+		}
+
+		@Override
+		public Void invoke(File workspace, VirtualChannel channel) throws IOException {
+			File source = new File(entry);
+			new File(source, MARKER).setLastModified(System.currentTimeMillis());
+			for (int k = 0; k < selected.size(); k++) {
+				String path = selected.getPath(k);
+				File to = new File(workspace, path);
+				if (selected.isDirectory(k)) {
+					Files.createDirectories(to.toPath());
+				} else {
+					if (!materialize(new File(source, path).toPath(), to.toPath(), hardLinks)) {
+						to.setWritable(true);
+					}
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the name of the most recently used complete entry other than
+	 * {@code exclude}, or {@code null} when there is none.
+	 */
+	private static final class Latest extends MasterToSlaveFileCallable<String> {
+		private static final long serialVersionUID = 1L;
+		private final String exclude;
+
+		Latest(String exclude) {
+			this.exclude = exclude;
+		}
+
+		@Override
+		public String invoke(File cacheRoot, VirtualChannel channel) {
+			File[] entries = cacheRoot.listFiles(f -> !f.getName().equals(exclude) && new File(f, MARKER).isFile());
+			if (entries == null || entries.length == 0) {
+				return null;
+			}
+			File latest = entries[0];
+			for (File e : entries) {
+				if (new File(e, MARKER).lastModified() > new File(latest, MARKER).lastModified()) {
+					latest = e;
+				}
+			}
+			return latest.getName();
+		}
+	}
+
+	/**
+	 * A cache entry as listed by {@link ListEntries}.
+	 */
+	private static final class Cached implements Serializable {
+		private static final long serialVersionUID = 1L;
+		final String name;
+		/** Size of the data, 0 for an abandoned fill. */
+		final long size;
+
+		Cached(String name, long size) {
+			this.name = name;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Lists the complete entries of the cache, least recently used first,
+	 * followed by the fills nobody resumed for a day.
+	 */
+	private static final class ListEntries extends MasterToSlaveFileCallable<ArrayList<Cached>> {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public ArrayList<Cached> invoke(File cacheRoot, VirtualChannel channel) throws IOException {
+			ArrayList<Cached> cached = new ArrayList<>();
+			File[] entries = cacheRoot.listFiles(f -> new File(f, MARKER).isFile());
+			if (entries != null) {
+				Arrays.sort(entries, Comparator.comparingLong(e -> new File(e, MARKER).lastModified()));
+				for (File e : entries) {
+					cached.add(new Cached(e.getName(), sizeOf(e)));
+				}
+			}
+			File[] abandoned = cacheRoot.listFiles(f -> f.getName().endsWith(FILLING)
+					&& f.lastModified() < System.currentTimeMillis() - ABANDONED_MILLIS);
+			if (abandoned != null) {
+				for (File f : abandoned) {
+					cached.add(new Cached(f.getName(), 0));
+				}
+			}
+			return cached;
+		}
+
+		private static long sizeOf(File entry) throws IOException {
+			try {
+				return Long.parseLong(new String(Files.readAllBytes(new File(entry, MARKER).toPath()),
+						StandardCharsets.UTF_8).trim());
+			} catch (NumberFormatException | NoSuchFileException e) {
+				return 0;
+			}
+		}
+	}
+
+	/**
+	 * Deletes a cache entry, or an abandoned fill.
+	 */
+	private static final class Remove extends MasterToSlaveFileCallable<Void> {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public Void invoke(File entry, VirtualChannel channel) throws IOException {
+			// remove the marker first so a half-deleted entry is never used
+			Files.deleteIfExists(new File(entry, MARKER).toPath());
+			Util.deleteRecursive(entry);
+			return null;
+		}
+	}
+}
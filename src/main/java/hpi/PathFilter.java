@@ -0,0 +1,203 @@
+package hpi;
+
+import org.apache.tools.ant.DirectoryScanner;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ant-style include and exclude patterns, compiled once into path segments
+ * so the source walk can match each entry without regular expressions. Apart
+ * from deciding whether a file is copied, the filter tells the walk whether a
+ * directory can contain anything that is copied, so excluded subtrees are
+ * never listed.
+ * <p>
+ * Patterns are separated by commas, use '/' as separator and support
+ * {@code *} and {@code ?} within a segment and {@code **} for any number of
+ * directories. A pattern ending with '/' matches everything below it.
+ */
+final class PathFilter implements Serializable {
+	private static final long serialVersionUID = 1L;
+	private static final String ANY_DIRS = "**";
+
+	private final String[][] includes;
+	private final String[][] excludes;
+
+	private PathFilter(String[][] includes, String[][] excludes) {
+		this.includes = includes;
+		this.excludes = excludes;
+	}
+
+	/**
+	 * Compiles the given pattern lists, or returns {@code null} when both are
+	 * empty and everything is copied.
+	 */
+	static PathFilter compile(String includes, String excludes) {
+		String[][] in = parse(includes);
+		String[][] ex = parse(excludes);
+		return in.length == 0 && ex.length == 0 ? null : new PathFilter(in, ex);
+	}
+
+	/**
+	 * Compiles the given pattern lists and, unless {@code defaultExcludes} is
+	 * off, also excludes Ant's default excludes: version control metadata such
+	 * as {@code .git/} and {@code .svn/}, editor backups and {@code .DS_Store}.
+	 */
+	static PathFilter compile(String includes, String excludes, boolean defaultExcludes) {
+		if (!defaultExcludes) {
+			return compile(includes, excludes);
+		}
+		String defaults = String.join(",", DirectoryScanner.getDefaultExcludes());
+		return compile(includes, excludes == null ? defaults : excludes + "," + defaults);
+	}
+
+	private static String[][] parse(String patterns) {
+		List<String[]> parsed = new ArrayList<>();
+		if (patterns != null) {
+			for (String pattern : patterns.split(",")) {
+				String p = pattern.trim().replace('\\', '/');
+				while (p.startsWith("/")) {
+					p = p.substring(1);
+				}
+				if (p.isEmpty()) {
+					continue;
+				}
+				if (p.endsWith("/")) {
+					p += ANY_DIRS;
+				}
+				List<String> segments = new ArrayList<>();
+				for (String segment : p.split("/+")) {
+					// consecutive ** segments are equivalent to one
+					if (!(segment.equals(ANY_DIRS) && !segments.isEmpty()
+							&& segments.get(segments.size() - 1).equals(ANY_DIRS))) {
+						segments.add(segment);
+					}
+				}
+				parsed.add(segments.toArray(new String[0]));
+			}
+		}
+		return parsed.toArray(new String[0][]);
+	}
+
+	boolean hasIncludes() {
+		return includes.length > 0;
+	}
+
+	/**
+	 * Tells whether the file at the given relative path is copied.
+	 */
+	boolean includesFile(String path) {
+		String[] segments = path.split("/");
+		if (includes.length > 0 && !matchesAny(includes, segments)) {
+			return false;
+		}
+		return !matchesAny(excludes, segments);
+	}
+
+	/**
+	 * Tells whether the walk has to enter the directory at the given relative
+	 * path: some include pattern may match below it, and no exclude pattern
+	 * ending with {@code **} covers it entirely.
+	 */
+	boolean entersDirectory(String path) {
+		String[] segments = path.split("/");
+		for (String[] exclude : excludes) {
+			if (exclude[exclude.length - 1].equals(ANY_DIRS) && match(exclude, 0, segments, 0)) {
+				return false;
+			}
+		}
+		if (includes.length == 0) {
+			return true;
+		}
+		for (String[] include : includes) {
+			if (matchStart(include, segments)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean matchesAny(String[][] patterns, String[] segments) {
+		for (String[] pattern : patterns) {
+			if (match(pattern, 0, segments, 0)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Matches the whole path against the pattern, {@code **} standing for
+	 * zero or more segments.
+	 */
+	private static boolean match(String[] pattern, int p, String[] path, int s) {
+		while (p < pattern.length) {
+			if (pattern[p].equals(ANY_DIRS)) {
+				if (p == pattern.length - 1) {
+					return true;
+				}
+				for (int skip = s; skip <= path.length; skip++) {
+					if (match(pattern, p + 1, path, skip)) {
+						return true;
+					}
+				}
+				return false;
+			}
+			if (s == path.length || !matchSegment(pattern[p], path[s])) {
+				return false;
+			}
+			p++;
+			s++;
+		}
+		return s == path.length;
+	}
+
+	/**
+	 * Tells whether the directory path can be the beginning of a path that
+	 * matches the pattern.
+	 */
+	private static boolean matchStart(String[] pattern, String[] dir) {
+		for (int i = 0; i < dir.length; i++) {
+			if (i == pattern.length) {
+				return false;
+			}
+			if (pattern[i].equals(ANY_DIRS)) {
+				return true;
+			}
+			if (!matchSegment(pattern[i], dir[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Matches one path segment against a pattern segment with {@code *} and
+	 * {@code ?} wildcards, backtracking only to the last {@code *}.
+	 */
+	static boolean matchSegment(String pattern, String name) {
+		int p = 0;
+		int n = 0;
+		int star = -1;
+		int mark = 0;
+		while (n < name.length()) {
+			if (p < pattern.length() && (pattern.charAt(p) == '?' || pattern.charAt(p) == name.charAt(n))) {
+				p++;
+				n++;
+			} else if (p < pattern.length() && pattern.charAt(p) == '*') {
+				star = p++;
+				mark = n;
+			} else if (star >= 0) {
+				p = star + 1;
+				n = ++mark;
+			} else {
+				return false;
+			}
+		}
+		while (p < pattern.length() && pattern.charAt(p) == '*') {
+			p++;
+		}
+		return p == pattern.length();
+	}
+}
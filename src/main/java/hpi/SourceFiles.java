@@ -0,0 +1,241 @@
+package hpi;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.SecureDirectoryStream;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Opens the files of a manifest for reading without following a symlink
+ * anywhere below their source folder, so a directory swapped for a symlink
+ * after the scan cannot lead the transfer out of the folder. A file is
+ * opened relative to handles of the directories leading to it, each of them
+ * opened without following links. The handles of the last path stay open,
+ * which suits reading the files in manifest order. Where the platform has no
+ * such handles, every directory on the path is checked before the file is
+ * opened.
+ */
+final class SourceFiles implements Closeable {
+	private static final Set<OpenOption> READ = Set.of(StandardOpenOption.READ, LinkOption.NOFOLLOW_LINKS);
+
+	private final DataManifest manifest;
+	private final File root;
+	/** Source folder the open handles belong to. */
+	private File folder;
+	/** Handle of the source folder followed by those of the directories below it, with their names. */
+	private final List<SecureDirectoryStream<Path>> handles = new ArrayList<>();
+	private final List<String> names = new ArrayList<>();
+	private boolean secure = true;
+
+	SourceFiles(DataManifest manifest, File root) {
+		this.manifest = manifest;
+		this.root = root;
+	}
+
+	/**
+	 * A file opened for reading, with its path in the manifest, its
+	 * permission bits, or -1 when the file system has none, and the
+	 * attributes read through the same handle.
+	 */
+	static final class Opened implements Closeable {
+		final InputStream in;
+		final String name;
+		final int mode;
+		final long size;
+		final long lastModified;
+		/** Identifies the file on its file system, {@code null} where there is no such key. */
+		final Object fileKey;
+
+		Opened(InputStream in, String name, int mode, BasicFileAttributes attrs) {
+			this.in = in;
+			this.name = name;
+			this.mode = mode;
+			this.size = attrs.size();
+			this.lastModified = attrs.lastModifiedTime().toMillis();
+			this.fileKey = attrs.fileKey();
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/**
+	 * Opens the file of entry {@code i}. Throws {@link NoSuchFileException}
+	 * when it has gone since the scan.
+	 */
+	Opened open(int i) throws IOException {
+		File source = manifest.getSourceFolder(root, i);
+		String[] segments = manifest.getSourcePath(i).split("/");
+		SecureDirectoryStream<Path> dir = secure ? directory(source, segments) : null;
+		if (dir == null) {
+			return openChecked(manifest.getSourceFile(root, i).toPath(), source.toPath(), manifest.getPath(i));
+		}
+		Path name = source.toPath().getFileSystem().getPath(segments[segments.length - 1]);
+		InputStream in;
+		try {
+			in = Channels.newInputStream(dir.newByteChannel(name, READ));
+		} catch (NoSuchFileException e) {
+			throw e;
+		} catch (IOException e) {
+			throw symlinkOr(dir, name, e);
+		}
+		int mode = -1;
+		BasicFileAttributes attrs = null;
+		try {
+			PosixFileAttributeView view = dir.getFileAttributeView(name, PosixFileAttributeView.class,
+					LinkOption.NOFOLLOW_LINKS);
+			if (view != null) {
+				PosixFileAttributes posix = view.readAttributes();
+				mode = mode(posix.permissions());
+				attrs = posix;
+			}
+		} catch (IOException | UnsupportedOperationException e) {
+			// no permission bits
+		}
+		try {
+			if (attrs == null) {
+				attrs = dir.getFileAttributeView(name, BasicFileAttributeView.class, LinkOption.NOFOLLOW_LINKS)
+						.readAttributes();
+			}
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+		return new Opened(in, manifest.getPath(i), mode, attrs);
+	}
+
+	/**
+	 * Opens a single file, only refusing a symlink at the file itself.
+	 */
+	static Opened open(File f) throws IOException {
+		return openChecked(f.toPath(), f.toPath().getParent(), f.getPath());
+	}
+
+	/**
+	 * The handle of the directory holding the file, or {@code null} when the
+	 * platform has no directory handles.
+	 */
+	private SecureDirectoryStream<Path> directory(File source, String[] segments) throws IOException {
+		if (!source.equals(folder)) {
+			close(0);
+			folder = null;
+			DirectoryStream<Path> stream = Files.newDirectoryStream(source.toPath());
+			if (!(stream instanceof SecureDirectoryStream)) {
+				stream.close();
+				secure = false;
+				return null;
+			}
+			handles.add((SecureDirectoryStream<Path>) stream);
+			names.add("");
+			folder = source;
+		}
+		// handle d is the directory segments[d - 1]
+		int depth = 1;
+		while (depth < handles.size() && depth < segments.length && names.get(depth).equals(segments[depth - 1])) {
+			depth++;
+		}
+		close(depth);
+		for (; depth < segments.length; depth++) {
+			SecureDirectoryStream<Path> parent = handles.get(depth - 1);
+			Path name = source.toPath().getFileSystem().getPath(segments[depth - 1]);
+			try {
+				handles.add(parent.newDirectoryStream(name, LinkOption.NOFOLLOW_LINKS));
+			} catch (NoSuchFileException e) {
+				throw e;
+			} catch (IOException e) {
+				throw symlinkOr(parent, name, e);
+			}
+			names.add(segments[depth - 1]);
+		}
+		return handles.get(segments.length - 1);
+	}
+
+	/**
+	 * Checks that no directory between {@code folder} and the file is a
+	 * symlink, then opens the file without following a symlink there.
+	 */
+	private static Opened openChecked(Path file, Path folder, String name) throws IOException {
+		for (Path dir = file.getParent(); dir != null && !dir.equals(folder); dir = dir.getParent()) {
+			BasicFileAttributes attrs = Files.readAttributes(dir, BasicFileAttributes.class,
+					LinkOption.NOFOLLOW_LINKS);
+			if (attrs.isSymbolicLink()) {
+				throw new IOException(DataManifest.Scanner.SYMLINKS + ": " + dir);
+			}
+		}
+		InputStream in;
+		try {
+			in = Files.newInputStream(file, StandardOpenOption.READ, LinkOption.NOFOLLOW_LINKS);
+		} catch (NoSuchFileException e) {
+			throw e;
+		} catch (IOException e) {
+			if (Files.isSymbolicLink(file)) {
+				throw new IOException(DataManifest.Scanner.SYMLINKS, e);
+			}
+			throw e;
+		}
+		BasicFileAttributes attrs;
+		try {
+			attrs = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+		return new Opened(in, name, DataTransfer.mode(file), attrs);
+	}
+
+	private static IOException symlinkOr(SecureDirectoryStream<Path> dir, Path name, IOException e) {
+		try {
+			BasicFileAttributes attrs = dir.getFileAttributeView(name, BasicFileAttributeView.class,
+					LinkOption.NOFOLLOW_LINKS).readAttributes();
+			if (attrs.isSymbolicLink()) {
+				return new IOException(DataManifest.Scanner.SYMLINKS + ": " + name, e);
+			}
+		} catch (IOException ignored) {
+			// report the original failure
+		}
+		return e;
+	}
+
+	private static int mode(Set<PosixFilePermission> permissions) {
+		int mode = 0;
+		for (PosixFilePermission permission : permissions) {
+			// ordered OWNER_READ ... OTHERS_EXECUTE, i.e. from 0400 down to 0001
+			mode |= 1 << (8 - permission.ordinal());
+		}
+		return mode;
+	}
+
+	/** Closes the handles from {@code depth} on. */
+	private void close(int depth) throws IOException {
+		while (handles.size() > depth) {
+			int last = handles.size() - 1;
+			names.remove(last);
+			handles.remove(last).close();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		close(0);
+		folder = null;
+	}
+}
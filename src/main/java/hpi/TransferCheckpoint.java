@@ -0,0 +1,195 @@
+package hpi;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * Progress of large files being received, kept in the workspace so a
+ * transfer cut off by a lost connection or an aborted build can continue
+ * where it stopped. A file of at least {@link #INTERVAL} bytes is written to
+ * a partial file next to its final name; after every {@link #INTERVAL} bytes
+ * the partial file is forced to disk and its length is recorded in a
+ * checkpoint together with the size and modification time of the source.
+ * The next transfer of the same version of the file only sends what comes
+ * after the checkpoint. Both files are removed once the file is complete.
+ */
+final class TransferCheckpoint {
+	/** Files smaller than this are sent whole; larger ones are checkpointed at this interval. */
+	static final long INTERVAL = 8L * 1024 * 1024;
+
+	private static final String PARTIAL = ".copy-data-part";
+	private static final String CHECKPOINT = ".copy-data-checkpoint";
+
+	private TransferCheckpoint() {
+	}
+
+	static Path partial(Path target) {
+		return target.resolveSibling("." + target.getFileName() + PARTIAL);
+	}
+
+	private static Path checkpoint(Path target) {
+		return target.resolveSibling("." + target.getFileName() + CHECKPOINT);
+	}
+
+	/**
+	 * Bytes of {@code target} already received for the given version of the
+	 * source, or 0. Progress recorded for another version is discarded.
+	 */
+	static long load(Path target, long size, long lastModified) throws IOException {
+		Path checkpoint = checkpoint(target);
+		long offset;
+		try (DataInputStream in = new DataInputStream(Files.newInputStream(checkpoint))) {
+			offset = in.readLong() == size && in.readLong() == lastModified ? in.readLong() : -1;
+		} catch (NoSuchFileException e) {
+			return 0;
+		} catch (IOException e) {
+			offset = -1;
+		}
+		Path partial = partial(target);
+		if (offset <= 0 || offset > size || !Files.isRegularFile(partial) || Files.size(partial) < offset) {
+			clear(target);
+			return 0;
+		}
+		return offset;
+	}
+
+	static void clear(Path target) throws IOException {
+		Files.deleteIfExists(checkpoint(target));
+		Files.deleteIfExists(partial(target));
+	}
+
+	private static void save(Path target, long size, long lastModified, long offset) throws IOException {
+		Path checkpoint = checkpoint(target);
+		Path tmp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(tmp))) {
+			out.writeLong(size);
+			out.writeLong(lastModified);
+			out.writeLong(offset);
+		}
+		Files.move(tmp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Opens the partial file of {@code target} for writing from
+	 * {@code offset}, dropping anything written after it. When {@code crc}
+	 * is given, it is first updated with the bytes already received.
+	 */
+	static OutputStream open(Path target, long size, long lastModified, long offset, CRC32C crc)
+			throws IOException {
+		FileChannel channel = FileChannel.open(partial(target), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			channel.truncate(offset);
+			if (crc != null) {
+				ByteBuffer buffer = ByteBuffer.allocate(DataTransfer.CHUNK_SIZE);
+				for (long position = 0; position < offset; buffer.clear()) {
+					int n = channel.read(buffer, position);
+					if (n < 0) {
+						throw new IOException("Partial file of " + target + " is shorter than its checkpoint");
+					}
+					buffer.flip();
+					crc.update(buffer);
+					position += n;
+				}
+			}
+			channel.position(offset);
+			return new Writer(channel, target, size, lastModified, offset);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes the partial file and records a checkpoint each time another
+	 * {@link #INTERVAL} bytes are on disk.
+	 */
+	private static final class Writer extends OutputStream {
+		private final FileChannel channel;
+		private final Path target;
+		private final long size;
+		private final long lastModified;
+		private long position;
+		private long next;
+
+		Writer(FileChannel channel, Path target, long size, long lastModified, long position) {
+			this.channel = channel;
+			this.target = target;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.position = position;
+			this.next = (position / INTERVAL + 1) * INTERVAL;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+			while (buffer.hasRemaining()) {
+				position += channel.write(buffer);
+			}
+			if (position >= next && position < size) {
+				channel.force(false);
+				save(target, size, lastModified, position);
+				next = (position / INTERVAL + 1) * INTERVAL;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Runs on the node and returns, for each of the selected entries, the
+	 * bytes already received by an earlier transfer, or {@code null} when
+	 * there is nothing to resume.
+	 */
+	static final class Find extends MasterToSlaveFileCallable<long[]> {
+		private static final long serialVersionUID = 1L;
+		/** Only the selected entries. */
+		private final DataManifest selected;
+
+		Find(DataManifest manifest, int[] indices) {
+			this.selected = manifest.select(indices);
+		}
+
+		@Override
+		public long[] invoke(File dir, VirtualChannel channel) throws IOException {
+			long[] offsets = null;
+			for (int k = 0; k < selected.size(); k++) {
+				if (selected.isDirectory(k) || selected.getSize(k) < INTERVAL) {
+					continue;
+				}
+				long offset = load(new File(dir, selected.getPath(k)).toPath(), selected.getSize(k),
+						selected.getLastModified(k));
+				if (offset > 0) {
+					if (offsets == null) {
+						offsets = new long[selected.size()];
+					}
+					offsets[k] = offset;
+				}
+			}
+			return offsets;
+		}
+	}
+}
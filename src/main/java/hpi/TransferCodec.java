@@ -0,0 +1,94 @@
+package hpi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compression applied to file contents while they travel from the controller
+ * to the node. Only codecs shipped with the JDK are offered so that nothing
+ * extra has to be loaded on agents.
+ */
+public enum TransferCodec {
+	NONE("No compression") {
+		@Override
+		OutputStream compress(OutputStream out, int level) {
+			return out;
+		}
+
+		@Override
+		InputStream decompress(InputStream in) {
+			return in;
+		}
+	},
+	DEFLATE("Deflate (as used by gzip)") {
+		@Override
+		OutputStream compress(OutputStream out, int level) {
+			return new DeflaterOutputStream(out, new Deflater(clamp(level)), BUFFER_SIZE) {
+				@Override
+				public void close() throws IOException {
+					// finish the entry without closing the shared stream below
+					finish();
+					def.end();
+				}
+			};
+		}
+
+		@Override
+		InputStream decompress(InputStream in) {
+			return new InflaterInputStream(in, new Inflater(), BUFFER_SIZE) {
+				@Override
+				public void close() {
+					inf.end();
+				}
+			};
+		}
+	};
+
+	static final int BUFFER_SIZE = 64 * 1024;
+	static final int DEFAULT_LEVEL = 1;
+
+	/** Extensions of files that are already compressed and are sent as they are. */
+	private static final String[] COMPRESSED_EXTENSIONS = {
+		".zip", ".gz", ".tgz", ".bz2", ".xz", ".zst", ".lz4", ".7z", ".rar",
+		".jar", ".war", ".ear", ".apk", ".whl",
+		".png", ".jpg", ".jpeg", ".gif", ".webp", ".mp3", ".mp4", ".mkv", ".avi",
+	};
+
+	private final String displayName;
+
+	TransferCodec(String displayName) {
+		this.displayName = displayName;
+	}
+
+	public String getDisplayName() {
+		return displayName;
+	}
+
+	/**
+	 * Wraps {@code out}; closing the returned stream finishes the compressed
+	 * entry but leaves {@code out} open.
+	 */
+	abstract OutputStream compress(OutputStream out, int level);
+
+	abstract InputStream decompress(InputStream in);
+
+	static boolean isCompressed(String path) {
+		String lower = path.toLowerCase(Locale.ROOT);
+		for (String extension : COMPRESSED_EXTENSIONS) {
+			if (lower.endsWith(extension)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	static int clamp(int level) {
+		return Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, level));
+	}
+}
@@ -0,0 +1,67 @@
+package hpi;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChecksumCacheTest {
+
+	/**
+	 * Test copies of different parts of one folder share its stored checksums
+	 */
+	@Test
+	void testPartsOfOneFolderShareChecksums() throws Exception {
+		File dir = Files.createTempDirectory("copy-data-test").toFile();
+		try {
+			File source = new File(dir, "source");
+			assertTrue(source.mkdir());
+			File a = new File(source, "a.txt");
+			File b = new File(source, "b.txt");
+			Files.write(a.toPath(), "first".getBytes(StandardCharsets.UTF_8));
+			Files.write(b.toPath(), "second".getBytes(StandardCharsets.UTF_8));
+			DataManifest onlyA = new DataManifest.Builder().add("a.txt", a.length(), a.lastModified()).build();
+			DataManifest onlyB = new DataManifest.Builder().add("b.txt", b.length(), b.lastModified()).build();
+			File checksums = new File(dir, "checksums");
+
+			assertEquals(DataManifest.checksum(a), ChecksumCache.apply(checksums, source, onlyA).getChecksum(0));
+			assertEquals(DataManifest.checksum(b), ChecksumCache.apply(checksums, source, onlyB).getChecksum(0));
+			File[] stored = checksums.listFiles();
+			assertEquals(1, stored.length, "One checksum file should be kept per folder");
+			long written = stored[0].lastModified();
+			assertTrue(stored[0].setLastModified(written - 10000));
+
+			// a is still known although b was checksummed since, so nothing is read or written
+			assertEquals(DataManifest.checksum(a), ChecksumCache.apply(checksums, source, onlyA).getChecksum(0));
+			assertEquals(written - 10000, stored[0].lastModified(), "Known checksums should not be computed again");
+		} finally {
+			DeleteCopiedFiles.deleteTree(dir.toPath());
+		}
+	}
+
+	/**
+	 * Test checksums are not computed through a directory replaced by a symlink after the scan
+	 */
+	@Test
+	void testSymlinkedParentIsRefused() throws Exception {
+		File dir = Files.createTempDirectory("copy-data-test").toFile();
+		try {
+			File source = new File(dir, "source");
+			assertTrue(source.mkdir());
+			File secret = new File(dir, "secret");
+			assertTrue(secret.mkdir());
+			File secretFile = new File(secret, "file.txt");
+			Files.write(secretFile.toPath(), "data".getBytes(StandardCharsets.UTF_8));
+			Files.createSymbolicLink(new File(source, "sub").toPath(), secret.toPath());
+			DataManifest manifest = new DataManifest.Builder()
+					.add("sub/file.txt", secretFile.length(), secretFile.lastModified())
+					.build();
+
+			assertThrows(IOException.class, () -> ChecksumCache.apply(new File(dir, "checksums"), source, manifest));
+		} finally {
+			DeleteCopiedFiles.deleteTree(dir.toPath());
+		}
+	}
+}
@@ -1,9 +1,19 @@
 package hpi;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.Field;
+import java.io.InputStream;
+import java.io.StringReader;
 import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+import com.codahale.metrics.MetricRegistry;
 import hudson.FilePath;
+import hudson.diagnosis.OldDataMonitor;
 import hudson.Launcher;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
@@ -11,7 +21,11 @@ import hudson.model.BuildListener;
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
 import hudson.model.Result;
+import hudson.model.TaskListener;
+import hudson.model.queue.QueueTaskFuture;
+import hudson.slaves.WorkspaceList;
 import hudson.util.FormValidation;
+import jenkins.metrics.api.Metrics;
 import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
 import org.junit.jupiter.api.BeforeEach;
@@ -124,6 +138,8 @@ class CopyDataToWorkspacePluginTest {
 
 		FreeStyleBuild build = createAndBuildProject(plugin);
 
+		j.assertLogContains("Deleted copied data: 2 files", build);
+
 		FilePath workspace = build.getWorkspace();
 		assertFalse(workspace.child(TEST_FILE_NAME).exists(),
 				"File should be deleted after build");
@@ -347,17 +363,11 @@ class CopyDataToWorkspacePluginTest {
 		assertTrue(workspace != null && workspace.exists(), 
 				"Workspace should exist");
 		
-		// Test saveNames with empty directory
-		Method saveNamesMethod = CopyDataToWorkspacePlugin.class.getDeclaredMethod("saveNames", FilePath.class);
-		saveNamesMethod.setAccessible(true);
-		saveNamesMethod.invoke(plugin, emptyFolder);
-		
-		Field copiedFilesField = CopyDataToWorkspacePlugin.class.getDeclaredField("copiedFiles");
-		copiedFilesField.setAccessible(true);
-		String[] copiedFiles = (String[]) copiedFilesField.get(plugin);
+		// Test manifest of empty directory
+		DataManifest manifest = emptyFolder.act(new DataManifest.Scanner());
 		
-		assertNotNull(copiedFiles, "Copied files array should not be null");
-		assertEquals(0, copiedFiles.length, "Should have copied 0 files");
+		assertNotNull(manifest, "Manifest should not be null");
+		assertEquals(0, manifest.size(), "Should have recorded 0 files");
 	}
 
 	/**
@@ -382,16 +392,15 @@ class CopyDataToWorkspacePluginTest {
 		assertFalse(workspace.child(TEST_FILE_NAME).exists(),
 				"File should be deleted");
 		
-		// Set non-existent file in copiedFiles
-		Field field = CopyDataToWorkspacePlugin.class.getDeclaredField("copiedFiles");
-		field.setAccessible(true);
-		field.set(plugin, new String[]{"non-existent-file.txt"});
-		
 		BuildListener listener = mock(BuildListener.class);
+		when(listener.getLogger()).thenReturn(System.out);
 		Launcher launcher = mock(Launcher.class);
 		
 		hudson.tasks.BuildWrapper.Environment env = plugin.setUp((AbstractBuild<?,?>)build, launcher, listener);
 		
+		// Remove the copied file before cleanup runs
+		workspace.child(TEST_FILE_NAME).delete();
+		
 		if (env != null) {
 			boolean result = env.tearDown((AbstractBuild<?,?>)build, listener);
 			assertTrue(result, "TearDown should return true even with non-existent files");
@@ -418,10 +427,9 @@ class CopyDataToWorkspacePluginTest {
 				false
 		);
 		
-		// Test direct seeFolder method
-		Method seeFolderMethod = CopyDataToWorkspacePlugin.class.getDeclaredMethod("seeFolder", FilePath.class);
-		seeFolderMethod.setAccessible(true);
-		seeFolderMethod.invoke(plugin, testDir);
+		// Test direct makeExecutable method on the files listed in the manifest
+		DataManifest manifest = testDir.act(new DataManifest.Scanner());
+		plugin.makeExecutable(testDir, manifest);
 		
 		if (!isWindows()) {
 			assertEquals(0755, mainFile.mode() & 0777, "Main file should be executable");
@@ -450,52 +458,52 @@ class CopyDataToWorkspacePluginTest {
 	}
 
 	/**
-	 * Test saveNames method
+	 * Test manifest records every copied path
 	 */
 	@Test
-	void testSaveNames() throws Exception {
+	void testManifest() throws Exception {
 		// Create test files
 		createTestFile();
+		createTestSubdir();
 		FilePath secondFile = testDir.child("second.txt");
 		secondFile.write("Second file content", "UTF-8");
 		
-		// Create plugin instance
-		CopyDataToWorkspacePlugin plugin = new CopyDataToWorkspacePlugin(
-				TEST_DIR,
-				false,
-				false
-		);
-		
-		// Get access to the private saveNames method
-		Method saveNamesMethod = CopyDataToWorkspacePlugin.class.getDeclaredMethod("saveNames", FilePath.class);
-		saveNamesMethod.setAccessible(true);
-		
-		// Call saveNames method
-		saveNamesMethod.invoke(plugin, testDir);
-		
-		// Get access to the private copiedFiles field
-		Field copiedFilesField = CopyDataToWorkspacePlugin.class.getDeclaredField("copiedFiles");
-		copiedFilesField.setAccessible(true);
-		String[] copiedFiles = (String[]) copiedFilesField.get(plugin);
-		
-		// Verify the copied files array
-		assertNotNull(copiedFiles, "Copied files array should not be null");
-		assertEquals(2, copiedFiles.length, "Should have copied 2 files");
-		
-		// Verify the file names (order may vary)
-		boolean foundTestFile = false;
-		boolean foundSecondFile = false;
-		
-		for (String fileName : copiedFiles) {
-			if (fileName.equals(TEST_FILE_NAME)) {
-				foundTestFile = true;
-			} else if (fileName.equals("second.txt")) {
-				foundSecondFile = true;
+		DataManifest manifest = testDir.act(new DataManifest.Scanner());
+		
+		// Verify the manifest, entries are sorted
+		assertEquals(4, manifest.size(), "Should have recorded 3 files and 1 directory");
+		assertEquals("second.txt", manifest.getPath(0));
+		assertEquals(TEST_SUBDIR, manifest.getPath(1));
+		assertTrue(manifest.isDirectory(1), "Subdirectory should be recorded as a directory");
+		assertEquals(TEST_SUBDIR + "/" + TEST_FILE_NAME, manifest.getPath(2));
+		assertEquals(TEST_FILE_NAME, manifest.getPath(3));
+		assertEquals(TEST_CONTENT.length(), manifest.getSize(3), "Size should be recorded");
+		assertEquals(3, manifest.fileCount());
+	}
+
+	/**
+	 * Test files created by the build inside copied directories survive cleanup
+	 */
+	@Test
+	void testDeleteAfterBuildKeepsBuildOutputs() throws Exception {
+		createTestSubdir();
+
+		CopyDataToWorkspacePlugin plugin = new CopyDataToWorkspacePlugin(TEST_DIR, false, true);
+		FreeStyleProject project = j.createFreeStyleProject();
+		project.getBuildWrappersList().add(plugin);
+		project.getBuildersList().add(new org.jvnet.hudson.test.TestBuilder() {
+			@Override
+			public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+					throws InterruptedException, IOException {
+				build.getWorkspace().child(TEST_SUBDIR).child("output.txt").write("output", "UTF-8");
+				return true;
 			}
-		}
-		
-		assertTrue(foundTestFile, "Should have copied test.txt");
-		assertTrue(foundSecondFile, "Should have copied second.txt");
+		});
+		FreeStyleBuild build = j.buildAndAssertSuccess(project);
+
+		FilePath subdir = build.getWorkspace().child(TEST_SUBDIR);
+		assertFalse(subdir.child(TEST_FILE_NAME).exists(), "Copied file should be deleted");
+		assertTrue(subdir.child("output.txt").exists(), "File created by the build should be kept");
 	}
 
 	/**
@@ -652,4 +660,763 @@ class CopyDataToWorkspacePluginTest {
 		symlinkTestRoot.deleteRecursive();
 		targetDir.deleteRecursive();
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Test incremental copy only transfers changed files
+	 */
+	@Test
+	void testIncrementalCopy() throws Exception {
+		createTestFile();
+		createTestSubdir();
+
+		CopyDataToWorkspacePlugin plugin = new CopyDataToWorkspacePlugin(TEST_DIR, false, false);
+		plugin.setIncremental(true);
+		assertTrue(plugin.getIncremental(), "Incremental getter should work");
+
+		FreeStyleProject project = j.createFreeStyleProject();
+		project.getBuildWrappersList().add(plugin);
+
+		FreeStyleBuild first = j.buildAndAssertSuccess(project);
+		j.assertLogContains("Incremental copy: 3 of 3 entries changed", first);
+		assertEquals(TEST_CONTENT, first.getWorkspace().child(TEST_FILE_NAME).readToString());
+
+		FreeStyleBuild second = j.buildAndAssertSuccess(project);
+		j.assertLogContains("Incremental copy: 0 of 3 entries changed", second);
+
+		testDir.child(TEST_FILE_NAME).write("changed content", "UTF-8");
+		FreeStyleBuild third = j.buildAndAssertSuccess(project);
+		j.assertLogContains("Incremental copy: 1 of 3 entries changed", third);
+		assertEquals("changed content", third.getWorkspace().child(TEST_FILE_NAME).readToString(),
+				"Changed file should be copied again");
+	}
+
+	/**
+	 * Test node cache is filled once and reused by other jobs
+	 */
+	@Test
+	void testNodeCache() throws Exception {
+		createTestFile();
+		createTestSubdir();
+
+		CopyDataToWorkspacePlugin plugin = new CopyDataToWorkspacePlugin(TEST_DIR, false, false);
+		plugin.setUseNodeCache(true);
+		FreeStyleBuild first = createAndBuildProject(plugin);
+		j.assertLogContains("Node cache miss", first);
+
+		CopyDataToWorkspacePlugin other = new CopyDataToWorkspacePlugin(TEST_DIR, false, false);
+		other.setUseNodeCache(true);
+		other.setHardLinkCachedFiles(true);
+		FreeStyleBuild second = createAndBuildProject(other);
+		j.assertLogContains("Node cache hit", second);
+
+		FilePath workspace = second.getWorkspace();
+		assertEquals(TEST_CONTENT, workspace.child(TEST_FILE_NAME).readToString(),
+				"File should be materialized from the node cache");
+		assertTrue(workspace.child(TEST_SUBDIR).child(TEST_FILE_NAME).exists(),
+				"File in subdirectory should be materialized from the node cache");
+		assertTrue(j.jenkins.getRootPath().child(NodeDataCache.CACHE_DIR).exists(),
+				"Cache directory should be created below the node root");
+	}
+
+	/**
+	 * Test only the copied files are made executable
+	 */
+	@Test
+	void testMakeExecutableOnlyTouchesCopiedFiles() throws Exception {
+		assumeTrue(!isWindows(), "File modes are not supported on Windows");
+		createTestFile();
+
+		CopyDataToWorkspacePlugin plugin = new CopyDataToWorkspacePlugin(TEST_DIR, true, false);
+		FreeStyleProject project = j.createFreeStyleProject();
+		project.getBuildWrappersList().add(plugin);
+		FreeStyleBuild build = j.buildAndAssertSuccess(project);
+
+		FilePath workspace = build.getWorkspace();
+		FilePath buildFile = workspace.child("source.txt");
+		buildFile.write("not copied", "UTF-8");
+		buildFile.chmod(0644);
+
+		build = j.buildAndAssertSuccess(project);
+		assertEquals(0755, workspace.child(TEST_FILE_NAME).mode() & 0777,
+				"Copied file should be executable");
+		assertEquals(0644, buildFile.mode() & 0777,
+				"Files that were not copied should keep their mode");
+	}
+
+	/**
+	 * Test deleting files in the background after build
+	 */
+	@Test
+	void testAsyncCleanup() throws Exception {
+		createTestFile();
+		createTestSubdir();
+
+		CopyDataToWorkspacePlugin plugin = new CopyDataToWorkspacePlugin(TEST_DIR, false, true);
+		plugin.setAsyncCleanup(true);
+		assertTrue(plugin.getAsyncCleanup(), "Async cleanup getter should work");
+
+		FreeStyleBuild build = createAndBuildProject(plugin);
+		j.assertLogContains("Moved 2 copied files aside", build);
+
+		FilePath workspace = build.getWorkspace();
+		assertFalse(workspace.child(TEST_FILE_NAME).exists(),
+				"File should be moved out of the workspace");
+		assertFalse(workspace.child(TEST_SUBDIR).exists(),
+				"Subdirectory should be moved out of the workspace");
+	}
+
+	/**
+	 * Test compressed transfer to an agent
+	 */
+	@Test
+	void testCompressedTransferToAgent() throws Exception {
+		createTestFile();
+		createTestSubdir();
+		testDir.child("archive.zip").write("already compressed", "UTF-8");
+
+		CopyDataToWorkspacePlugin plugin = new CopyDataToWorkspacePlugin(TEST_DIR, false, false);
+		assertEquals(TransferCodec.NONE, plugin.getCompression(), "Data should not be compressed by default");
+		plugin.setCompression(TransferCodec.DEFLATE);
+		plugin.setCompressionLevel(9);
+		assertEquals(TransferCodec.DEFLATE, plugin.getCompression(), "Compression getter should work");
+		assertEquals(9, plugin.getCompressionLevel(), "Compression level getter should work");
+
+		FreeStyleProject project = j.createFreeStyleProject();
+		project.setAssignedNode(j.createOnlineSlave());
+		project.getBuildWrappersList().add(plugin);
+		FreeStyleBuild build = j.buildAndAssertSuccess(project);
+
+		j.assertLogContains("Transferred 3 files", build);
+		j.assertLogContains("on the wire, deflate", build);
+		FilePath workspace = build.getWorkspace();
+		assertEquals(TEST_CONTENT, workspace.child(TEST_FILE_NAME).readToString());
+		assertEquals(TEST_CONTENT, workspace.child(TEST_SUBDIR).child(TEST_FILE_NAME).readToString());
+		assertEquals("already compressed", workspace.child("archive.zip").readToString());
+	}
+
+	/**
+	 * Test pre-packed archive is built once and reused for agent copies
+	 */
+	@Test
+	void testPrepackArchive() throws Exception {
+		createTestFile();
+		createTestSubdir();
+
+		CopyDataToWorkspacePlugin plugin = new CopyDataToWorkspacePlugin(TEST_DIR, false, false);
+		plugin.setPrepackArchive(true);
+		assertTrue(plugin.getPrepackArchive(), "Prepack getter should work");
+
+		FreeStyleProject project = j.createFreeStyleProject();
+		project.setAssignedNode(j.createOnlineSlave());
+		project.getBuildWrappersList().add(plugin);
+		j.buildAndAssertSuccess(project);
+
+		FilePath archives = j.jenkins.getRootPath().child(CopyDataToWorkspacePlugin.ARCHIVE_DIR);
+		assertEquals(1, archives.list().size(), "One archive should be packed");
+		long packed = archives.list().get(0).lastModified();
+
+		FreeStyleBuild second = j.buildAndAssertSuccess(project);
+		assertEquals(packed, archives.list().get(0).lastModified(), "Archive should be reused");
+		assertEquals(TEST_CONTENT, second.getWorkspace().child(TEST_SUBDIR).child(TEST_FILE_NAME).readToString());
+
+		testDir.child("added.txt").write("added", "UTF-8");
+		FreeStyleBuild third = j.buildAndAssertSuccess(project);
+		assertEquals(1, archives.list().size(), "Archive should be replaced, not duplicated");
+		assertEquals("added", third.getWorkspace().child("added.txt").readToString());
+	}
+
+	/**
+	 * Test copies split across parallel streams deliver every file
+	 */
+	@Test
+	void testParallelStreams() throws Exception {
+		createTestFile();
+		createTestSubdir();
+		testDir.child("large.bin").write(TEST_CONTENT.repeat(1000), "UTF-8");
+
+		CopyDataToWorkspacePlugin plugin = new CopyDataToWorkspacePlugin(TEST_DIR, false, false);
+		plugin.setParallelStreams(3);
+		assertEquals(3, plugin.getParallelStreams(), "Parallel streams getter should work");
+
+		FreeStyleProject project = j.createFreeStyleProject();
+		project.setAssignedNode(j.createOnlineSlave());
+		project.getBuildWrappersList().add(plugin);
+		FreeStyleBuild build = j.buildAndAssertSuccess(project);
+
+		j.assertLogContains("Stream 1/3", build);
+		j.assertLogContains("Stream 3/3", build);
+		j.assertLogContains("Transferred 3 files", build);
+		FilePath workspace = build.getWorkspace();
+		assertEquals(TEST_CONTENT, workspace.child(TEST_FILE_NAME).readToString());
+		assertEquals(TEST_CONTENT, workspace.child(TEST_SUBDIR).child(TEST_FILE_NAME).readToString());
+		assertEquals(TEST_CONTENT.repeat(1000), workspace.child("large.bin").readToString());
+	}
+
+	/**
+	 * Test include and exclude patterns limit what is copied
+	 */
+	@Test
+	void testIncludesAndExcludes() throws Exception {
+		createTestFile();
+		createTestSubdir();
+		testDir.child(TEST_SUBDIR).child("scratch.tmp").write(TEST_CONTENT, "UTF-8");
+		testDir.child("unused").child("big.bin").write(TEST_CONTENT, "UTF-8");
+
+		CopyDataToWorkspacePlugin plugin = new CopyDataToWorkspacePlugin(TEST_DIR, false, false);
+		plugin.setIncludes(TEST_SUBDIR + "/");
+		plugin.setExcludes("**/*.tmp");
+		assertEquals(TEST_SUBDIR + "/", plugin.getIncludes(), "Includes getter should work");
+		assertEquals("**/*.tmp", plugin.getExcludes(), "Excludes getter should work");
+
+		FreeStyleBuild build = createAndBuildProject(plugin);
+		FilePath workspace = build.getWorkspace();
+
+		assertTrue(workspace.child(TEST_SUBDIR).child(TEST_FILE_NAME).exists(), "Included file should be copied");
+		assertFalse(workspace.child(TEST_SUBDIR).child("scratch.tmp").exists(), "Excluded file should not be copied");
+		assertFalse(workspace.child(TEST_FILE_NAME).exists(), "File outside the includes should not be copied");
+		assertFalse(workspace.child("unused").exists(), "Directory without included files should not be created");
+	}
+
+	/**
+	 * Test several folders are copied into their target directories and deleted together
+	 */
+	@Test
+	void testAdditionalFolders() throws Exception {
+		createTestFile();
+		FilePath otherDir = userContent.child("otherDir");
+		otherDir.child("other.txt").write(TEST_CONTENT, "UTF-8");
+
+		CopyDataToWorkspacePlugin plugin = new CopyDataToWorkspacePlugin(TEST_DIR, false, true);
+		plugin.setTargetSubdir("data/main");
+		plugin.setAdditionalFolders(java.util.Collections.singletonList(new FolderMapping("otherDir", "data/other")));
+		assertEquals("data/main", plugin.getTargetSubdir(), "Target subdirectory getter should work");
+		assertEquals(1, plugin.getAdditionalFolders().size(), "Additional folders getter should work");
+
+		FreeStyleProject project = j.createFreeStyleProject();
+		project.setAssignedNode(j.createOnlineSlave());
+		project.getBuildWrappersList().add(plugin);
+		project.getBuildersList().add(new org.jvnet.hudson.test.TestBuilder() {
+			@Override
+			public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+					throws InterruptedException, IOException {
+				FilePath workspace = build.getWorkspace();
+				listener.getLogger().println("main: " + workspace.child("data/main").child(TEST_FILE_NAME).readToString());
+				listener.getLogger().println("other: " + workspace.child("data/other/other.txt").readToString());
+				return true;
+			}
+		});
+		FreeStyleBuild build = j.buildAndAssertSuccess(project);
+
+		j.assertLogContains("main: " + TEST_CONTENT, build);
+		j.assertLogContains("other: " + TEST_CONTENT, build);
+		j.assertLogContains("Transferred 2 files", build);
+		j.assertLogContains("Deleted copied data: 2 files", build);
+		assertFalse(build.getWorkspace().child("data").exists(), "Created target directories should be removed");
+
+		assertEquals("a/b", CopyDataToWorkspacePlugin.normalizeTarget("./a//b/"));
+		assertThrows(IOException.class, () -> CopyDataToWorkspacePlugin.normalizeTarget("../a"));
+		assertThrows(IOException.class, () -> CopyDataToWorkspacePlugin.normalizeTarget("/a"));
+		otherDir.deleteRecursive();
+	}
+
+	/**
+	 * Test the background copy writes the index first and completes before cleanup
+	 */
+	@Test
+	void testLazyCopy() throws Exception {
+		createTestFile();
+		createTestSubdir();
+
+		CopyDataToWorkspacePlugin plugin = new CopyDataToWorkspacePlugin(TEST_DIR, false, true);
+		plugin.setLazy(true);
+		assertTrue(plugin.getLazy(), "Lazy getter should work");
+
+		FreeStyleProject project = j.createFreeStyleProject();
+		project.getBuildWrappersList().add(plugin);
+		project.getBuildersList().add(new org.jvnet.hudson.test.TestBuilder() {
+			@Override
+			public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+					throws InterruptedException, IOException {
+				FilePath workspace = build.getWorkspace();
+				listener.getLogger().println("index: "
+						+ workspace.child(CopyDataToWorkspacePlugin.INDEX_FILE).readToString().replace('\n', ';'));
+				FilePath ready = workspace.child(CopyDataToWorkspacePlugin.READY_FILE);
+				for (int i = 0; i < 100 && !ready.exists(); i++) {
+					Thread.sleep(100);
+				}
+				listener.getLogger().println("ready: " + workspace.child(TEST_FILE_NAME).readToString());
+				return true;
+			}
+		});
+		FreeStyleBuild build = j.buildAndAssertSuccess(project);
+
+		j.assertLogContains("Copying data in the background", build);
+		j.assertLogContains("index: " + TEST_CONTENT.length() + "\t" + TEST_SUBDIR + "/" + TEST_FILE_NAME + ";"
+				+ TEST_CONTENT.length() + "\t" + TEST_FILE_NAME + ";", build);
+		j.assertLogContains("ready: " + TEST_CONTENT, build);
+		j.assertLogContains("Deleted copied data: 2 files", build);
+		FilePath workspace = build.getWorkspace();
+		assertFalse(workspace.child(CopyDataToWorkspacePlugin.INDEX_FILE).exists(), "Index should be removed");
+		assertFalse(workspace.child(CopyDataToWorkspacePlugin.READY_FILE).exists(), "Marker should be removed");
+	}
+
+	/**
+	 * Test data copied during checkout is moved into the workspace
+	 */
+	@Test
+	void testPrefetchDuringCheckout() throws Exception {
+		createTestFile();
+		createTestSubdir();
+
+		CopyDataToWorkspacePlugin plugin = new CopyDataToWorkspacePlugin(TEST_DIR, false, false);
+		plugin.setPrefetch(true);
+		assertTrue(plugin.getPrefetch(), "Prefetch getter should work");
+
+		FreeStyleProject project = j.createFreeStyleProject();
+		project.setAssignedNode(j.createOnlineSlave());
+		project.getBuildWrappersList().add(plugin);
+		FreeStyleBuild build = j.buildAndAssertSuccess(project);
+
+		j.assertLogContains("Copying data to the node during checkout", build);
+		FilePath workspace = build.getWorkspace();
+		assertEquals(TEST_CONTENT, workspace.child(TEST_FILE_NAME).readToString());
+		assertEquals(TEST_CONTENT, workspace.child(TEST_SUBDIR).child(TEST_FILE_NAME).readToString());
+		FilePath tempDir = WorkspaceList.tempDir(workspace);
+		assertFalse(tempDir.child(CopyDataToWorkspacePlugin.STAGING_DIR).exists(), "Staging directory should be removed");
+
+		// files an earlier build left in the staging directory are not moved into the workspace
+		FilePath staging = tempDir.child(CopyDataToWorkspacePlugin.STAGING_DIR);
+		staging.child(TEST_FILE_NAME).write("stale", "UTF-8");
+		staging.child("stale.txt").write("stale", "UTF-8");
+		build = j.buildAndAssertSuccess(project);
+		assertEquals(TEST_CONTENT, build.getWorkspace().child(TEST_FILE_NAME).readToString());
+		assertFalse(build.getWorkspace().child("stale.txt").exists(), "Stale staged files should not be moved");
+		assertFalse(staging.exists(), "Staging directory should be removed");
+	}
+
+	/**
+	 * Test verified copies store the source checksums and reuse them on later builds
+	 */
+	@Test
+	void testVerifyChecksums() throws Exception {
+		createTestFile();
+		createTestSubdir();
+
+		CopyDataToWorkspacePlugin plugin = new CopyDataToWorkspacePlugin(TEST_DIR, false, false);
+		plugin.setVerifyChecksums(true);
+		assertTrue(plugin.getVerifyChecksums(), "Verify checksums getter should work");
+
+		FreeStyleProject project = j.createFreeStyleProject();
+		project.setAssignedNode(j.createOnlineSlave());
+		project.getBuildWrappersList().add(plugin);
+		FreeStyleBuild build = j.buildAndAssertSuccess(project);
+
+		j.assertLogNotContains("Checksum mismatch", build);
+		FilePath workspace = build.getWorkspace();
+		assertEquals(TEST_CONTENT, workspace.child(TEST_FILE_NAME).readToString());
+		assertEquals(TEST_CONTENT, workspace.child(TEST_SUBDIR).child(TEST_FILE_NAME).readToString());
+		FilePath checksums = j.jenkins.getRootPath().child(CopyDataToWorkspacePlugin.CHECKSUM_DIR);
+		assertEquals(1, checksums.list().size(), "Checksums should be stored on the controller");
+
+		long stored = checksums.list().get(0).lastModified();
+		j.buildAndAssertSuccess(project);
+		assertEquals(stored, checksums.list().get(0).lastModified(),
+				"Checksums of unchanged files should not be computed again");
+	}
+
+	/**
+	 * Test each copy records its sizes and timings on the build and in the metrics registry
+	 */
+	@Test
+	void testCopyStatistics() throws Exception {
+		createTestFile();
+		createTestSubdir();
+
+		FreeStyleProject project = j.createFreeStyleProject("stats");
+		project.getBuildWrappersList().add(new CopyDataToWorkspacePlugin(TEST_DIR, true, true));
+		FreeStyleBuild build = j.buildAndAssertSuccess(project);
+
+		CopyDataAction stats = build.getAction(CopyDataAction.class);
+		assertNotNull(stats, "Copy statistics should be attached to the build");
+		assertEquals(TEST_DIR, stats.getFolder());
+		assertEquals(2, stats.getFiles());
+		assertEquals(2L * TEST_CONTENT.length(), stats.getBytes());
+		assertTrue(stats.getTransferMillis() >= 0);
+		assertTrue(stats.getDeleteMillis() >= 0, "Delete time should be recorded");
+		j.createWebClient().getPage(build);
+
+		MetricRegistry registry = Metrics.metricRegistry();
+		assertEquals(1, registry.histogram(MetricRegistry.name("copy-data", "job", "stats", "bytes")).getCount());
+		assertEquals(1, registry.histogram(MetricRegistry.name("copy-data", "node", "built-in", "files")).getCount());
+	}
+
+	/**
+	 * Test the global copy limits are saved and applied to builds
+	 */
+	@Test
+	void testCopyLimits() throws Exception {
+		createTestFile();
+
+		CopyDataToWorkspacePlugin.DescriptorImpl descriptor =
+				j.jenkins.getDescriptorByType(CopyDataToWorkspacePlugin.DescriptorImpl.class);
+		descriptor.setMaxConcurrentCopies(1);
+		descriptor.setBandwidthLimit(100);
+		descriptor.setNodeBandwidthLimit(-5);
+		assertEquals(0, descriptor.getNodeBandwidthLimit(), "Negative limits should mean no limit");
+		j.configRoundtrip();
+		assertEquals(1, descriptor.getMaxConcurrentCopies());
+		assertEquals(100, descriptor.getBandwidthLimit());
+
+		FreeStyleProject project = j.createFreeStyleProject();
+		project.getBuildWrappersList().add(new CopyDataToWorkspacePlugin(TEST_DIR, false, false));
+		CopyScheduler.Permit busy = descriptor.getScheduler().acquire("other", "", TaskListener.NULL);
+		QueueTaskFuture<FreeStyleBuild> future = project.scheduleBuild2(0);
+		FreeStyleBuild build = future.waitForStart();
+		j.waitForMessage("Waiting for a copy slot, 1 copies running", build);
+		busy.close();
+		j.assertBuildStatusSuccess(future);
+
+		j.assertLogContains("ms for a copy slot", build);
+		assertEquals(TEST_CONTENT, build.getWorkspace().child(TEST_FILE_NAME).readToString());
+		assertEquals(0, descriptor.getScheduler().getRunning(), "The slot should be released after the copy");
+	}
+
+	/**
+	 * Test concurrent builds copying the same data to one node share a single transfer
+	 */
+	@Test
+	void testConcurrentCopiesShareTransfer() throws Exception {
+		createTestFile();
+		createTestSubdir();
+
+		CopyDataToWorkspacePlugin.DescriptorImpl descriptor =
+				j.jenkins.getDescriptorByType(CopyDataToWorkspacePlugin.DescriptorImpl.class);
+		descriptor.setMaxConcurrentCopies(1);
+		FreeStyleProject first = j.createFreeStyleProject("first");
+		first.getBuildWrappersList().add(new CopyDataToWorkspacePlugin(TEST_DIR, false, false));
+		FreeStyleProject second = j.createFreeStyleProject("second");
+		second.getBuildWrappersList().add(new CopyDataToWorkspacePlugin(TEST_DIR, false, false));
+
+		// hold the only copy slot so the first transfer is still running when the second build starts
+		CopyScheduler.Permit busy = descriptor.getScheduler().acquire("other", "", TaskListener.NULL);
+		QueueTaskFuture<FreeStyleBuild> firstFuture = first.scheduleBuild2(0);
+		FreeStyleBuild firstBuild = firstFuture.waitForStart();
+		j.waitForMessage("Waiting for a copy slot", firstBuild);
+		QueueTaskFuture<FreeStyleBuild> secondFuture = second.scheduleBuild2(0);
+		FreeStyleBuild secondBuild = secondFuture.waitForStart();
+		j.waitForMessage("Waiting for a concurrent copy of the same data to this node", secondBuild);
+		busy.close();
+		j.assertBuildStatusSuccess(firstFuture);
+		j.assertBuildStatusSuccess(secondFuture);
+
+		j.assertLogContains("Transferred 2 files", firstBuild);
+		j.assertLogNotContains("Transferred", secondBuild);
+		j.assertLogContains("Copied 2 files from the concurrent copy on this node", secondBuild);
+		for (FreeStyleBuild build : List.of(firstBuild, secondBuild)) {
+			FilePath workspace = build.getWorkspace();
+			assertEquals(TEST_CONTENT, workspace.child(TEST_FILE_NAME).readToString());
+			assertEquals(TEST_CONTENT, workspace.child(TEST_SUBDIR).child(TEST_FILE_NAME).readToString());
+		}
+		assertEquals(2, secondBuild.getWorkspace().list().size(), "No temporary files should be left in the workspace");
+	}
+
+	/**
+	 * Test local copy mode links the source files on the built-in node instead of transferring them
+	 */
+	@Test
+	void testLocalCopyMode() throws Exception {
+		createTestFile();
+		createTestSubdir();
+
+		CopyDataToWorkspacePlugin plugin = new CopyDataToWorkspacePlugin(TEST_DIR, false, false);
+		plugin.setLocalCopyMode(LocalCopyMode.HARD_LINK);
+		FreeStyleBuild build = createAndBuildProject(plugin);
+		j.assertLogContains("Linked 2 files from the source folder on the node", build);
+		j.assertLogNotContains("Transferred", build);
+		FilePath workspace = build.getWorkspace();
+		assertEquals(TEST_CONTENT, workspace.child(TEST_FILE_NAME).readToString());
+		assertEquals(TEST_CONTENT, workspace.child(TEST_SUBDIR).child(TEST_FILE_NAME).readToString());
+		assertTrue(Files.isSameFile(
+				new File(workspace.getRemote(), TEST_FILE_NAME).toPath(),
+				new File(testDir.getRemote(), TEST_FILE_NAME).toPath()),
+				"Workspace file should be a hard link to the source");
+
+		// executable files are copied, so the source keeps its permissions
+		CopyDataToWorkspacePlugin executable = new CopyDataToWorkspacePlugin(TEST_DIR, true, false);
+		executable.setLocalCopyMode(LocalCopyMode.HARD_LINK);
+		FreeStyleBuild copied = createAndBuildProject(executable);
+		j.assertLogContains("Copied 2 files from the source folder on the node", copied);
+		assertEquals(TEST_CONTENT, copied.getWorkspace().child(TEST_FILE_NAME).readToString());
+		assertEquals(LocalCopyMode.STREAM, new CopyDataToWorkspacePlugin(TEST_DIR, false, false).getLocalCopyMode());
+	}
+
+	/**
+	 * Test large files that changed in parts are sent as deltas against the copy in the workspace
+	 */
+	@Test
+	void testDeltaTransfer() throws Exception {
+		byte[] data = new byte[2 * 1024 * 1024];
+		new Random(3).nextBytes(data);
+		testDir.child("big.bin").copyFrom(new ByteArrayInputStream(data));
+
+		CopyDataToWorkspacePlugin plugin = new CopyDataToWorkspacePlugin(TEST_DIR, false, false);
+		plugin.setIncremental(true);
+		plugin.setDeltaTransfer(true);
+		assertTrue(plugin.getDeltaTransfer(), "Delta transfer getter should work");
+		FreeStyleProject project = j.createFreeStyleProject();
+		project.setAssignedNode(j.createOnlineSlave());
+		project.getBuildWrappersList().add(plugin);
+
+		FreeStyleBuild first = j.buildAndAssertSuccess(project);
+		j.assertLogNotContains("reused from the previous copy", first);
+
+		data[1000] ^= 1;
+		testDir.child("big.bin").copyFrom(new ByteArrayInputStream(data));
+		FreeStyleBuild second = j.buildAndAssertSuccess(project);
+		j.assertLogContains("Incremental copy: 1 of 1 entries changed", second);
+		j.assertLogContains("bytes reused from the previous copy", second);
+		assertTrue(second.getAction(CopyDataAction.class).getWireBytes() < data.length / 4,
+				"Only the changed block should cross the channel");
+		try (InputStream in = second.getWorkspace().child("big.bin").read()) {
+			assertArrayEquals(data, in.readAllBytes(), "Changed file should be rebuilt from the delta");
+		}
+	}
+
+	/**
+	 * Test a node cache entry for new data is filled with deltas against the entry used before
+	 */
+	@Test
+	void testDeltaTransferIntoNodeCache() throws Exception {
+		byte[] data = new byte[2 * 1024 * 1024];
+		new Random(4).nextBytes(data);
+		testDir.child("big.bin").copyFrom(new ByteArrayInputStream(data));
+
+		CopyDataToWorkspacePlugin plugin = new CopyDataToWorkspacePlugin(TEST_DIR, false, false);
+		plugin.setUseNodeCache(true);
+		plugin.setDeltaTransfer(true);
+		FreeStyleProject project = j.createFreeStyleProject();
+		project.setAssignedNode(j.createOnlineSlave());
+		project.getBuildWrappersList().add(plugin);
+		j.buildAndAssertSuccess(project);
+
+		data[1000] ^= 1;
+		testDir.child("big.bin").copyFrom(new ByteArrayInputStream(data));
+		FreeStyleBuild second = j.buildAndAssertSuccess(project);
+		j.assertLogContains("Node cache miss", second);
+		j.assertLogContains("bytes reused from the previous copy", second);
+		try (InputStream in = second.getWorkspace().child("big.bin").read()) {
+			assertArrayEquals(data, in.readAllBytes(), "Changed file should be rebuilt from the delta");
+		}
+	}
+
+	/**
+	 * Test manifests of unchanged source folders are shared between builds when the index is enabled
+	 */
+	@Test
+	void testSourceFolderIndex() throws Exception {
+		createTestFile();
+		CopyDataToWorkspacePlugin.DescriptorImpl descriptor =
+				j.jenkins.getDescriptorByType(CopyDataToWorkspacePlugin.DescriptorImpl.class);
+		assertFalse(descriptor.getIndexSourceFolders(), "Index should be disabled by default");
+		createAndBuildProject(new CopyDataToWorkspacePlugin(TEST_DIR, false, false));
+		assertEquals(0, descriptor.getIndex().size(), "Nothing should be indexed by default");
+
+		descriptor.setIndexSourceFolders(true);
+
+		FreeStyleBuild first = createAndBuildProject(new CopyDataToWorkspacePlugin(TEST_DIR, false, false));
+		assertEquals(TEST_CONTENT, first.getWorkspace().child(TEST_FILE_NAME).readToString());
+		assertEquals(1, descriptor.getIndex().size(), "Manifest should be indexed");
+
+		// a change right before the build is seen
+		testDir.child(TEST_FILE_NAME).write("changed content", "UTF-8");
+		FreeStyleBuild second = createAndBuildProject(new CopyDataToWorkspacePlugin(TEST_DIR, false, false));
+		assertEquals("changed content", second.getWorkspace().child(TEST_FILE_NAME).readToString());
+		assertEquals(1, descriptor.getIndex().size(), "Jobs copying the same folder should share the manifest");
+
+		descriptor.setIndexSourceFolders(false);
+		assertEquals(0, descriptor.getIndex().size(), "Disabling the index should drop it");
+		createAndBuildProject(new CopyDataToWorkspacePlugin(TEST_DIR, false, false));
+		assertEquals(0, descriptor.getIndex().size());
+	}
+
+	/**
+	 * Test cleanup keeps copied files the build modified and deletes the unchanged ones
+	 */
+	@Test
+	void testKeepModifiedFiles() throws Exception {
+		createTestSubdir();
+		testDir.child(TEST_SUBDIR).child("other.txt").write("other", "UTF-8");
+
+		CopyDataToWorkspacePlugin plugin = new CopyDataToWorkspacePlugin(TEST_DIR, false, true);
+		plugin.setKeepModifiedFiles(true);
+		assertTrue(plugin.getKeepModifiedFiles());
+		FreeStyleProject project = j.createFreeStyleProject();
+		project.getBuildWrappersList().add(plugin);
+		project.getBuildersList().add(new org.jvnet.hudson.test.TestBuilder() {
+			@Override
+			public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+					throws InterruptedException, IOException {
+				FilePath subdir = build.getWorkspace().child(TEST_SUBDIR);
+				subdir.child(TEST_FILE_NAME).write("modified by the build", "UTF-8");
+				subdir.child("output.txt").write("output", "UTF-8");
+				return true;
+			}
+		});
+		FreeStyleBuild build = j.buildAndAssertSuccess(project);
+
+		FilePath subdir = build.getWorkspace().child(TEST_SUBDIR);
+		assertEquals("modified by the build", subdir.child(TEST_FILE_NAME).readToString(),
+				"Modified copied file should be kept");
+		assertFalse(subdir.child("other.txt").exists(), "Unchanged copied file should be deleted");
+		assertTrue(subdir.child("output.txt").exists(), "File created by the build should be kept");
+		j.assertLogContains("kept 1 modified files", build);
+	}
+
+	/**
+	 * Test retained data is not copied again while the source is unchanged
+	 */
+	@Test
+	void testRetainData() throws Exception {
+		createTestFile();
+		createTestSubdir();
+
+		CopyDataToWorkspacePlugin plugin = new CopyDataToWorkspacePlugin(TEST_DIR, false, false);
+		plugin.setRetainData(true);
+		assertTrue(plugin.getRetainData(), "Retain data getter should work");
+
+		FreeStyleProject project = j.createFreeStyleProject();
+		project.getBuildWrappersList().add(plugin);
+
+		FreeStyleBuild first = j.buildAndAssertSuccess(project);
+		assertTrue(first.getWorkspace().child(GenerationMarker.FILE).exists(), "Marker should be written");
+		assertEquals(TEST_CONTENT, first.getWorkspace().child(TEST_FILE_NAME).readToString());
+
+		FreeStyleBuild second = j.buildAndAssertSuccess(project);
+		j.assertLogContains("The workspace already holds this data (generation 1), skipping the copy", second);
+		assertEquals(0, second.getAction(CopyDataAction.class).getFiles());
+
+		testDir.child(TEST_SUBDIR).deleteRecursive();
+		testDir.child(TEST_FILE_NAME).write("changed content", "UTF-8");
+		FreeStyleBuild third = j.buildAndAssertSuccess(project);
+		j.assertLogNotContains("skipping the copy", third);
+		j.assertLogContains("Removed 1 files of the previous data", third);
+		assertEquals("changed content", third.getWorkspace().child(TEST_FILE_NAME).readToString(),
+				"Changed data should be copied");
+		assertFalse(third.getWorkspace().child(TEST_SUBDIR).exists(), "Data no longer in the source should be removed");
+
+		FreeStyleBuild fourth = j.buildAndAssertSuccess(project);
+		j.assertLogContains("(generation 2), skipping the copy", fourth);
+
+		// a retained file the build changed is copied again
+		fourth.getWorkspace().child(TEST_FILE_NAME).write("changed by the build", "UTF-8");
+		FreeStyleBuild fifth = j.buildAndAssertSuccess(project);
+		j.assertLogNotContains("skipping the copy", fifth);
+		assertEquals("changed content", fifth.getWorkspace().child(TEST_FILE_NAME).readToString(),
+				"Modified retained file should be copied again");
+	}
+
+	/**
+	 * Test a copy interrupted after a checkpoint continues where it stopped in the next build
+	 */
+	@Test
+	void testResumeInterruptedCopy() throws Exception {
+		byte[] data = new byte[(int) (3 * TransferCheckpoint.INTERVAL)];
+		new Random(5).nextBytes(data);
+		testDir.child("big.bin").copyFrom(new ByteArrayInputStream(data));
+
+		CopyDataToWorkspacePlugin.DescriptorImpl descriptor =
+				j.jenkins.getDescriptorByType(CopyDataToWorkspacePlugin.DescriptorImpl.class);
+		descriptor.setBandwidthLimit(4);
+		FreeStyleProject project = j.createFreeStyleProject();
+		project.setAssignedNode(j.createOnlineSlave());
+		project.getBuildWrappersList().add(new CopyDataToWorkspacePlugin(TEST_DIR, false, false));
+		QueueTaskFuture<FreeStyleBuild> future = project.scheduleBuild2(0);
+		FreeStyleBuild first = future.waitForStart();
+		FilePath checkpoint = null;
+		while (checkpoint == null || !checkpoint.exists()) {
+			Thread.sleep(100);
+			FilePath workspace = first.getWorkspace();
+			checkpoint = workspace == null ? null : workspace.child(".big.bin.copy-data-checkpoint");
+		}
+		first.getExecutor().interrupt();
+		j.waitForCompletion(first);
+		assertNotEquals(Result.SUCCESS, first.getResult(), "The interrupted build should not succeed");
+
+		descriptor.setBandwidthLimit(0);
+		FreeStyleBuild second = j.buildAndAssertSuccess(project);
+		j.assertLogContains("resumed after", second);
+		assertArrayEquals(data,
+				Files.readAllBytes(new File(second.getWorkspace().child("big.bin").getRemote()).toPath()));
+	}
+
+	/**
+	 * Test jobs saved by versions that recorded the copied files still load cleanly
+	 */
+	@Test
+	void testLoadOldConfig() throws Exception {
+		FreeStyleProject project = j.createFreeStyleProject();
+		project.getBuildWrappersList().add(new CopyDataToWorkspacePlugin(TEST_DIR, false, true));
+		project.save();
+		String xml = project.getConfigFile().asString().replace("</hpi.CopyDataToWorkspacePlugin>",
+				"<copiedFiles><string>" + TEST_FILE_NAME + "</string></copiedFiles></hpi.CopyDataToWorkspacePlugin>");
+		assertTrue(xml.contains("<copiedFiles>"), "Old field should be in the configuration");
+
+		project.updateByXml((Source) new StreamSource(new StringReader(xml)));
+		CopyDataToWorkspacePlugin loaded = project.getBuildWrappersList().get(CopyDataToWorkspacePlugin.class);
+		assertEquals(TEST_DIR, loaded.getFolderPath());
+		assertTrue(OldDataMonitor.get(j.jenkins).getData().isEmpty(), "Old field should not be reported as unreadable");
+		project.save();
+		assertFalse(project.getConfigFile().asString().contains("copiedFiles"), "Old field should not be saved again");
+	}
+
+	/**
+	 * Test version control metadata in the source folder is not copied unless default excludes are turned off
+	 */
+	@Test
+	void testDefaultExcludes() throws Exception {
+		createTestFile();
+		testDir.child(".svn").child("entries").write("svn metadata", "UTF-8");
+		testDir.child(TEST_SUBDIR).child(".git").child("config").write("git metadata", "UTF-8");
+		testDir.child(".gitignore").write("*.tmp", "UTF-8");
+
+		CopyDataToWorkspacePlugin plugin = new CopyDataToWorkspacePlugin(TEST_DIR, false, false);
+		assertTrue(plugin.getDefaultExcludes(), "Default excludes should be used by default");
+		FreeStyleBuild build = createAndBuildProject(plugin);
+		FilePath workspace = build.getWorkspace();
+		assertTrue(workspace.child(TEST_FILE_NAME).exists());
+		assertFalse(workspace.child(".svn").exists(), ".svn should not be copied");
+		assertFalse(workspace.child(TEST_SUBDIR).child(".git").exists(), ".git should not be copied");
+		assertFalse(workspace.child(".gitignore").exists(), ".gitignore should not be copied");
+
+		CopyDataToWorkspacePlugin everything = new CopyDataToWorkspacePlugin(TEST_DIR, false, false);
+		everything.setDefaultExcludes(false);
+		workspace = createAndBuildProject(everything).getWorkspace();
+		assertEquals("svn metadata", workspace.child(".svn").child("entries").readToString(),
+				"Turning default excludes off should copy everything");
+		assertTrue(workspace.child(TEST_SUBDIR).child(".git").child("config").exists());
+	}
+
+	/**
+	 * Test folders with the same listing do not share a node cache entry
+	 */
+	@Test
+	void testNodeCacheKeepsFoldersApart() throws Exception {
+		long mtime = 1_700_000_000_000L;
+		FilePath other = userContent.child("otherDir");
+		testDir.child(TEST_FILE_NAME).write("aaaa", "UTF-8");
+		other.child(TEST_FILE_NAME).write("bbbb", "UTF-8");
+		testDir.child(TEST_FILE_NAME).touch(mtime);
+		other.child(TEST_FILE_NAME).touch(mtime);
+
+		CopyDataToWorkspacePlugin first = new CopyDataToWorkspacePlugin(TEST_DIR, false, false);
+		first.setUseNodeCache(true);
+		createAndBuildProject(first);
+
+		CopyDataToWorkspacePlugin second = new CopyDataToWorkspacePlugin("otherDir", false, false);
+		second.setUseNodeCache(true);
+		FreeStyleBuild build = createAndBuildProject(second);
+		j.assertLogContains("Node cache miss", build);
+		assertEquals("bbbb", build.getWorkspace().child(TEST_FILE_NAME).readToString(),
+				"The other folder's data should be copied");
+	}
+}
@@ -0,0 +1,88 @@
+package hpi;
+
+import java.io.IOException;
+import hudson.FilePath;
+import hudson.model.Result;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+import static org.junit.jupiter.api.Assertions.*;
+
+@WithJenkins
+class CopyDataToWorkspaceStepTest {
+	private static final String TEST_FILE_NAME = "test.txt";
+	private static final String TEST_CONTENT = "test content";
+	private static final String TEST_DIR = "testDir";
+
+	private JenkinsRule j;
+
+	private FilePath testDir;
+
+	@BeforeEach
+	void setUp(JenkinsRule rule) throws IOException, InterruptedException {
+		j = rule;
+		testDir = j.jenkins.getRootPath().child("userContent").child(TEST_DIR);
+		testDir.mkdirs();
+		testDir.child(TEST_FILE_NAME).write(TEST_CONTENT, "UTF-8");
+		testDir.child("subdir").child(TEST_FILE_NAME).write(TEST_CONTENT, "UTF-8");
+	}
+
+	/**
+	 * Test the step copies the data, returns statistics and deletes the files after the block
+	 */
+	@Test
+	void testCopyAndDelete() throws Exception {
+		WorkflowJob project = j.jenkins.createProject(WorkflowJob.class, "pipeline");
+		project.setDefinition(new CpsFlowDefinition(
+				"node {\n"
+				+ "  def stats = copyDataToWorkspace(folderPath: '" + TEST_DIR + "', deleteFilesAfterBuild: true) {\n"
+				+ "    echo \"inside: ${readFile('" + TEST_FILE_NAME + "')}\"\n"
+				+ "  }\n"
+				+ "  echo \"copied ${stats.files} files, ${stats.bytes} bytes\"\n"
+				+ "  echo \"left: ${fileExists('" + TEST_FILE_NAME + "')}\"\n"
+				+ "}", true));
+		WorkflowRun build = j.buildAndAssertSuccess(project);
+
+		j.assertLogContains("inside: " + TEST_CONTENT, build);
+		j.assertLogContains("copied 2 files, " + 2 * TEST_CONTENT.length() + " bytes", build);
+		j.assertLogContains("left: false", build);
+		j.assertLogContains("Deleted copied data: 2 files", build);
+
+		CopyDataAction stats = build.getAction(CopyDataAction.class);
+		assertNotNull(stats, "Copy statistics should be attached to the run");
+		assertEquals(2, stats.getFiles());
+		assertTrue(stats.getDeleteMillis() >= 0, "Delete time should be recorded");
+	}
+
+	/**
+	 * Test the step rejects paths outside userContent
+	 */
+	@Test
+	void testPathOutsideUserContent() throws Exception {
+		WorkflowJob project = j.jenkins.createProject(WorkflowJob.class, "outside");
+		project.setDefinition(new CpsFlowDefinition(
+				"node { copyDataToWorkspace(folderPath: '../secrets') { echo 'unreachable' } }", true));
+		WorkflowRun build = j.buildAndAssertStatus(Result.FAILURE, project);
+
+		j.assertLogContains("The source path must be within the JENKINS_HOME/userContent directory", build);
+		j.assertLogNotContains("unreachable", build);
+	}
+
+	/**
+	 * Test the step fails with the validation message when no folder is given
+	 */
+	@Test
+	void testMissingFolderPath() throws Exception {
+		WorkflowJob project = j.jenkins.createProject(WorkflowJob.class, "missing");
+		project.setDefinition(new CpsFlowDefinition(
+				"node { copyDataToWorkspace(folderPath: '') { echo 'unreachable' } }", true));
+		WorkflowRun build = j.buildAndAssertStatus(Result.FAILURE, project);
+
+		j.assertLogContains("Path cannot be empty", build);
+		j.assertLogNotContains("unreachable", build);
+	}
+}
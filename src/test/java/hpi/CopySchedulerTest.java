@@ -0,0 +1,109 @@
+package hpi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class CopySchedulerTest {
+	private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+	private final TaskListener listener = new StreamTaskListener(log, StandardCharsets.UTF_8);
+
+	/**
+	 * Test waiting copies are served one job at a time, not in arrival order
+	 */
+	@Test
+	void testFairQueueing() throws Exception {
+		CopyScheduler scheduler = new CopyScheduler();
+		scheduler.configure(1, 0, 0);
+		CopyScheduler.Permit first = scheduler.acquire("a", "", listener);
+
+		List<String> order = Collections.synchronizedList(new ArrayList<>());
+		List<Thread> threads = new ArrayList<>();
+		for (String job : new String[] {"a", "a", "a", "b"}) {
+			Thread thread = new Thread(() -> {
+				try {
+					try (CopyScheduler.Permit permit = scheduler.acquire(job, "", listener)) {
+						order.add(job);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			thread.start();
+			// let the thread enter the queue before the next one arrives
+			while (thread.getState() != Thread.State.WAITING) {
+				Thread.sleep(1);
+			}
+			threads.add(thread);
+		}
+		assertEquals(1, scheduler.getRunning());
+		first.close();
+		for (Thread thread : threads) {
+			thread.join(10000);
+		}
+		assertEquals(List.of("a", "b", "a", "a"), order, "The other job should get the second slot");
+		assertEquals(0, scheduler.getRunning());
+		assertTrue(log.toString(StandardCharsets.UTF_8).contains("ms for a copy slot"), "Waiting should be logged");
+	}
+
+	/**
+	 * Test raising the limit lets waiting copies start
+	 */
+	@Test
+	void testConfigureReleasesWaiting() throws Exception {
+		CopyScheduler scheduler = new CopyScheduler();
+		scheduler.configure(1, 0, 0);
+		CopyScheduler.Permit first = scheduler.acquire("a", "", listener);
+		Thread waiting = new Thread(() -> {
+			try {
+				scheduler.acquire("b", "", listener).close();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		waiting.start();
+		while (waiting.getState() != Thread.State.WAITING) {
+			Thread.sleep(1);
+		}
+		scheduler.configure(0, 0, 0);
+		waiting.join(10000);
+		assertFalse(waiting.isAlive(), "Unlimited copies should not wait");
+		first.close();
+		first.close();
+		assertEquals(0, scheduler.getRunning(), "Closing a permit twice should release it once");
+	}
+
+	/**
+	 * Test the sent data is slowed down to the bandwidth limit
+	 */
+	@Test
+	void testBandwidthLimit() throws Exception {
+		CopyScheduler scheduler = new CopyScheduler();
+		scheduler.configure(0, 0, 1);
+		byte[] data = new byte[200 * 1024];
+		try (CopyScheduler.Permit permit = scheduler.acquire("a", "agent", listener);
+				OutputStream out = permit.throttle(OutputStream.nullOutputStream())) {
+			long start = System.nanoTime();
+			out.write(data);
+			out.write(data);
+			long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			assertTrue(millis >= 300, "400 KB at 1 MB/s should take about 400 ms, took " + millis);
+		}
+		try (CopyScheduler.Permit permit = scheduler.acquire("a", "other", listener);
+				OutputStream out = permit.throttle(OutputStream.nullOutputStream())) {
+			long start = System.nanoTime();
+			scheduler.configure(0, 0, 0);
+			out.write(data);
+			assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 300,
+					"Removing the limit should apply to open copies");
+		}
+	}
+}
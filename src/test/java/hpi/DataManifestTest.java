@@ -0,0 +1,243 @@
+package hpi;
+
+import hudson.Util;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import static org.junit.jupiter.api.Assertions.*;
+
+class DataManifestTest {
+
+	/**
+	 * Test paths survive front coding across restart points
+	 */
+	@Test
+	void testFrontCodedPaths() {
+		DataManifest.Builder builder = new DataManifest.Builder();
+		int n = DataManifest.RESTART_INTERVAL * 3 + 5;
+		for (int i = n - 1; i >= 0; i--) {
+			builder.add(String.format("very/long/shared/directory/name/file-%03d.bin", i), i, 1000L * i);
+		}
+		builder.add("\u00e9t\u00e9/caf\u00e9.txt", 7, 0);
+		DataManifest manifest = builder.build();
+
+		assertEquals(n + 1, manifest.size());
+		for (int i = 0; i < n; i++) {
+			assertEquals(String.format("very/long/shared/directory/name/file-%03d.bin", i), manifest.getPath(i),
+					"Entries should be sorted and decoded");
+			assertEquals(i, manifest.getSize(i));
+			assertEquals(1000L * i, manifest.getLastModified(i));
+		}
+		assertEquals("\u00e9t\u00e9/caf\u00e9.txt", manifest.getPath(n), "Non-ASCII paths should be decoded");
+		assertFalse(manifest.hasChecksums(), "Checksums were not recorded");
+		assertThrows(IndexOutOfBoundsException.class, () -> manifest.getPath(n + 1));
+	}
+
+	/**
+	 * Test checksums, totals and fingerprint
+	 */
+	@Test
+	void testChecksumsAndFingerprint() {
+		DataManifest manifest = new DataManifest.Builder()
+				.add("dir", DataManifest.DIRECTORY, 5000, 0)
+				.add("dir/a", 10, 5000, 42)
+				.add("b", 20, 6000, 43)
+				.build();
+
+		assertTrue(manifest.hasChecksums());
+		assertEquals("b", manifest.getPath(0));
+		assertEquals(43, manifest.getChecksum(0));
+		assertEquals(30, manifest.totalSize());
+		assertEquals(2, manifest.fileCount());
+
+		DataManifest same = new DataManifest.Builder()
+				.add("b", 20, 6400)
+				.add("dir/a", 10, 5000)
+				.add("dir", DataManifest.DIRECTORY, 5000)
+				.build();
+		assertEquals(manifest.fingerprint(), same.fingerprint(),
+				"Fingerprint should ignore order, checksums and sub-second times");
+
+		DataManifest changed = new DataManifest.Builder()
+				.add("b", 21, 6000)
+				.add("dir/a", 10, 5000)
+				.add("dir", DataManifest.DIRECTORY, 5000)
+				.build();
+		assertNotEquals(manifest.fingerprint(), changed.fingerprint(), "Fingerprint should change with sizes");
+	}
+
+	/**
+	 * Test the scan validates the source while it walks it
+	 */
+	@Test
+	void testScannerVerification() throws Exception {
+		Path root = Files.createTempDirectory("manifest-test");
+		try {
+			Path data = Files.createDirectories(root.resolve("data/sub"));
+			Files.write(data.resolve("file.txt"), new byte[] {1, 2, 3});
+			DataManifest.Scanner scanner = new DataManifest.Scanner(root.toString(), false);
+
+			DataManifest manifest = scanner.invoke(root.resolve("data").toFile(), null);
+			assertEquals(2, manifest.size(), "Directory and file should be listed");
+			assertEquals("sub/file.txt", manifest.getPath(1));
+
+			IOException outside = assertThrows(IOException.class,
+					() -> scanner.invoke(root.resolve("../elsewhere").toFile(), null));
+			assertEquals(DataManifest.Scanner.OUTSIDE_ROOT, outside.getMessage());
+
+			IOException missing = assertThrows(IOException.class,
+					() -> scanner.invoke(root.resolve("missing").toFile(), null));
+			assertTrue(missing.getMessage().startsWith("The specified source path does not exist"));
+
+			Files.createSymbolicLink(data.resolve("link"), root);
+			IOException inside = assertThrows(IOException.class,
+					() -> scanner.invoke(root.resolve("data").toFile(), null));
+			assertEquals(DataManifest.Scanner.SYMLINKS, inside.getMessage());
+
+			Files.createSymbolicLink(root.resolve("alias"), root.resolve("data"));
+			IOException above = assertThrows(IOException.class,
+					() -> scanner.invoke(root.resolve("alias/sub").toFile(), null));
+			assertEquals(DataManifest.Scanner.SYMLINKS, above.getMessage());
+		} finally {
+			Util.deleteRecursive(root.toFile());
+		}
+	}
+
+	/**
+	 * Test the scan only records matching files and the directories leading to them
+	 */
+	@Test
+	void testScannerFilter() throws Exception {
+		Path root = Files.createTempDirectory("manifest-test");
+		try {
+			Files.createDirectories(root.resolve("small/deep"));
+			Files.createDirectories(root.resolve("large"));
+			Files.createDirectories(root.resolve("empty"));
+			Files.write(root.resolve("small/deep/a.bin"), new byte[] {1});
+			Files.write(root.resolve("small/b.tmp"), new byte[] {2});
+			Files.write(root.resolve("large/c.bin"), new byte[] {3});
+			Files.write(root.resolve("d.xml"), new byte[] {4});
+
+			DataManifest manifest = new DataManifest.Scanner(null, false,
+					PathFilter.compile("small/**, *.xml", "**/*.tmp")).invoke(root.toFile(), null);
+			assertEquals(4, manifest.size(), "Only matching files and their parents should be listed");
+			assertEquals("d.xml", manifest.getPath(0));
+			assertEquals("small", manifest.getPath(1));
+			assertTrue(manifest.isDirectory(1));
+			assertEquals("small/deep", manifest.getPath(2));
+			assertEquals("small/deep/a.bin", manifest.getPath(3));
+
+			DataManifest excluded = new DataManifest.Scanner(null, false,
+					PathFilter.compile(null, "large/")).invoke(root.toFile(), null);
+			assertEquals(6, excluded.size(), "Empty directories should be kept without include patterns");
+			for (int i = 0; i < excluded.size(); i++) {
+				assertFalse(excluded.getPath(i).startsWith("large"), "Excluded directory should be skipped");
+			}
+		} finally {
+			Util.deleteRecursive(root.toFile());
+		}
+	}
+
+	/**
+	 * Test combined manifests place each folder below its target and remember its source
+	 */
+	@Test
+	void testCombine() throws Exception {
+		DataManifest first = new DataManifest.Builder()
+				.add("a.txt", 1, 0)
+				.add("shared", DataManifest.DIRECTORY, 0)
+				.build();
+		DataManifest second = new DataManifest.Builder()
+				.add("b.txt", 2, 0)
+				.build();
+		DataManifest third = new DataManifest.Builder()
+				.add("shared", DataManifest.DIRECTORY, 0)
+				.add("shared/c.txt", 3, 0)
+				.build();
+		DataManifest combined = DataManifest.combine(Arrays.asList(first, second, third),
+				Arrays.asList("/src/one", "/src/two", "/src/three"), Arrays.asList("", "sets/two", ""));
+
+		String[] paths = {"a.txt", "sets", "sets/two", "sets/two/b.txt", "shared", "shared/c.txt"};
+		assertEquals(paths.length, combined.size(), "Shared directories should be listed once");
+		for (int i = 0; i < paths.length; i++) {
+			assertEquals(paths[i], combined.getPath(i));
+		}
+		assertTrue(combined.isDirectory(1), "Target directories should be created");
+		assertEquals(new File("/src/one", "a.txt"), combined.getSourceFile(new File("/ignored"), 0));
+		assertEquals(new File("/src/two", "b.txt"), combined.getSourceFile(new File("/ignored"), 3));
+		assertEquals(new File("/src/three", "shared/c.txt"), combined.getSourceFile(new File("/ignored"), 5));
+		assertEquals(new File("/root", "a.txt"), first.getSourceFile(new File("/root"), 0));
+		assertNotEquals(first.describeSources(new File("/src/one")), combined.describeSources(new File("/src/one")));
+
+		IOException duplicate = assertThrows(IOException.class, () -> DataManifest.combine(
+				Arrays.asList(first, first), Arrays.asList("/src/one", "/src/copy"), Arrays.asList("", "")));
+		assertTrue(duplicate.getMessage().contains("a.txt"));
+	}
+
+	/**
+	 * Test a selection of entries keeps their paths, checksums and source folders
+	 */
+	@Test
+	void testSelect() throws Exception {
+		DataManifest.Builder builder = new DataManifest.Builder();
+		for (int i = 0; i < 40; i++) {
+			builder.add(String.format("dir/file%02d.txt", i), i, 1000L * i, i * 7);
+		}
+		DataManifest manifest = builder.build();
+		DataManifest selected = manifest.select(new int[] {3, 17, 39});
+		assertEquals(3, selected.size());
+		assertEquals("dir/file17.txt", selected.getPath(1));
+		assertEquals(39, selected.getSize(2));
+		assertEquals(3000, selected.getLastModified(0));
+		assertEquals(17 * 7, selected.getChecksum(1));
+		assertSame(manifest, manifest.select(manifest.all()), "Selecting everything should not copy");
+		assertThrows(IllegalArgumentException.class, () -> manifest.select(new int[] {5, 2}));
+
+		DataManifest combined = DataManifest.combine(Arrays.asList(manifest, manifest),
+				Arrays.asList("/src/one", "/src/two"), Arrays.asList("", "two"));
+		DataManifest part = combined.select(new int[] {combined.size() - 1});
+		assertEquals(new File("/src/two", "dir/file39.txt"), part.getSourceFile(new File("/ignored"), 0));
+	}
+
+	/**
+	 * Test a manifest stored in a file on the node reads back unchanged
+	 */
+	@Test
+	void testStoreAndLoad() throws Exception {
+		DataManifest.Builder builder = new DataManifest.Builder();
+		builder.add("a.txt", 1, 1000, 7);
+		builder.add("dir/b.txt", 2, 2000, 8);
+		DataManifest manifest = builder.build();
+		Path dir = Files.createTempDirectory("manifest-test");
+		try {
+			File file = dir.resolve("tmp/stored").toFile();
+			new DataManifest.Store(manifest).invoke(file, null);
+			DataManifest loaded = DataManifest.load(file);
+			assertEquals(manifest.fingerprint(), loaded.fingerprint());
+			assertEquals("dir/b.txt", loaded.getPath(1));
+			assertEquals(8, loaded.getChecksum(1));
+		} finally {
+			DeleteCopiedFiles.deleteTree(dir);
+		}
+	}
+
+	/**
+	 * Test equal listings of different folders have different identities
+	 */
+	@Test
+	void testIdentity() {
+		DataManifest.Builder builder = new DataManifest.Builder();
+		builder.add("a.txt", 1, 1000);
+		DataManifest manifest = builder.build();
+		assertEquals(manifest.identity(new File("/data/one")), manifest.identity(new File("/data/one")));
+		assertNotEquals(manifest.identity(new File("/data/one")), manifest.identity(new File("/data/two")),
+				"The source folder should be part of the identity");
+		assertNotEquals(manifest.identity(new File("/data/one")),
+				manifest.withChecksums(new int[] {42}).identity(new File("/data/one")),
+				"Checksums should be part of the identity");
+	}
+}
@@ -0,0 +1,398 @@
+package hpi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class DataTransferTest {
+
+	/**
+	 * Test chunked entries round trip with every codec
+	 */
+	@Test
+	void testChunkedEntries() throws Exception {
+		byte[] data = new byte[200 * 1024];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i % 13);
+		}
+		for (TransferCodec codec : TransferCodec.values()) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			for (int entry = 0; entry < 2; entry++) {
+				DataTransfer.ChunkedOutputStream chunks = new DataTransfer.ChunkedOutputStream(out);
+				try (OutputStream body = codec.compress(chunks, 1)) {
+					body.write(data);
+				}
+				chunks.finish();
+			}
+
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+			for (int entry = 0; entry < 2; entry++) {
+				DataTransfer.ChunkedInputStream chunks = new DataTransfer.ChunkedInputStream(in);
+				ByteArrayOutputStream read = new ByteArrayOutputStream();
+				try (InputStream body = codec.decompress(chunks)) {
+					body.transferTo(read);
+				}
+				chunks.skipToEnd();
+				assertArrayEquals(data, read.toByteArray(), "Entry should round trip with " + codec);
+			}
+			assertEquals(-1, in.read(), "Stream should end after the last entry");
+		}
+	}
+
+	/**
+	 * Test shards are balanced by size and keep manifest order
+	 */
+	@Test
+	void testShard() {
+		DataManifest manifest = new DataManifest.Builder()
+				.add("a", 100, 0)
+				.add("b", 10, 0)
+				.add("c", 60, 0)
+				.add("d", 40, 0)
+				.add("dir", DataManifest.DIRECTORY, 0)
+				.build();
+
+		int[][] shards = DataTransfer.shard(manifest, manifest.all(), 2);
+		assertEquals(2, shards.length);
+		assertArrayEquals(new int[] {0, 1, 4}, shards[0], "Largest file and directories should share a shard");
+		assertArrayEquals(new int[] {2, 3}, shards[1], "Smaller files should fill the other shard");
+
+		assertEquals(1, DataTransfer.shard(manifest, manifest.all(), 1).length);
+		assertEquals(4, DataTransfer.shard(manifest, manifest.all(), 10).length,
+				"There should not be more shards than files");
+		assertArrayEquals(new int[] {0}, DataTransfer.shard(manifest, new int[] {0}, 4)[0]);
+		assertTrue(Arrays.stream(DataTransfer.shard(manifest, manifest.all(), 3)).allMatch(s -> s.length > 0));
+	}
+
+	/**
+	 * Test already compressed files are recognized and levels are clamped
+	 */
+	@Test
+	void testCompressedExtensions() {
+		assertTrue(TransferCodec.isCompressed("data/archive.ZIP"));
+		assertTrue(TransferCodec.isCompressed("images/photo.jpeg"));
+		assertFalse(TransferCodec.isCompressed("data/table.csv"));
+		assertEquals(1, TransferCodec.clamp(0));
+		assertEquals(9, TransferCodec.clamp(42));
+	}
+
+	/**
+	 * Test received files are checked against the manifest checksums and not installed on mismatch
+	 */
+	@Test
+	void testReceiverVerifiesChecksums() throws Exception {
+		File dir = Files.createTempDirectory("copy-data-test").toFile();
+		try {
+			File source = new File(dir, "source.txt");
+			Files.write(source.toPath(), "verified content".getBytes(StandardCharsets.UTF_8));
+			DataManifest plain = new DataManifest.Builder().add("file.txt", source.length(), source.lastModified())
+					.build();
+			int checksum = DataManifest.checksum(source);
+
+			DataTransfer.Stats stats = receive(source, plain.withChecksums(new int[] {checksum}), dir);
+			assertEquals(1, stats.files);
+			assertTrue(stats.mismatched.isEmpty());
+			assertTrue(new File(dir, "file.txt").delete(), "Matching file should be installed");
+
+			stats = receive(source, plain.withChecksums(new int[] {checksum + 1}), dir);
+			assertEquals(0, stats.files);
+			assertEquals(List.of(0), stats.mismatched);
+			assertArrayEquals(new String[] {"source.txt"}, dir.list(), "Damaged file should not be left behind");
+		} finally {
+			DeleteCopiedFiles.deleteTree(dir.toPath());
+		}
+	}
+
+	/**
+	 * Test files that disappeared from the source after the scan are skipped when staged files are moved
+	 */
+	@Test
+	void testMissingFilesAreNotStaged() throws Exception {
+		File dir = Files.createTempDirectory("copy-data-test").toFile();
+		try {
+			File source = new File(dir, "source");
+			assertTrue(source.mkdir());
+			Files.write(new File(source, "kept.txt").toPath(), "kept".getBytes(StandardCharsets.UTF_8));
+			Files.write(new File(source, "gone.txt").toPath(), "gone".getBytes(StandardCharsets.UTF_8));
+			DataManifest manifest = new DataManifest.Scanner().invoke(source, null);
+			assertTrue(new File(source, "gone.txt").delete());
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (DataOutputStream out = new DataOutputStream(bytes)) {
+				for (int i = 0; i < manifest.size(); i++) {
+					DataTransfer.writeFrame(new File(source, manifest.getPath(i)), TransferCodec.NONE, 1, out,
+							new byte[DataTransfer.CHUNK_SIZE]);
+				}
+			}
+			File staging = new File(dir, "staging");
+			DataTransfer.Stats stats = new DataTransfer.Receiver(manifest, manifest.all(),
+					new ByteArrayInputStream(bytes.toByteArray())).invoke(staging, null);
+			assertEquals(1, stats.files);
+
+			File workspace = new File(dir, "workspace");
+			int moved = new MoveStagedFiles(manifest, manifest.all(), staging.getPath()).invoke(workspace, null);
+			assertEquals(1, moved);
+			assertArrayEquals(new String[] {"kept.txt"}, workspace.list());
+			assertFalse(staging.exists(), "Staging directory should be removed");
+		} finally {
+			DeleteCopiedFiles.deleteTree(dir.toPath());
+		}
+	}
+
+	/**
+	 * Test a source directory swapped for a symlink after the scan is not followed
+	 */
+	@Test
+	void testSymlinkedParentIsRefused() throws Exception {
+		File dir = Files.createTempDirectory("copy-data-test").toFile();
+		try {
+			File source = new File(dir, "source");
+			assertTrue(new File(source, "sub").mkdirs());
+			Files.write(new File(source, "sub/file.txt").toPath(), "data".getBytes(StandardCharsets.UTF_8));
+			Files.write(new File(source, "top.txt").toPath(), "top".getBytes(StandardCharsets.UTF_8));
+			File secret = new File(dir, "secret");
+			assertTrue(secret.mkdir());
+			Files.write(new File(secret, "file.txt").toPath(), "secret".getBytes(StandardCharsets.UTF_8));
+			DataManifest manifest = new DataManifest.Scanner().invoke(source, null);
+			assertEquals("sub/file.txt", manifest.getPath(1));
+
+			DeleteCopiedFiles.deleteTree(new File(source, "sub").toPath());
+			Files.createSymbolicLink(new File(source, "sub").toPath(), secret.toPath());
+			DataOutputStream out = new DataOutputStream(new ByteArrayOutputStream());
+			try (SourceFiles files = new SourceFiles(manifest, source)) {
+				IOException e = assertThrows(IOException.class, () -> DataTransfer.writeFrame(files, 1,
+						TransferCodec.NONE, 1, out, new byte[DataTransfer.CHUNK_SIZE], 0, null));
+				assertTrue(e.getMessage().startsWith(DataManifest.Scanner.SYMLINKS), e.getMessage());
+				DataTransfer.writeFrame(files, 2, TransferCodec.NONE, 1, out, new byte[DataTransfer.CHUNK_SIZE], 0,
+						null);
+			}
+		} finally {
+			DeleteCopiedFiles.deleteTree(dir.toPath());
+		}
+	}
+
+	/**
+	 * Test an interrupted transfer of a large file continues from its last checkpoint
+	 */
+	@Test
+	void testResumeFromCheckpoint() throws Exception {
+		File dir = Files.createTempDirectory("copy-data-test").toFile();
+		try {
+			File source = new File(dir, "source.bin");
+			byte[] data = new byte[(int) (2 * TransferCheckpoint.INTERVAL + 12345)];
+			new Random(7).nextBytes(data);
+			Files.write(source.toPath(), data);
+			DataManifest manifest = new DataManifest.Builder().add("big.bin", data.length, source.lastModified())
+					.build().withChecksums(new int[] {DataManifest.checksum(source)});
+			File target = new File(dir, "target");
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (DataOutputStream out = new DataOutputStream(bytes)) {
+				DataTransfer.writeFrame(source, TransferCodec.NONE, 1, out, new byte[DataTransfer.CHUNK_SIZE]);
+			}
+			byte[] cut = Arrays.copyOf(bytes.toByteArray(), (int) (TransferCheckpoint.INTERVAL * 3 / 2));
+			DataTransfer.Receiver interrupted = new DataTransfer.Receiver(manifest, manifest.all(),
+					new ByteArrayInputStream(cut));
+			assertThrows(IOException.class, () -> interrupted.invoke(target, null));
+			assertFalse(new File(target, "big.bin").exists(), "Incomplete file should not be installed");
+
+			long[] resume = new TransferCheckpoint.Find(manifest, manifest.all()).invoke(target, null);
+			assertArrayEquals(new long[] {TransferCheckpoint.INTERVAL}, resume);
+
+			bytes.reset();
+			try (DataOutputStream out = new DataOutputStream(bytes)) {
+				DataTransfer.writeFrame(source, TransferCodec.DEFLATE, 1, out, new byte[DataTransfer.CHUNK_SIZE],
+						resume[0], null);
+			}
+			DataTransfer.Stats stats = new DataTransfer.Receiver(manifest, manifest.all(), resume,
+					new ByteArrayInputStream(bytes.toByteArray())).invoke(target, null);
+			assertEquals(1, stats.files);
+			assertEquals(TransferCheckpoint.INTERVAL, stats.resumedBytes);
+			assertEquals(data.length - TransferCheckpoint.INTERVAL, stats.bytes);
+			assertTrue(stats.mismatched.isEmpty(), "Resumed file should match its checksum");
+			assertArrayEquals(data, Files.readAllBytes(new File(target, "big.bin").toPath()));
+			assertArrayEquals(new String[] {"big.bin"}, target.list(), "Checkpoint files should be removed");
+			assertNull(new TransferCheckpoint.Find(manifest, manifest.all()).invoke(target, null));
+		} finally {
+			DeleteCopiedFiles.deleteTree(dir.toPath());
+		}
+	}
+
+	/**
+	 * Test deleting the copied files also removes what an interrupted transfer left next to them
+	 */
+	@Test
+	void testDeleteRemovesPartialFiles() throws Exception {
+		File dir = Files.createTempDirectory("copy-data-test").toFile();
+		try {
+			File source = new File(dir, "source.bin");
+			byte[] data = new byte[(int) (TransferCheckpoint.INTERVAL + 12345)];
+			new Random(5).nextBytes(data);
+			Files.write(source.toPath(), data);
+			DataManifest manifest = new DataManifest.Builder().add("big.bin", data.length, source.lastModified())
+					.build();
+			File target = new File(dir, "target");
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (DataOutputStream out = new DataOutputStream(bytes)) {
+				DataTransfer.writeFrame(source, TransferCodec.NONE, 1, out, new byte[DataTransfer.CHUNK_SIZE]);
+			}
+			byte[] cut = Arrays.copyOf(bytes.toByteArray(), (int) (TransferCheckpoint.INTERVAL + 100));
+			DataTransfer.Receiver interrupted = new DataTransfer.Receiver(manifest, manifest.all(),
+					new ByteArrayInputStream(cut));
+			assertThrows(IOException.class, () -> interrupted.invoke(target, null));
+			assertTrue(TransferCheckpoint.partial(new File(target, "big.bin").toPath()).toFile().exists());
+
+			new DeleteCopiedFiles(manifest, null).invoke(target, null);
+			assertArrayEquals(new String[0], target.list(), "Partial and checkpoint files should be removed");
+		} finally {
+			DeleteCopiedFiles.deleteTree(dir.toPath());
+		}
+	}
+
+	/**
+	 * Test a modified file is sent as a delta against the old copy and rebuilt from it
+	 */
+	@Test
+	void testBlockDelta() throws Exception {
+		File dir = Files.createTempDirectory("copy-data-test").toFile();
+		try {
+			Random random = new Random(11);
+			byte[] old = new byte[3 * 1024 * 1024 + 777];
+			random.nextBytes(old);
+			// insert bytes in the middle, change a few near the end and append some
+			byte[] inserted = new byte[100];
+			random.nextBytes(inserted);
+			ByteArrayOutputStream modified = new ByteArrayOutputStream();
+			modified.write(old, 0, 1024 * 1024 + 5);
+			modified.write(inserted);
+			modified.write(old, 1024 * 1024 + 5, old.length - 1024 * 1024 - 5);
+			modified.write(inserted);
+			byte[] data = modified.toByteArray();
+			data[data.length - 200000] ^= 1;
+
+			File source = new File(dir, "source.bin");
+			Files.write(source.toPath(), data);
+			File target = new File(dir, "target");
+			assertTrue(target.mkdir());
+			File copy = new File(target, "big.bin");
+			Files.write(copy.toPath(), old);
+			DataManifest manifest = new DataManifest.Builder().add("big.bin", data.length, source.lastModified())
+					.build();
+
+			BlockDelta.Signature[] signatures = new BlockDelta.Signatures(manifest, manifest.all()).invoke(target, null);
+			assertEquals(old.length / BlockDelta.BLOCK_SIZE, signatures[0].blocks());
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (DataOutputStream out = new DataOutputStream(bytes)) {
+				DataTransfer.writeFrame(source, TransferCodec.NONE, 1, out, new byte[DataTransfer.CHUNK_SIZE], 0,
+						signatures[0]);
+			}
+			assertTrue(bytes.size() < 4 * BlockDelta.BLOCK_SIZE, "Delta should only carry the changed blocks, was "
+					+ bytes.size() + " bytes");
+
+			DataTransfer.Stats stats = new DataTransfer.Receiver(manifest, manifest.all(),
+					new ByteArrayInputStream(bytes.toByteArray())).invoke(target, null);
+			assertEquals(1, stats.files);
+			assertTrue(stats.mismatched.isEmpty());
+			assertEquals(data.length, stats.bytes);
+			assertTrue(stats.reusedBytes > data.length - 4 * BlockDelta.BLOCK_SIZE);
+			assertArrayEquals(data, Files.readAllBytes(copy.toPath()));
+
+			// a copy that changed after its signature was taken is detected and kept
+			Files.write(copy.toPath(), old);
+			signatures = new BlockDelta.Signatures(manifest, manifest.all()).invoke(target, null);
+			bytes.reset();
+			try (DataOutputStream out = new DataOutputStream(bytes)) {
+				DataTransfer.writeFrame(source, TransferCodec.DEFLATE, 1, out, new byte[DataTransfer.CHUNK_SIZE], 0,
+						signatures[0]);
+			}
+			old[10] ^= 1;
+			Files.write(copy.toPath(), old);
+			stats = new DataTransfer.Receiver(manifest, manifest.all(), new ByteArrayInputStream(bytes.toByteArray()))
+					.invoke(target, null);
+			assertEquals(List.of(0), stats.mismatched);
+			assertArrayEquals(old, Files.readAllBytes(copy.toPath()), "Mismatching result should not be installed");
+
+			// a delta whose older copy is gone is reported, so the file is sent again whole
+			File empty = new File(dir, "empty");
+			assertTrue(empty.mkdir());
+			stats = new DataTransfer.Receiver(manifest, manifest.all(), new ByteArrayInputStream(bytes.toByteArray()))
+					.invoke(empty, null);
+			assertEquals(List.of(0), stats.mismatched);
+			assertFalse(new File(empty, "big.bin").exists(), "Nothing should be installed without the older copy");
+		} finally {
+			DeleteCopiedFiles.deleteTree(dir.toPath());
+		}
+	}
+
+	/**
+	 * Test pre-packed archives are rebuilt for a changed folder and evicted least recently used first
+	 */
+	@Test
+	void testArchiveCacheEviction() throws Exception {
+		File dir = Files.createTempDirectory("copy-data-test").toFile();
+		try {
+			File source = new File(dir, "source");
+			assertTrue(source.mkdir());
+			File file = new File(source, "data.txt");
+			Files.write(file.toPath(), "first".getBytes(StandardCharsets.UTF_8));
+			long second = file.lastModified() / 1000 * 1000;
+			assertTrue(file.setLastModified(second));
+			File archives = new File(dir, "archives");
+			assertTrue(archives.mkdir());
+			File stale = new File(archives, "stale" + ArchiveCache.SUFFIX);
+			Files.write(stale.toPath(), new byte[1000]);
+			assertTrue(stale.setLastModified(System.currentTimeMillis() - 60000));
+
+			DataManifest manifest = new DataManifest.Scanner().invoke(source, null);
+			ArchiveCache.get(archives, source, manifest, TransferCodec.NONE, 1, 2000).close();
+			assertTrue(stale.exists(), "Archives within the limit should be kept");
+			ArchiveCache.get(archives, source, manifest, TransferCodec.NONE, 1, 0).close();
+			assertTrue(stale.exists(), "Nothing should be evicted without packing");
+
+			// same size and second, only the milliseconds differ
+			Files.write(file.toPath(), "other".getBytes(StandardCharsets.UTF_8));
+			assertTrue(file.setLastModified(second + 500));
+			manifest = new DataManifest.Scanner().invoke(source, null);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (ArchiveCache.Archive archive = ArchiveCache.get(archives, source, manifest, TransferCodec.NONE, 1, 0)) {
+				archive.send(manifest.all(), bytes);
+			}
+			assertFalse(stale.exists(), "Least recently used archive should be evicted");
+			File target = new File(dir, "target");
+			new DataTransfer.Receiver(manifest, manifest.all(), new ByteArrayInputStream(bytes.toByteArray()))
+					.invoke(target, null);
+			assertEquals("other", new String(Files.readAllBytes(new File(target, "data.txt").toPath()),
+					StandardCharsets.UTF_8), "Archive should be rebuilt for the changed folder");
+
+			ArchiveCache.get(archives, source, manifest, TransferCodec.DEFLATE, 1, 0).close();
+			String[] left = archives.list();
+			assertEquals(1, left.length);
+			assertTrue(left[0].endsWith("-deflate-1" + ArchiveCache.SUFFIX), "Only the newest archive should be kept");
+		} finally {
+			DeleteCopiedFiles.deleteTree(dir.toPath());
+		}
+	}
+
+	private static DataTransfer.Stats receive(File source, DataManifest manifest, File dir) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			DataTransfer.writeFrame(source, TransferCodec.DEFLATE, 1, out, new byte[DataTransfer.CHUNK_SIZE]);
+		}
+		return new DataTransfer.Receiver(manifest, manifest.all(), new ByteArrayInputStream(bytes.toByteArray()))
+				.invoke(dir, null);
+	}
+}
@@ -0,0 +1,98 @@
+package hpi;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class GenerationMarkerTest {
+
+	/**
+	 * Test a written marker matches the same data and generations count up when the data changes
+	 */
+	@Test
+	void testMarkerMatchesCopiedData() throws Exception {
+		Path source = Files.createTempDirectory("copy-data-source");
+		Path workspace = Files.createTempDirectory("copy-data-workspace");
+		try {
+			Files.write(source.resolve("file.txt"), "content".getBytes(StandardCharsets.UTF_8));
+			DataManifest manifest = new DataManifest.Scanner().invoke(source.toFile(), null);
+			String fingerprint = GenerationMarker.fingerprint(manifest, source.toFile(), false);
+			assertNotEquals(fingerprint, GenerationMarker.fingerprint(manifest, source.toFile(), true));
+			assertNotEquals(fingerprint, GenerationMarker.fingerprint(manifest, workspace.toFile(), false),
+					"Another folder with the same listing should not match");
+
+			GenerationMarker.State state = new GenerationMarker.Check(fingerprint).invoke(workspace.toFile(), null);
+			assertFalse(state.current, "Workspace without a marker should be copied");
+			assertEquals(1, state.generation);
+			Files.copy(source.resolve("file.txt"), workspace.resolve("file.txt"), StandardCopyOption.COPY_ATTRIBUTES);
+			new GenerationMarker.Write(state, manifest).invoke(workspace.toFile(), null);
+
+			state = new GenerationMarker.Check(fingerprint).invoke(workspace.toFile(), null);
+			assertTrue(state.current, "Marker should match the same data");
+			assertEquals(1, state.generation);
+
+			// the build changed the retained file, so it is copied again
+			Files.write(workspace.resolve("file.txt"), "changed by the build".getBytes(StandardCharsets.UTF_8));
+			state = new GenerationMarker.Check(fingerprint).invoke(workspace.toFile(), null);
+			assertFalse(state.current, "Marker should not match when a retained file was modified");
+			Files.copy(source.resolve("file.txt"), workspace.resolve("file.txt"), StandardCopyOption.COPY_ATTRIBUTES,
+					StandardCopyOption.REPLACE_EXISTING);
+			new GenerationMarker.Write(state, manifest).invoke(workspace.toFile(), null);
+			assertEquals(2, state.generation);
+
+			Files.write(source.resolve("file.txt"), "changed content".getBytes(StandardCharsets.UTF_8));
+			DataManifest changed = new DataManifest.Scanner().invoke(source.toFile(), null);
+			state = new GenerationMarker.Check(GenerationMarker.fingerprint(changed, source.toFile(), false))
+					.invoke(workspace.toFile(), null);
+			assertFalse(state.current, "Marker should not match changed data");
+			assertEquals(3, state.generation);
+			assertFalse(Files.exists(workspace.resolve(GenerationMarker.FILE)), "Outdated marker should be removed");
+
+			// a copy that did not complete still counts the generation on
+			state = new GenerationMarker.Check(GenerationMarker.fingerprint(changed, source.toFile(), false))
+					.invoke(workspace.toFile(), null);
+			assertEquals(3, state.generation);
+			new GenerationMarker.Write(state, changed).invoke(workspace.toFile(), null);
+			assertFalse(Files.exists(workspace.resolve(GenerationMarker.PREVIOUS)), "Previous marker should be removed");
+		} finally {
+			DeleteCopiedFiles.deleteTree(source);
+			DeleteCopiedFiles.deleteTree(workspace);
+		}
+	}
+
+	/**
+	 * Test files of the previous generation that left the source are removed unless the build modified them
+	 */
+	@Test
+	void testRemovesStaleFiles() throws Exception {
+		Path workspace = Files.createTempDirectory("copy-data-workspace");
+		try {
+			Files.createDirectories(workspace.resolve("old"));
+			Files.write(workspace.resolve("old/stale.txt"), "stale".getBytes(StandardCharsets.UTF_8));
+			Files.write(workspace.resolve("modified.txt"), "copied".getBytes(StandardCharsets.UTF_8));
+			Files.write(workspace.resolve("kept.txt"), "kept".getBytes(StandardCharsets.UTF_8));
+			DataManifest previous = new DataManifest.Scanner().invoke(workspace.toFile(), null);
+			new GenerationMarker.Write(new GenerationMarker.State("previous", 1, false), previous)
+					.invoke(workspace.toFile(), null);
+			Files.write(workspace.resolve("modified.txt"), "changed by the build".getBytes(StandardCharsets.UTF_8));
+
+			DataManifest current = new DataManifest.Builder()
+					.add("kept.txt", 4, new File(workspace.toFile(), "kept.txt").lastModified()).build();
+			GenerationMarker.State state = new GenerationMarker.Check("current").invoke(workspace.toFile(), null);
+			assertFalse(state.current);
+			assertTrue(Files.exists(workspace.resolve("old/stale.txt")), "Stale file should be kept until the copy is done");
+
+			int removed = new GenerationMarker.Write(state, current).invoke(workspace.toFile(), null);
+			assertEquals(1, removed);
+			assertFalse(Files.exists(workspace.resolve("old")), "Stale file and its directory should be removed");
+			assertTrue(Files.exists(workspace.resolve("modified.txt")), "Modified file should be kept");
+			assertTrue(Files.exists(workspace.resolve("kept.txt")), "File still in the source should be kept");
+		} finally {
+			DeleteCopiedFiles.deleteTree(workspace);
+		}
+	}
+}
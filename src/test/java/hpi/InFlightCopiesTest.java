@@ -0,0 +1,43 @@
+package hpi;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class InFlightCopiesTest {
+
+	/**
+	 * Test only files that still match the manifest are taken from the workspace of another build
+	 */
+	@Test
+	void testCopyFromWorkspace() throws Exception {
+		Path dir = Files.createTempDirectory("copy-data-test");
+		try {
+			Path leader = dir.resolve("leader");
+			Files.createDirectories(leader.resolve("sub"));
+			Files.write(leader.resolve("sub/same.txt"), "same".getBytes(StandardCharsets.UTF_8));
+			Files.write(leader.resolve("modified.txt"), "copied".getBytes(StandardCharsets.UTF_8));
+			Files.write(leader.resolve("deleted.txt"), "copied".getBytes(StandardCharsets.UTF_8));
+			DataManifest manifest = new DataManifest.Scanner().invoke(leader.toFile(), null);
+			// the other build goes on with its files
+			Files.write(leader.resolve("modified.txt"), "changed by the build".getBytes(StandardCharsets.UTF_8));
+			Files.delete(leader.resolve("deleted.txt"));
+
+			File joiner = dir.resolve("joiner").toFile();
+			int[] remaining = new InFlightCopies.CopyFromWorkspace(leader.toString(), manifest, manifest.all())
+					.invoke(joiner, null);
+
+			assertEquals(2, remaining.length, "Changed and deleted files should be left to transfer");
+			assertEquals("deleted.txt", manifest.getPath(remaining[0]));
+			assertEquals("modified.txt", manifest.getPath(remaining[1]));
+			assertEquals("same", Files.readString(new File(joiner, "sub/same.txt").toPath()));
+			assertFalse(new File(joiner, "modified.txt").exists(), "Changed file should not be copied");
+			assertArrayEquals(new String[] {"sub"}, joiner.list(), "No temporary files should be left");
+		} finally {
+			DeleteCopiedFiles.deleteTree(dir);
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package hpi;
+
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class KeyedLocksTest {
+
+	/**
+	 * Test a held lock keeps other threads out and is forgotten once released
+	 */
+	@Test
+	void testLocksArePruned() throws Exception {
+		KeyedLocks locks = new KeyedLocks();
+		try (KeyedLocks.Held held = locks.lock("a")) {
+			assertNull(CompletableFuture.supplyAsync(() -> locks.tryLock("a")).get(),
+					"A held lock should not be taken by another thread");
+			assertTrue(CompletableFuture.supplyAsync(() -> {
+				KeyedLocks.Held other = locks.tryLock("b");
+				if (other == null) {
+					return false;
+				}
+				other.close();
+				return true;
+			}).get(), "Locks of other keys should be free");
+			int size = locks.size();
+			assertEquals(1, size, "Only the held lock should be kept");
+		}
+		int size = locks.size();
+		assertEquals(0, size, "Released locks should be removed");
+	}
+
+	/**
+	 * Test shared locks exclude the exclusive lock but not each other
+	 */
+	@Test
+	void testSharedLocks() throws Exception {
+		KeyedLocks locks = new KeyedLocks();
+		try (KeyedLocks.Held reading = locks.lockSharedInterruptibly("a")) {
+			assertTrue(CompletableFuture.supplyAsync(() -> {
+				KeyedLocks.Held other = locks.tryLockShared("a");
+				if (other == null) {
+					return false;
+				}
+				other.close();
+				return true;
+			}).get(), "Readers should share the lock");
+			assertNull(CompletableFuture.supplyAsync(() -> locks.tryLock("a")).get(),
+					"The exclusive lock should wait for the readers");
+		}
+		KeyedLocks.Held writing = locks.lock("a");
+		assertNull(CompletableFuture.supplyAsync(() -> locks.tryLockShared("a")).get(),
+				"Readers should wait for the exclusive lock");
+		KeyedLocks.Held downgraded = locks.lockSharedInterruptibly("a");
+		writing.close();
+		assertNull(CompletableFuture.supplyAsync(() -> locks.tryLock("a")).get(),
+				"The shared lock should be kept after the exclusive one is released");
+		downgraded.close();
+		int size = locks.size();
+		assertEquals(0, size, "Released locks should be removed");
+	}
+}
@@ -0,0 +1,51 @@
+package hpi;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class LinkLocalFilesTest {
+
+	/**
+	 * Test local copies refuse a directory that was replaced by a symlink after the scan
+	 */
+	@Test
+	void testSymlinkedParentIsRefused() throws Exception {
+		for (boolean hardLinks : new boolean[] {false, true}) {
+			File dir = Files.createTempDirectory("copy-data-test").toFile();
+			try {
+				File source = new File(dir, "source");
+				assertTrue(new File(source, "sub").mkdirs());
+				Files.write(new File(source, "sub/file.txt").toPath(), "data".getBytes(StandardCharsets.UTF_8));
+				Files.write(new File(source, "top.txt").toPath(), "top".getBytes(StandardCharsets.UTF_8));
+				DataManifest manifest = new DataManifest.Scanner().invoke(source, null);
+				assertEquals("sub/file.txt", manifest.getPath(1));
+
+				File workspace = new File(dir, "workspace");
+				int[] remaining = new LinkLocalFiles(source.getPath(), manifest, new int[] {2}, hardLinks)
+						.invoke(workspace, null);
+				assertEquals(0, remaining.length);
+				assertEquals("top", Files.readString(new File(workspace, "top.txt").toPath()));
+
+				// the same listing, but sub now leads out of the folder
+				File secret = new File(dir, "secret");
+				assertTrue(secret.mkdir());
+				File secretFile = new File(secret, "file.txt");
+				Files.write(secretFile.toPath(), "data".getBytes(StandardCharsets.UTF_8));
+				assertTrue(secretFile.setLastModified(manifest.getLastModified(1)));
+				DeleteCopiedFiles.deleteTree(new File(source, "sub").toPath());
+				Files.createSymbolicLink(new File(source, "sub").toPath(), secret.toPath());
+
+				IOException e = assertThrows(IOException.class, () -> new LinkLocalFiles(source.getPath(), manifest,
+						new int[] {1}, hardLinks).invoke(workspace, null));
+				assertTrue(e.getMessage().startsWith(DataManifest.Scanner.SYMLINKS), e.getMessage());
+				assertFalse(new File(workspace, "sub/file.txt").exists(), "Nothing should be taken from outside");
+			} finally {
+				DeleteCopiedFiles.deleteTree(dir.toPath());
+			}
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package hpi;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ManifestIndexTest {
+
+	/**
+	 * Test an unchanged folder is listed once and any change below it, also in new directories, lists it again
+	 */
+	@Test
+	void testChangesInvalidateManifest() throws Exception {
+		Path dir = Files.createTempDirectory("copy-data-index");
+		ManifestIndex index = new ManifestIndex();
+		try {
+			Files.createDirectories(dir.resolve("sub"));
+			Files.write(dir.resolve("sub/file.txt"), "content".getBytes(StandardCharsets.UTF_8));
+			AtomicInteger scans = new AtomicInteger();
+			ManifestIndex.Scan scan = () -> {
+				scans.incrementAndGet();
+				return new DataManifest.Scanner().invoke(dir.toFile(), null);
+			};
+
+			assertEquals(2, index.get("key", List.of(dir), scan).size());
+			assertEquals(2, index.get("key", List.of(dir), scan).size());
+			assertEquals(1, scans.get(), "Unchanged folder should be listed once");
+
+			// the index waits for the events of changes made before it is asked
+			Files.write(dir.resolve("sub/file.txt"), "changed".getBytes(StandardCharsets.UTF_8));
+			assertEquals(7, index.get("key", List.of(dir), scan).getSize(1), "Changed file should be listed again");
+			assertEquals(2, scans.get());
+
+			Files.createDirectories(dir.resolve("new"));
+			assertEquals(3, index.get("key", List.of(dir), scan).size());
+			Files.write(dir.resolve("new/file.txt"), "content".getBytes(StandardCharsets.UTF_8));
+			assertEquals(4, index.get("key", List.of(dir), scan).size(),
+					"Files in a directory created after indexing should be noticed");
+			index.get("key", List.of(dir), scan);
+			assertEquals(4, scans.get());
+		} finally {
+			index.clear();
+			DeleteCopiedFiles.deleteTree(dir);
+		}
+	}
+
+	/**
+	 * Test manifests are kept per key and the least recently used ones are dropped
+	 */
+	@Test
+	void testManifestsPerKey() throws Exception {
+		Path dir = Files.createTempDirectory("copy-data-index");
+		ManifestIndex index = new ManifestIndex();
+		try {
+			AtomicInteger scans = new AtomicInteger();
+			ManifestIndex.Scan scan = () -> {
+				scans.incrementAndGet();
+				return new DataManifest.Scanner().invoke(dir.toFile(), null);
+			};
+			for (int i = 0; i <= ManifestIndex.MAX_MANIFESTS; i++) {
+				index.get("key" + i, List.of(dir), scan);
+			}
+			assertEquals(ManifestIndex.MAX_MANIFESTS + 1, scans.get(), "Each key should be scanned");
+			assertEquals(ManifestIndex.MAX_MANIFESTS, index.size());
+			index.get("key0", List.of(dir), scan);
+			assertEquals(ManifestIndex.MAX_MANIFESTS + 2, scans.get(), "Dropped manifest should be scanned again");
+		} finally {
+			index.clear();
+			DeleteCopiedFiles.deleteTree(dir);
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package hpi;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class PathFilterTest {
+
+	/**
+	 * Test wildcards within a single path segment
+	 */
+	@Test
+	void testMatchSegment() {
+		assertTrue(PathFilter.matchSegment("*.csv", "data.csv"));
+		assertTrue(PathFilter.matchSegment("*", ""));
+		assertTrue(PathFilter.matchSegment("d?ta*.c*v", "data-2024.csv"));
+		assertTrue(PathFilter.matchSegment("*a*b", "xaab"));
+		assertFalse(PathFilter.matchSegment("*.csv", "data.csv.gz"));
+		assertFalse(PathFilter.matchSegment("?", ""));
+		assertFalse(PathFilter.matchSegment("data", "Data"));
+	}
+
+	/**
+	 * Test include and exclude patterns on files
+	 */
+	@Test
+	void testIncludesFile() {
+		PathFilter filter = PathFilter.compile("fixtures/small/**, *.xml, **/keep.txt", "**/*.tmp, fixtures/small/skip/");
+		assertTrue(filter.hasIncludes());
+		assertTrue(filter.includesFile("fixtures/small/a.bin"));
+		assertTrue(filter.includesFile("fixtures/small/deep/er/b.bin"));
+		assertTrue(filter.includesFile("config.xml"));
+		assertTrue(filter.includesFile("any/where/keep.txt"));
+		assertTrue(filter.includesFile("keep.txt"), "** should match zero directories");
+		assertFalse(filter.includesFile("nested/config.xml"), "* should not cross directories");
+		assertFalse(filter.includesFile("fixtures/large/a.bin"));
+		assertFalse(filter.includesFile("fixtures/small/a.tmp"), "Excludes should win over includes");
+		assertFalse(filter.includesFile("fixtures/small/skip/c.bin"));
+
+		PathFilter excludesOnly = PathFilter.compile(null, "\\build\\, *.log");
+		assertFalse(excludesOnly.hasIncludes());
+		assertTrue(excludesOnly.includesFile("src/a.log"));
+		assertFalse(excludesOnly.includesFile("a.log"));
+		assertFalse(excludesOnly.includesFile("build/out/a.bin"));
+
+		assertNull(PathFilter.compile(" , ", null), "Empty pattern lists should not create a filter");
+	}
+
+	/**
+	 * Test directories are pruned when nothing below them can be copied
+	 */
+	@Test
+	void testEntersDirectory() {
+		PathFilter filter = PathFilter.compile("fixtures/small/**, *.xml", "fixtures/small/skip/**, **/.git/");
+		assertTrue(filter.entersDirectory("fixtures"));
+		assertTrue(filter.entersDirectory("fixtures/small"));
+		assertTrue(filter.entersDirectory("fixtures/small/deep"));
+		assertFalse(filter.entersDirectory("fixtures/large"));
+		assertFalse(filter.entersDirectory("other"), "*.xml only matches top-level files");
+		assertFalse(filter.entersDirectory("fixtures/small/skip"));
+		assertFalse(filter.entersDirectory("fixtures/small/repo/.git"));
+
+		PathFilter excludes = PathFilter.compile("", "**/*.tmp");
+		assertTrue(excludes.entersDirectory("cache.tmp"), "File patterns should not prune directories");
+	}
+
+	/**
+	 * Test Ant's default excludes are applied unless turned off
+	 */
+	@Test
+	void testDefaultExcludes() {
+		PathFilter filter = PathFilter.compile(null, "*.log", true);
+		assertFalse(filter.entersDirectory(".git"));
+		assertFalse(filter.entersDirectory("nested/.svn"));
+		assertFalse(filter.includesFile(".gitignore"));
+		assertFalse(filter.includesFile("notes.txt~"));
+		assertFalse(filter.includesFile("deep/.DS_Store"));
+		assertFalse(filter.includesFile("build.log"), "Own excludes should still apply");
+		assertTrue(filter.includesFile("data/sample.csv"));
+		assertTrue(filter.entersDirectory("data"));
+
+		assertNull(PathFilter.compile(null, null, false), "Without default excludes nothing is filtered");
+		assertTrue(PathFilter.compile(null, "*.log", false).entersDirectory(".git"));
+	}
+}